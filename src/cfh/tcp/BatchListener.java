@@ -0,0 +1,36 @@
+package cfh.tcp;
+
+import java.util.List;
+
+/**
+ * Listener receiving all frames decoded from one read in a single call.
+ *
+ * <P>At high message rates, the listener can handle a batch at once,
+ * like writing it to a database in one transaction, instead of one call
+ * per frame. The batch is passed after the frames were passed to the
+ * {@link ConnectionListener}s and {@link BufferListener}s; the frames
+ * are the same arrays the connection listeners get. The list and the
+ * frames belong to the listener and can be kept after the call.
+ *
+ * <P>A read takes all bytes available, so a batch holds all complete
+ * frames that arrived since the previous read; a frame completed by a
+ * later read is in that read's batch. Unframed, each read is a batch of
+ * one. Batch listeners are timed by a {@link CallbackMonitor} but never
+ * moved to an async lane.
+ *
+ * <P>The other callbacks are only passed to the connection and buffer
+ * listeners.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface BatchListener {
+
+    /**
+     * Frames were received.
+     *
+     * @param connection the Connection instance.
+     * @param frames the frames in the order received, never empty.
+     */
+    void receivedBatch(Connection connection, List<byte[]> frames);
+}
@@ -0,0 +1,124 @@
+package cfh.tcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener receiving the data as a view of the connection's buffer,
+ * without a copy per read.
+ *
+ * <P>The buffer passed to {@link #receivedData(Connection, ByteBuffer)}
+ * and {@link #sentData(Connection, ByteBuffer)} is read-only, the data is
+ * between its position and limit. It is only valid during the call, the
+ * connection reuses it for the next read; use
+ * {@link Connection#retain(ByteBuffer)} to keep the data.
+ *
+ * <P>Buffer listeners are called after the {@link ConnectionListener}s.
+ * They are timed by a {@link CallbackMonitor} but never moved to an async
+ * lane, as the buffer would no longer be valid.
+ * A {@link ConnectionListener} can be added as buffer listener with
+ * {@link ArrayAdapter}, it then gets a copy of the data.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface BufferListener {
+
+    void started(Connection connection);
+
+    void sentData(Connection connection, ByteBuffer data);
+
+    void receivedData(Connection connection, ByteBuffer data);
+
+    void shutdown(Connection connection);
+
+    /**
+     * An exception was catched in the connection.
+     * The {@link #shutdown(Connection)} method will also be called.
+     *
+     * @param connection the Connection instance.
+     * @param ex The Exception.
+     */
+    void handleException(Connection connection, Exception ex);
+
+//  ############################################################################
+
+    public class Adapter implements BufferListener {
+
+        @Override
+        public void started(Connection connection) {
+            //
+        }
+
+        @Override
+        public void receivedData(Connection connection, ByteBuffer data) {
+            //
+        }
+
+        @Override
+        public void sentData(Connection connection, ByteBuffer data) {
+            //
+        }
+
+        @Override
+        public void handleException(Connection connection, Exception ex) {
+            //
+        }
+
+        @Override
+        public void shutdown(Connection connection) {
+            //
+        }
+    }
+
+//  ============================================================================
+
+    /**
+     * Passes the calls on to a {@link ConnectionListener}, the data is
+     * copied into a new array.
+     */
+    public class ArrayAdapter implements BufferListener {
+
+        private final ConnectionListener listener;
+
+        public ArrayAdapter(ConnectionListener listener) {
+            if (listener == null)
+                throw new IllegalArgumentException("listener must not be null");
+            this.listener = listener;
+        }
+
+        public ConnectionListener getListener() {
+            return listener;
+        }
+
+        @Override
+        public void started(Connection connection) {
+            listener.started(connection);
+        }
+
+        @Override
+        public void receivedData(Connection connection, ByteBuffer data) {
+            listener.receivedData(connection, array(data));
+        }
+
+        @Override
+        public void sentData(Connection connection, ByteBuffer data) {
+            listener.sentData(connection, array(data));
+        }
+
+        @Override
+        public void handleException(Connection connection, Exception ex) {
+            listener.handleException(connection, ex);
+        }
+
+        @Override
+        public void shutdown(Connection connection) {
+            listener.shutdown(connection);
+        }
+
+        private static byte[] array(ByteBuffer data) {
+            byte[] array = new byte[data.remaining()];
+            data.duplicate().get(array);
+            return array;
+        }
+    }
+}
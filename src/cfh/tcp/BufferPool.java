@@ -0,0 +1,267 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of buffers shared by connections, with a limit on the memory of
+ * all its buffers.
+ *
+ * <P>The buffers are in size classes, powers of two from
+ * {@value #MIN_CLASS_SIZE} bytes; a requested size is rounded up to its
+ * class. Released buffers are kept for the next request of the same
+ * class, and dropped when memory is needed for another class.
+ *
+ * <P>The memory of the buffers in use and kept never exceeds the limit.
+ * A request that does not fit waits for buffers to be released, and fails
+ * with an IOException after the maximum wait: a connection reading into
+ * the pool stops reading meanwhile, so TCP holds back the peer, and is
+ * shut down on failure.
+ *
+ * <P>Heap pools can be used by {@link Connection}s and {@link Relay}s,
+ * direct pools, off the heap, only by relays.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class BufferPool {
+
+    public static final int MIN_CLASS_SIZE = 1024;
+    public static final int MAX_CLASS_SIZE = 1 << 30;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    private static final int CLASSES = 31 - MIN_SHIFT;  // up to MAX_CLASS_SIZE
+
+    private final long maxMemory;
+    private final boolean direct;
+    private final long maxWaitNanos;
+
+    // guarded by this
+    private final ArrayDeque<ByteBuffer>[] free;
+    private final Set<ByteBuffer> inUse = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    private long used = 0;
+    private long kept = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long waits = 0;
+    private long rejections = 0;
+    private long requestedBytes = 0;
+    private long acquiredBytes = 0;
+
+    /**
+     * Creates a new heap pool, requests wait at most one second.
+     *
+     * @param maxMemory the maximum memory of all buffers, in bytes
+     */
+    public BufferPool(long maxMemory) {
+        this(maxMemory, false, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxMemory the maximum memory of all buffers, in bytes
+     * @param direct <code>true</code> for direct buffers, off the heap
+     * @param maxWait the maximum time a request waits for memory, 0 to fail at once
+     * @param unit the unit of <code>maxWait</code>
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public BufferPool(long maxMemory, boolean direct, long maxWait, TimeUnit unit) {
+        if (maxMemory < MIN_CLASS_SIZE)
+            throw new IllegalArgumentException("maxMemory must be at least " + MIN_CLASS_SIZE + ": " + maxMemory);
+        if (maxWait < 0)
+            throw new IllegalArgumentException("maxWait must not be negative: " + maxWait);
+        if (unit == null)
+            throw new IllegalArgumentException("unit must not be null");
+
+        this.maxMemory = maxMemory;
+        this.direct = direct;
+        maxWaitNanos = unit.toNanos(maxWait);
+        free = new ArrayDeque[CLASSES];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Returns a buffer of at least the given size, with position 0 and
+     * the limit at <code>size</code>.
+     *
+     * @param size the number of bytes needed
+     * @throws IOException if the memory limit is reached after the maximum wait
+     */
+    public synchronized ByteBuffer acquire(int size) throws IOException {
+        if (size < 0 || size > MAX_CLASS_SIZE)
+            throw new IllegalArgumentException("size must be between 0 and " + MAX_CLASS_SIZE + ": " + size);
+        int index = classIndex(size);
+        int capacity = MIN_CLASS_SIZE << index;
+        if (capacity > maxMemory)
+            throw new IllegalArgumentException("size exceeds the memory limit: " + size);
+
+        ByteBuffer buffer = free[index].poll();
+        if (buffer != null) {
+            hits += 1;
+            kept -= capacity;
+        } else {
+            misses += 1;
+            reserve(capacity);
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        used += capacity;
+        inUse.add(buffer);
+        requestedBytes += size;
+        acquiredBytes += capacity;
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, it must not be used anymore.
+     * Releasing a buffer twice is an error, it could be handed out twice.
+     *
+     * @param buffer a buffer returned by {@link #acquire(int)}
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null)
+            throw new IllegalArgumentException("buffer must not be null");
+        if (!inUse.remove(buffer))
+            throw new IllegalArgumentException("buffer not from this pool or already released: " + buffer);
+        int capacity = buffer.capacity();
+        int index = classIndex(capacity);
+        used -= capacity;
+        kept += capacity;
+        free[index].push(buffer);
+        notifyAll();
+    }
+
+    /**
+     * Waits until the memory for a new buffer is available, dropping kept
+     * buffers if needed.
+     */
+    private void reserve(int capacity) throws IOException {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        boolean waited = false;
+        while (used + kept + capacity > maxMemory) {
+            if (kept > 0) {
+                dropLargest();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                rejections += 1;
+                throw new IOException("memory limit of " + maxMemory + " bytes reached, " + used + " bytes used");
+            }
+            if (!waited) {
+                waited = true;
+                waits += 1;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for memory");
+            }
+        }
+    }
+
+    private void dropLargest() {
+        for (int i = free.length - 1; i >= 0; i--) {
+            if (free[i].poll() != null) {
+                kept -= MIN_CLASS_SIZE << i;
+                return;
+            }
+        }
+    }
+
+    private static int classIndex(int size) {
+        if (size <= MIN_CLASS_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Returns the largest size that can be requested, the largest class
+     * within the memory limit.
+     */
+    public int getMaxSize() {
+        return (int) Math.min(MAX_CLASS_SIZE, Long.highestOneBit(maxMemory));
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns the memory of the buffers in use.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Returns the memory of the released buffers kept for reuse.
+     */
+    public synchronized long getKept() {
+        return kept;
+    }
+
+    /**
+     * Returns the number of requests served by a kept buffer.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of requests that needed a new buffer.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the part of the requests served by a kept buffer, 0 if none.
+     */
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return (requests > 0) ? (double) hits / requests : 0;
+    }
+
+    /**
+     * Returns the number of requests that had to wait for memory.
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * Returns the number of requests that failed at the memory limit.
+     */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * Returns the part of the acquired memory not requested, lost by
+     * rounding up to the size classes, over all requests.
+     */
+    public synchronized double getFragmentation() {
+        return (acquiredBytes > 0) ? 1 - (double) requestedBytes / acquiredBytes : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BufferPool[used=%d, kept=%d, max=%d, hits=%d, misses=%d, waits=%d, rejections=%d]",
+                used, kept, maxMemory, hits, misses, waits, rejections);
+    }
+}
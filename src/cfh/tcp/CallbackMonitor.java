@@ -0,0 +1,445 @@
+package cfh.tcp;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the listener callbacks against latency budgets.
+ *
+ * <P>All {@link ConnectionListener} and {@link ServerListener} callbacks
+ * run on the receiver or acceptor thread, a slow listener stalls its
+ * connection or, for the acceptor, every new client. Set a monitor with
+ * {@link Server#setCallbackMonitor(CallbackMonitor)} or
+ * {@link Connection#setCallbackMonitor(CallbackMonitor)} to have every
+ * callback timed; callbacks taking longer than their budget are reported
+ * to the {@link CallbackMonitorListener}s and counted in the
+ * {@link Statistics}.
+ *
+ * <P>With an async threshold set, a listener exceeding its budget that
+ * many times is moved to an async lane: its callbacks are then called, in
+ * order, on a separate thread and no longer stall the connection.
+ * The data passed to <code>sentData</code> must then not be changed by
+ * the sender afterwards; a <code>connected</code> callback may run after
+ * the connection was started.
+ *
+ * <P>Timing costs two <code>System.nanoTime()</code> calls per callback,
+ * the budgets are only looked up if the shortest budget is exceeded.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class CallbackMonitor {
+
+    private final Map<String, Long> budgets;
+    private final long defaultBudget;
+    private volatile long minBudget;
+
+    private volatile int asyncThreshold = 0;
+
+    /** Weak keys, the monitor must not keep removed listeners and their connections. */
+    private final Map<Object, Statistics> statistics;
+    private final List<CallbackMonitorListener> listeners;
+
+    private ExecutorService executor = null;
+
+    /**
+     * Creates a new monitor.
+     *
+     * @param budget the default budget for all callbacks
+     * @param unit the unit of <code>budget</code>
+     */
+    public CallbackMonitor(long budget, TimeUnit unit) {
+        if (budget <= 0)
+            throw new IllegalArgumentException("budget must be positive: " + budget);
+        if (unit == null)
+            throw new IllegalArgumentException("unit must not be null");
+
+        budgets = new ConcurrentHashMap<String, Long>();
+        defaultBudget = unit.toNanos(budget);
+        minBudget = defaultBudget;
+        statistics = Collections.synchronizedMap(new WeakHashMap<Object, Statistics>());
+        listeners = new CopyOnWriteArrayList<CallbackMonitorListener>();
+    }
+
+    /**
+     * Sets the budget for one callback, overriding the default budget.
+     *
+     * @param callback the name of the listener method, like <code>"receivedData"</code>
+     * @param budget the budget, 0 to use the default budget
+     * @param unit the unit of <code>budget</code>
+     */
+    public synchronized void setBudget(String callback, long budget, TimeUnit unit) {
+        if (callback == null)
+            throw new IllegalArgumentException("callback must not be null");
+        if (budget < 0)
+            throw new IllegalArgumentException("budget must not be negative: " + budget);
+
+        if (budget == 0) {
+            budgets.remove(callback);
+        } else {
+            budgets.put(callback, unit.toNanos(budget));
+        }
+        long min = defaultBudget;
+        for (Long nanos : budgets.values()) {
+            min = Math.min(min, nanos);
+        }
+        minBudget = min;
+    }
+
+    public long getBudget(String callback, TimeUnit unit) {
+        return unit.convert(budget(callback), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how many times a listener may exceed its budget before being
+     * moved to an async lane.
+     *
+     * @param overruns number of callbacks over budget, 0 to never move listeners
+     */
+    public void setAsyncThreshold(int overruns) {
+        if (overruns < 0)
+            throw new IllegalArgumentException("overruns must not be negative: " + overruns);
+        asyncThreshold = overruns;
+    }
+
+    public int getAsyncThreshold() {
+        return asyncThreshold;
+    }
+
+    /**
+     * Returns the statistics of all listeners that exceeded their budget,
+     * as long as the listeners are not garbage collected.
+     */
+    public List<Statistics> getStatistics() {
+        synchronized (statistics) {
+            return new ArrayList<Statistics>(statistics.values());
+        }
+    }
+
+    public void addListener(CallbackMonitorListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CallbackMonitorListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stops the threads of the async lanes, pending callbacks are discarded.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private long budget(String callback) {
+        Long budget = budgets.get(callback);
+        return (budget != null) ? budget : defaultBudget;
+    }
+
+    /**
+     * Checks the duration of a callback.
+     *
+     * @param listener the called listener
+     * @param callback the name of the method
+     * @param start value of <code>System.nanoTime()</code> before the call
+     * @return <code>true</code> if the listener should be moved to an async lane
+     */
+    boolean check(Object listener, String callback, long start) {
+        long nanos = System.nanoTime() - start;
+        if (nanos <= minBudget)
+            return false;
+        if (nanos <= budget(callback))
+            return false;
+
+        Statistics stats;
+        synchronized (statistics) {
+            stats = statistics.get(listener);
+            if (stats == null) {
+                stats = new Statistics(listener);
+                statistics.put(listener, stats);
+            }
+        }
+        long count = stats.overrun(nanos);
+        for (CallbackMonitorListener monitorListener : listeners) {
+            monitorListener.overBudget(this, listener, callback, nanos);
+        }
+        int threshold = asyncThreshold;
+        if (threshold > 0 && count >= threshold) {
+            if (stats.async.compareAndSet(false, true)) {
+                for (CallbackMonitorListener monitorListener : listeners) {
+                    monitorListener.movedToAsync(this, listener);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    ConnectionListener async(ConnectionListener listener) {
+        return new AsyncConnectionListener(listener, new Lane());
+    }
+
+    ServerListener async(ServerListener listener) {
+        return new AsyncServerListener(listener, new Lane());
+    }
+
+    /**
+     * Returns the listener wrapped by an async lane, or the listener itself.
+     */
+    static Object unwrap(Object listener) {
+        if (listener instanceof AsyncConnectionListener)
+            return ((AsyncConnectionListener) listener).listener;
+        if (listener instanceof AsyncServerListener)
+            return ((AsyncServerListener) listener).listener;
+        return listener;
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    thread.setName("Async lane: " + count.incrementAndGet());
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+//  ############################################################################
+
+    /**
+     * Budget overruns of one listener.
+     */
+    public static class Statistics {
+
+        /** Weak, the statistics are the value of the listener's map entry. */
+        private final WeakReference<Object> listener;
+        private final AtomicLong overruns = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicBoolean async = new AtomicBoolean();
+
+        private Statistics(Object listener) {
+            this.listener = new WeakReference<Object>(listener);
+        }
+
+        private long overrun(long nanos) {
+            totalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+            return overruns.incrementAndGet();
+        }
+
+        /**
+         * Returns the listener, <code>null</code> if garbage collected meanwhile.
+         */
+        public Object getListener() {
+            return listener.get();
+        }
+
+        /** Number of callbacks over budget. */
+        public long getOverruns() {
+            return overruns.get();
+        }
+
+        /** Total time of the callbacks over budget. */
+        public long getTotalTime(TimeUnit unit) {
+            return unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        /** Longest callback. */
+        public long getMaxTime(TimeUnit unit) {
+            return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        /** If the listener was moved to an async lane. */
+        public boolean isAsync() {
+            return async.get();
+        }
+
+        @Override
+        public String toString() {
+            return listener.get() + ": " + overruns + " overruns, max " + maxNanos + " ns"
+                    + (isAsync() ? ", async" : "");
+        }
+    }
+
+//  ############################################################################
+
+    /**
+     * Runs tasks in order, one at a time, on the monitor's executor.
+     */
+    private class Lane implements Runnable {
+
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor().execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+                }
+            }
+            scheduled.set(false);
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+//  ============================================================================
+
+    private static class AsyncConnectionListener implements ConnectionListener {
+
+        private final ConnectionListener listener;
+        private final Lane lane;
+
+        AsyncConnectionListener(ConnectionListener listener, Lane lane) {
+            this.listener = listener;
+            this.lane = lane;
+        }
+
+        @Override
+        public void started(final Connection connection) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.started(connection);
+                }
+            });
+        }
+
+        @Override
+        public void sentData(final Connection connection, final byte[] data) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.sentData(connection, data);
+                }
+            });
+        }
+
+        @Override
+        public void receivedData(final Connection connection, final byte[] data) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.receivedData(connection, data);
+                }
+            });
+        }
+
+        @Override
+        public void shutdown(final Connection connection) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.shutdown(connection);
+                }
+            });
+        }
+
+        @Override
+        public void handleException(final Connection connection, final Exception ex) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.handleException(connection, ex);
+                }
+            });
+        }
+    }
+
+//  ============================================================================
+
+    private static class AsyncServerListener implements ServerListener {
+
+        private final ServerListener listener;
+        private final Lane lane;
+
+        AsyncServerListener(ServerListener listener, Lane lane) {
+            this.listener = listener;
+            this.lane = lane;
+        }
+
+        @Override
+        public void started(final Server server) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.started(server);
+                }
+            });
+        }
+
+        @Override
+        public void connected(final Server server, final Connection connection) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.connected(server, connection);
+                }
+            });
+        }
+
+        @Override
+        public void handleException(final Server server, final Exception ex) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.handleException(server, ex);
+                }
+            });
+        }
+
+        @Override
+        public void shutdown(final Server server) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.shutdown(server);
+                }
+            });
+        }
+    }
+}
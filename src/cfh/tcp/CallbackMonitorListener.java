@@ -0,0 +1,46 @@
+package cfh.tcp;
+
+/**
+ * Listener for {@link CallbackMonitor} reports.
+ * 
+ * <P>Called on the thread of the slow callback, right after it returned.
+ * 
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface CallbackMonitorListener {
+    
+    /**
+     * A listener callback took longer than its budget.
+     * 
+     * @param monitor the CallbackMonitor instance.
+     * @param listener the slow ConnectionListener or ServerListener.
+     * @param callback the name of the called method.
+     * @param nanos the duration of the call in nanoseconds.
+     */
+    void overBudget(CallbackMonitor monitor, Object listener, String callback, long nanos);
+    
+    /**
+     * A listener was moved to an async lane, its callbacks will no
+     * longer be called on the receiver or acceptor thread.
+     * 
+     * @param monitor the CallbackMonitor instance.
+     * @param listener the moved listener.
+     */
+    void movedToAsync(CallbackMonitor monitor, Object listener);
+    
+//  ############################################################################
+    
+    public class Adapter implements CallbackMonitorListener {
+        
+        @Override
+        public void overBudget(CallbackMonitor monitor, Object listener, String callback, long nanos) {
+            //
+        }
+        
+        @Override
+        public void movedToAsync(CallbackMonitor monitor, Object listener) {
+            //
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package cfh.tcp;
+
+import cfh.tcp.Multiplexer.Channel;
+
+/**
+ * Listener for the events of a logical {@link Channel} of a
+ * {@link Multiplexer}, like a {@link ConnectionListener} for a connection.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface ChannelListener {
+
+    void started(Channel channel);
+
+    void sentData(Channel channel, byte[] data);
+
+    void receivedData(Channel channel, byte[] data);
+
+    /**
+     * The channel was closed, by either side or because the connection
+     * shut down.
+     *
+     * @param channel the Channel instance
+     */
+    void shutdown(Channel channel);
+
+    /**
+     * An exception was catched in the channel.
+     *
+     * @param channel the Channel instance.
+     * @param ex The Exception.
+     */
+    void handleException(Channel channel, Exception ex);
+
+//  ############################################################################
+
+    public class Adapter implements ChannelListener {
+
+        @Override
+        public void started(Channel channel) {
+            //
+        }
+
+        @Override
+        public void receivedData(Channel channel, byte[] data) {
+            //
+        }
+
+        @Override
+        public void sentData(Channel channel, byte[] data) {
+            //
+        }
+
+        @Override
+        public void handleException(Channel channel, Exception ex) {
+            //
+        }
+
+        @Override
+        public void shutdown(Channel channel) {
+            //
+        }
+    }
+}
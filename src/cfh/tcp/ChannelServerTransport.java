@@ -0,0 +1,148 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+
+/**
+ * Server transport over a {@link ServerSocketChannel}, TCP or Unix domain.
+ * 
+ * <P>The file of a Unix domain socket bound by the transport is deleted
+ * when the transport is closed, the file of an inherited one is kept.
+ * 
+ * <P>The channel is non-blocking, {@link #accept()} waits on a selector
+ * so it can be woken up without closing the channel.
+ * 
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+class ChannelServerTransport implements ServerTransport {
+    
+    private final ServerSocketChannel channel;
+    private final boolean owner;
+    private final Selector selector;
+    private volatile boolean woken = false;
+    
+    /**
+     * Opens a channel bound to the given address.
+     * 
+     * @param address an InetSocketAddress or UnixDomainSocketAddress
+     * @param backlog the listen backlog, equal or less than 0 for the default
+     */
+    static ChannelServerTransport bind(SocketAddress address, int backlog) throws IOException {
+        return bind(address, backlog, false);
+    }
+
+    /**
+     * Opens a channel bound to the given address.
+     * 
+     * @param address an InetSocketAddress or UnixDomainSocketAddress
+     * @param backlog the listen backlog, equal or less than 0 for the default
+     * @param reusePort if <code>SO_REUSEPORT</code> is set, so other processes can bind the same port
+     */
+    static ChannelServerTransport bind(SocketAddress address, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel channel;
+        if (address instanceof UnixDomainSocketAddress) {
+            channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            channel = ServerSocketChannel.open();
+        }
+        try {
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                    throw new IOException("SO_REUSEPORT not supported for " + address);
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(address, backlog);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new ChannelServerTransport(channel, true);
+    }
+    
+    /**
+     * Returns the channel inherited from the process that started this one.
+     * 
+     * @throws IOException if no server socket channel was inherited
+     * @see System#inheritedChannel()
+     */
+    static ChannelServerTransport inherited() throws IOException {
+        Channel channel = System.inheritedChannel();
+        if (!(channel instanceof ServerSocketChannel))
+            throw new IOException("no inherited server socket channel: " + channel);
+        return new ChannelServerTransport((ServerSocketChannel) channel, false);
+    }
+
+    ChannelServerTransport(ServerSocketChannel channel, boolean owner) throws IOException {
+        assert channel != null : "null channel";
+        
+        this.channel = channel;
+        this.owner = owner;
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    
+    ServerSocketChannel getChannel() {
+        return channel;
+    }
+    
+    @Override
+    public Transport accept() throws IOException {
+        while (true) {
+            Transport transport = acceptNow();
+            if (transport != null)
+                return transport;
+            if (woken)
+                return null;
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException ex) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    @Override
+    public Transport acceptNow() throws IOException {
+        SocketChannel client = channel.accept();  // blocking mode is set by the transport
+        return (client != null) ? new ChannelTransport(client) : null;
+    }
+
+    @Override
+    public void wakeup() {
+        woken = true;
+        selector.wakeup();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        SocketAddress address = getLocalAddress();
+        selector.close();
+        channel.close();
+        if (owner && address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+    }
+    
+    @Override
+    public SocketAddress getLocalAddress() {
+        try {
+            return channel.getLocalAddress();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+
+/**
+ * Transport over a connected {@link SocketChannel}, TCP or Unix domain.
+ * 
+ * <P>Reads go straight into the array of the caller, through the
+ * temporary direct buffer the channel keeps for the reading thread; the
+ * input has no buffer of its own, so nothing is known to be
+ * <code>available()</code>. Writes copy through a direct buffer of the
+ * output, allocated by the first write and grown with the writes up to
+ * {@value #MAX_BUFFER_SIZE} bytes. Once warmed up, reads and writes
+ * allocate nothing. Unlike the streams from
+ * {@link java.nio.channels.Channels}, reading and writing do not block
+ * each other.
+ * 
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+class ChannelTransport implements Transport {
+    
+    /** Largest read or write at once, also the largest temporary buffer of the channel. */
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_BUFFER_SIZE = 1024;
+    
+    private final SocketChannel channel;
+    
+    private final Input input;
+    private final Output output;
+    
+    private volatile boolean inputShutdown = false;
+    private volatile boolean outputShutdown = false;
+    
+    /**
+     * Connects to the given address.
+     * 
+     * @param address an InetSocketAddress or UnixDomainSocketAddress
+     */
+    static ChannelTransport connect(SocketAddress address) throws IOException {
+        return new ChannelTransport(SocketChannel.open(address));
+    }
+    
+    ChannelTransport(SocketChannel channel) throws IOException {
+        assert channel != null : "null channel";
+        
+        this.channel = channel;
+        channel.configureBlocking(true);
+        
+        input = new Input();
+        output = new Output();
+    }
+    
+    SocketChannel getChannel() {
+        return channel;
+    }
+    
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+    
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+    
+    @Override
+    public void shutdownInput() throws IOException {
+        channel.shutdownInput();
+        inputShutdown = true;
+    }
+    
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+        outputShutdown = true;
+    }
+    
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+    
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+    
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    @Override
+    public SocketAddress getLocalAddress() {
+        try {
+            return channel.getLocalAddress();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+    
+    @Override
+    public SocketAddress getRemoteAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+    
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return channel.supportedOptions();
+    }
+
+    @Override
+    public <T> void setOption(SocketOption<T> name, T value) throws IOException {
+        channel.setOption(name, value);
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        return channel.getOption(name);
+    }
+
+//  ############################################################################
+    
+    private class Input extends InputStream {
+        
+        /** The array last read into, usually the receive buffer of the connection. */
+        private byte[] array = null;
+        private ByteBuffer wrapper = null;
+        private final byte[] single = new byte[1];
+        
+        @Override
+        public int read() throws IOException {
+            int n;
+            do {
+                n = read(single, 0, 1);
+            } while (n == 0);
+            return (n == -1) ? -1 : single[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (b != array) {
+                array = b;
+                wrapper = ByteBuffer.wrap(b);
+            }
+            wrapper.clear();
+            wrapper.position(off).limit(off + Math.min(len, MAX_BUFFER_SIZE));
+            return channel.read(wrapper);  // block
+        }
+    }
+    
+//  ============================================================================
+    
+    private class Output extends OutputStream {
+        
+        // guarded by this
+        private ByteBuffer buffer = null;
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (buffer == null || (buffer.capacity() < len && buffer.capacity() < MAX_BUFFER_SIZE)) {
+                buffer = ByteBuffer.allocateDirect(bufferSize(len));
+            }
+            while (len > 0) {
+                int n = Math.min(len, buffer.capacity());
+                buffer.clear();
+                buffer.put(b, off, n);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                off += n;
+                len -= n;
+            }
+        }
+        
+        /**
+         * Returns the power of two holding the write, within the buffer limits.
+         */
+        private int bufferSize(int len) {
+            if (len >= MAX_BUFFER_SIZE)
+                return MAX_BUFFER_SIZE;
+            int size = MIN_BUFFER_SIZE;
+            while (size < len) {
+                size <<= 1;
+            }
+            return size;
+        }
+    }
+}
@@ -1,12 +1,24 @@
 package cfh.tcp;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import cfh.tcp.Events.CallbackEvent;
+import cfh.tcp.Events.ReadEvent;
+import cfh.tcp.Events.WriteEvent;
 
 /**
  * TODO
@@ -19,27 +31,101 @@ public class Connection {
     public static String getRevision() {
         return Connection.class.getName() + " $Revision: 1.12 $";
     }
+
+    /** Initial size of the receive buffer, grown if a single read needs more. */
+    private static final int BUFFER_SIZE = 8192;
     
-    private final Socket socket;
+    /** Size of the length header of a frame. */
+    static final int HEADER_SIZE = 4;
+    /** Default maximum size of a received frame. */
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /** Highest priority of sent data, the lowest is 0. */
+    public static final int MAX_PRIORITY = 7;
+    /** Maximum size of a chunk of a frame. */
+    public static final int MAX_CHUNK_SIZE = 0x00FFFFFF;
+    /** Default maximum number of bytes waiting to be sent. */
+    public static final int MAX_QUEUED = 16 * 1024 * 1024;
+
+    // chunk header: flag, lane, last flag, 3 reserved bits, 24 bits length
+    private static final int CHUNK = 0x80000000;
+    private static final int LANE_SHIFT = 28;
+    private static final int LAST = 0x08000000;
+    private static final int RESERVED = 0x07000000;
+
+    private final Transport transport;
+    private final OutputStream output;
     private final List<ConnectionListener> listeners;
+    private final List<BufferListener> bufferListeners;
+    private final List<BatchListener> batchListeners;
+    private volatile ConnectionListener closeListener = null;
+    private final List<Runnable> stopHooks;
 
     private final Receiver receiver;
+    private final Sender sender;
 
-    public Connection(String host, int port) throws IOException {
-        socket = new Socket(host, port);
+    private volatile CallbackMonitor monitor = null;
+    private volatile Tracer tracer = null;
+    private volatile SocketPolicy.Tuning tuning = null;
 
-        listeners = new ArrayList<ConnectionListener>();
-        receiver = new Receiver(socket);
+    private volatile RateLimit inboundLimit = null;
+    private volatile RateLimit outboundLimit = null;
+    private volatile RateLimit globalInboundLimit = null;
+    private volatile RateLimit globalOutboundLimit = null;
+
+    private boolean framed = false;
+    private int maxFrameSize = MAX_FRAME_SIZE;
+    private volatile int chunkSize = 0;
+    private volatile int maxQueued = MAX_QUEUED;
+    private BufferPool bufferPool = null;
+
+    public Connection(String host, int port) throws IOException {
+        this(ChannelTransport.connect(new InetSocketAddress(host, port)));
 }
-    
+
+    /**
+     * Creates a new Connection to the given address.
+     * 
+     * <P>The address may be an {@link InetSocketAddress} for TCP or an
+     * {@link java.net.UnixDomainSocketAddress} for a Unix domain socket,
+     * the connection behaves the same in both cases.
+     * 
+     * @param address the address to connect to
+     * @throws IOException if an I/O error occurs when connecting
+     */
+    public Connection(SocketAddress address) throws IOException {
+        this(ChannelTransport.connect(address));
+    }
+
     Connection(Socket socket) throws IOException {
-        if (socket == null)
-            throw new IllegalArgumentException("socket must not be null");
+        this(new SocketTransport(checkNotNull(socket)));
+    }
+
+    /**
+     * Creates a new Connection over the given transport.
+     * 
+     * @param transport a connected transport
+     * @throws IOException if an I/O error occurs when getting the streams
+     */
+    public Connection(Transport transport) throws IOException {
+        if (transport == null)
+            throw new IllegalArgumentException("transport must not be null");
         
-        this.socket = socket;
+        this.transport = transport;
+        output = transport.getOutputStream();
 
-        listeners = new ArrayList<ConnectionListener>();
-        receiver = new Receiver(socket);
+        listeners = new CopyOnWriteArrayList<ConnectionListener>();
+        bufferListeners = new CopyOnWriteArrayList<BufferListener>();
+        batchListeners = new CopyOnWriteArrayList<BatchListener>();
+        stopHooks = new CopyOnWriteArrayList<Runnable>();
+        receiver = new Receiver(transport);
+        sender = new Sender();
+    }
+    
+    private static Socket checkNotNull(Socket socket) {
+        if (socket == null)
+            throw new IllegalArgumentException("socket must not be null");
+        return socket;
     }
 
     public void start() {
@@ -47,151 +133,1397 @@ public class Connection {
     }
 
     public void stop() throws IOException {
-        receiver.stop();
+        try {
+            receiver.stop();
+            sender.close();
+        } finally {
+            for (Runnable hook : stopHooks) {
+                hook.run();
+            }
+        }
     }
     
     public void close() throws IOException {
         stop();
-        socket.close();
+        transport.close();
+    }
+
+    /**
+     * Sets if the data is sent and received in frames.
+     * 
+     * <P>Each frame is preceded by its length, 4 bytes in big-endian
+     * order. {@link #sendData(byte[])} sends one frame and every frame
+     * received is passed complete and on its own to
+     * {@link ConnectionListener#receivedData(Connection, byte[])}.
+     * Unframed, the data is passed on as it is read.
+     * 
+     * <P>Both sides must use the same setting, it must be set before the
+     * connection is started.
+     * 
+     * @param framed <code>true</code> to use frames
+     */
+    public void setFramed(boolean framed) {
+        receiver.checkNotStarted();
+        this.framed = framed;
+    }
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * Sets the maximum size of received frames, larger frames are handled
+     * as an error and shut down the connection.
+     * 
+     * @param size maximum frame size in bytes
+     */
+    public void setMaxFrameSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("size must not be negative: " + size);
+        maxFrameSize = size;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the size of the chunks large frames are sent in.
+     * 
+     * <P>A chunked frame can be interrupted at each chunk by data of a
+     * higher priority, see {@link #sendData(byte[], int)}. The receiver
+     * joins the chunks, so chunked frames are received like whole ones,
+     * but the peer must support chunks. Only used if framed.
+     * 
+     * @param size the maximum size of a chunk, 0 to send whole frames
+     */
+    public void setChunkSize(int size) {
+        if (size < 0 || size > MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("size must be between 0 and " + MAX_CHUNK_SIZE + ": " + size);
+        chunkSize = size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the maximum number of bytes waiting to be sent, further calls to
+     * {@link #sendData(byte[], int)} wait until the queue has room again.
+     * Data sent from a <code>sentData</code> callback by the thread writing
+     * the queue is always queued, that thread would wait for itself.
+     * 
+     * @param bytes the maximum number of queued bytes
+     */
+    public void setMaxQueued(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("bytes must not be negative: " + bytes);
+        maxQueued = bytes;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Sets the pool the receive buffer is taken from, the connection is
+     * shut down if the pool has no memory left.
+     * 
+     * <P>Frames are received into the pool too while the connection only
+     * has {@link BufferListener}s, the {@link ConnectionListener}s get
+     * arrays of their own. A frame larger than the largest buffer of the
+     * pool shuts the connection down. Must be set before the connection
+     * is started.
+     * 
+     * @param pool a heap pool, <code>null</code> to allocate the buffers
+     */
+    public void setBufferPool(BufferPool pool) {
+        if (pool != null && pool.isDirect())
+            throw new IllegalArgumentException("pool must not be direct");
+        receiver.checkNotStarted();
+        bufferPool = pool;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
 
+    /**
+     * Returns the number of bytes waiting in memory to be sent.
+     */
+    public long getQueued() {
+        return sender.getQueued();
+    }
+
+    /**
+     * Waits until the queued and spilled data is written.
+     * 
+     * @param deadline the end of the wait, a value of <code>System.nanoTime()</code>
+     * @return <code>true</code> if all data was written, <code>false</code>
+     *         at the deadline or if the connection was stopped meanwhile
+     */
+    boolean awaitSent(long deadline) throws InterruptedException {
+        return sender.awaitSent(deadline);
+    }
+
+    /**
+     * Waits for the receiving thread to end, after the connection was stopped.
+     */
+    void join() throws InterruptedException {
+        receiver.join();
+    }
+
+    /**
+     * Sets a file to spill the sent data to while the peer does not keep up.
+     * 
+     * <P>With a spill file, {@link #sendData(byte[], int)} does not wait:
+     * a thread of the connection writes the queued data. Once
+     * {@link #getMaxQueued()} bytes are waiting in memory, further data of
+     * priority 0 is appended to a memory-mapped file and read back in order
+     * when the peer catches up; data of higher priorities is kept in memory.
+     * If the file would grow over its quota, the data is dropped, the
+     * connection is stopped and the listeners get an exception.
+     * 
+     * <P>Must be set before the connection is started or data is sent.
+     * 
+     * @param directory the directory to create the file in when first needed
+     * @param quota the maximum size of the file in bytes
+     */
+    public void setSpill(Path directory, int quota) {
+        if (directory == null)
+            throw new IllegalArgumentException("directory must not be null");
+        if (quota <= HEADER_SIZE)
+            throw new IllegalArgumentException("quota must be greater than " + HEADER_SIZE + ": " + quota);
+        receiver.checkNotStarted();
+        sender.setSpill(new SpillFile(directory, quota));
+    }
+
+    /**
+     * Returns the number of bytes in the spill file, including the length
+     * of each message.
+     */
+    public long getSpilled() {
+        return sender.getSpilled();
+    }
+
+    /**
+     * Sends the data with the lowest priority.
+     * 
+     * @see #sendData(byte[], int)
+     */
     public void sendData(byte[] data) throws IOException {
+        sendData(data, 0);
+    }
+
+    /**
+     * Sends the data with the given priority.
+     * 
+     * <P>Data sent while another thread is writing is queued, one lane
+     * per priority, and written by that thread: the lane with the highest
+     * priority first, in order within a lane. Large frames are split into
+     * chunks if a chunk size is set, so data with a higher priority can be
+     * sent between two chunks instead of waiting for the whole frame.
+     * 
+     * @param data the data to send
+     * @param priority between 0 and {@link #MAX_PRIORITY}, higher is sent first
+     */
+    public void sendData(byte[] data, int priority) throws IOException {
         if (data == null)
             throw new IllegalArgumentException("data must not be null");
+        if (priority < 0 || priority > MAX_PRIORITY)
+            throw new IllegalArgumentException("priority must be between 0 and " + MAX_PRIORITY + ": " + priority);
         
-        socket.getOutputStream().write(data);
-        
-        synchronized (listeners) {
-            for (ConnectionListener listener : listeners) {
-                listener.sentData(Connection.this, data);
-            }
-        }
+        Tracer tracer = this.tracer;
+        long start = (tracer != null && tracer.sample()) ? System.nanoTime() : 0;
+        sender.send(data, priority, start);
     }
     
+    /**
+     * Returns the local port, -1 if not connected over TCP.
+     */
     public int getLocalPort() {
-        return socket.getLocalPort();
+        return port(transport.getLocalAddress());
     }
     
+    /**
+     * Returns the remote port, -1 if not connected over TCP.
+     */
     public int getRemotePort() {
-        return socket.getPort();
+        return port(transport.getRemoteAddress());
+    }
+
+    public SocketAddress getLocalAddress() {
+        return transport.getLocalAddress();
     }
     
     public SocketAddress getRemoteAddress() {
-        return socket.getRemoteSocketAddress();
+        return transport.getRemoteAddress();
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Hands the connection over to a {@link Relay}, it can then no longer be started.
+     */
+    void relay() {
+        receiver.relay();
+    }
+
+    boolean isRelayed() {
+        return receiver.relayed;
+    }
+
+    static int port(SocketAddress address) {
+        return (address instanceof InetSocketAddress) ? ((InetSocketAddress) address).getPort() : -1;
     }
     
     public void addListener(ConnectionListener listener) {
-        synchronized (listeners) {
-            listeners.add(listener);
-        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Sets the listener told of the shutdown before the other listeners,
+     * used by the server. It is not counted as a listener of the data, so
+     * it does not turn off receiving without copy.
+     */
+    void setCloseListener(ConnectionListener listener) {
+        closeListener = listener;
+    }
+
+    /**
+     * Adds a hook run when the connection is stopped, to wake a listener
+     * holding the receiving thread, so the thread can end.
+     */
+    void addStopHook(Runnable hook) {
+        stopHooks.add(hook);
+    }
+
+    /**
+     * Adds a listener getting the data without copy.
+     * 
+     * @see BufferListener
+     */
+    public void addBufferListener(BufferListener listener) {
+        bufferListeners.add(listener);
+    }
+
+    public void removeBufferListener(BufferListener listener) {
+        bufferListeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener getting all frames of a read in one call.
+     * 
+     * @see BatchListener
+     */
+    public void addBatchListener(BatchListener listener) {
+        batchListeners.add(listener);
+    }
+
+    public void removeBatchListener(BatchListener listener) {
+        batchListeners.remove(listener);
+    }
+
+    /**
+     * Returns a copy of the data passed to a {@link BufferListener}, to be
+     * kept after the call. The position of <code>data</code> is not changed.
+     * 
+     * @param data the data, between position and limit
+     * @return a new buffer with the data, between 0 and its limit
+     */
+    public static ByteBuffer retain(ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        return copy;
     }
 
     public void removeListener(ConnectionListener listener) {
-        synchronized (listeners) {
-            listeners.remove(listener);
+        synchronized (listeners) {  // in sync with moving listeners to an async lane
+            if (!listeners.remove(listener)) {
+                for (ConnectionListener l : listeners) {
+                    if (CallbackMonitor.unwrap(l) == listener) {
+                        listeners.remove(l);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the monitor timing the listener callbacks.
+     *
+     * @param monitor the monitor, <code>null</code> to stop timing
+     */
+    public void setCallbackMonitor(CallbackMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    public CallbackMonitor getCallbackMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Sets the tracer timing the stages of sampled messages.
+     *
+     * @param tracer the tracer, <code>null</code> to stop tracing
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Sets the socket options of the connection and adapts them to its
+     * traffic, see {@link SocketPolicy}.
+     *
+     * @param policy the policy, <code>null</code> to stop adapting
+     */
+    public void setSocketPolicy(SocketPolicy policy) {
+        tuning = (policy != null) ? policy.tune(this) : null;
+    }
+
+    /**
+     * Returns the current socket options and the traffic they were adapted to.
+     *
+     * @return the tuning, <code>null</code> if no policy is set
+     */
+    public SocketPolicy.Tuning getSocketTuning() {
+        return tuning;
+    }
+
+    /**
+     * Sets the limit for the received data, the receiver pauses when it is exceeded.
+     *
+     * @param limit the limit, <code>null</code> for none
+     * @see RateLimit
+     */
+    public void setInboundLimit(RateLimit limit) {
+        inboundLimit = limit;
+    }
+
+    public RateLimit getInboundLimit() {
+        return inboundLimit;
+    }
+
+    /**
+     * Sets the limit for the sent data, the writer pauses when it is exceeded.
+     * 
+     * <P>While an outbound limit is set, a thread of the connection writes
+     * the sent data, so {@link #sendData(byte[])} does not wait for the
+     * limit and a thread sending to many connections is not held up by a
+     * limited one; it only waits while {@link #getMaxQueued()} bytes are
+     * queued.
+     *
+     * @param limit the limit, <code>null</code> for none
+     * @see RateLimit
+     */
+    public void setOutboundLimit(RateLimit limit) {
+        outboundLimit = limit;
+    }
+
+    public RateLimit getOutboundLimit() {
+        return outboundLimit;
+    }
+
+    /**
+     * Sets the limits shared with the other connections of the server.
+     */
+    void setGlobalLimits(RateLimit inbound, RateLimit outbound) {
+        globalInboundLimit = inbound;
+        globalOutboundLimit = outbound;
+    }
+
+    private boolean isPaced() {
+        return outboundLimit != null || globalOutboundLimit != null;
+    }
+
+    private void pace(RateLimit limit, RateLimit global, String queue, long count, int messages)
+            throws InterruptedIOException {
+        if (limit != null) {
+            limit.acquire(this, queue, count, messages);
+        }
+        if (global != null) {
+            global.acquire(this, queue, count, messages);
+        }
+    }
+
+    // the listener list is copy-on-write: iterating works on a snapshot,
+    // so listeners may change the list while being called without a copy per event
+
+    void fireStarted() {
+        CallbackMonitor monitor = this.monitor;
+        for (ConnectionListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.started(this);
+            called(listener, "started", event, monitor, start);
+        }
+        for (BufferListener listener : bufferListeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.started(this);
+            called(listener, "started", event, monitor, start);
+        }
+    }
+
+    private void fireSentData(byte[] data) {
+        CallbackMonitor monitor = this.monitor;
+        for (ConnectionListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.sentData(this, data);
+            called(listener, "sentData", event, monitor, start);
+        }
+        if (!bufferListeners.isEmpty()) {
+            ByteBuffer buffer = ByteBuffer.wrap(data).asReadOnlyBuffer();
+            for (BufferListener listener : bufferListeners) {
+                CallbackEvent event = Events.beginCallback();
+                long start = (monitor != null) ? System.nanoTime() : 0;
+                buffer.clear();
+                listener.sentData(this, buffer);
+                called(listener, "sentData", event, monitor, start);
+            }
+        }
+    }
+
+    private void fireReceivedData(byte[] data) {
+        CallbackMonitor monitor = this.monitor;
+        for (ConnectionListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.receivedData(this, data);
+            called(listener, "receivedData", event, monitor, start);
+        }
+    }
+
+    /**
+     * Passes the data between <code>offset</code> and <code>offset + length</code>
+     * of the read-only <code>buffer</code> to the buffer listeners.
+     */
+    private void fireReceivedData(ByteBuffer buffer, int offset, int length) {
+        CallbackMonitor monitor = this.monitor;
+        for (BufferListener listener : bufferListeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            buffer.clear();
+            buffer.position(offset).limit(offset + length);  // reset, the previous listener may have read
+            listener.receivedData(this, buffer);
+            called(listener, "receivedData", event, monitor, start);
+        }
+    }
+
+    private void fireReceivedBatch(List<byte[]> frames) {
+        CallbackMonitor monitor = this.monitor;
+        for (BatchListener listener : batchListeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.receivedBatch(this, frames);
+            if (monitor != null) {
+                monitor.check(listener, "receivedBatch", start);  // not moved, see BatchListener
+            }
+            if (event != null) {
+                event.finish(listener, "receivedBatch", this);
+            }
+        }
+    }
+
+    void fireShutdown() {
+        ConnectionListener closeListener = this.closeListener;
+        if (closeListener != null) {
+            closeListener.shutdown(this);
+        }
+        CallbackMonitor monitor = this.monitor;
+        for (ConnectionListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.shutdown(this);
+            called(listener, "shutdown", event, monitor, start);
+        }
+        for (BufferListener listener : bufferListeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.shutdown(this);
+            called(listener, "shutdown", event, monitor, start);
+        }
+    }
+
+    void fireException(Exception ex) {
+        CallbackMonitor monitor = this.monitor;
+        for (ConnectionListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.handleException(this, ex);
+            called(listener, "handleException", event, monitor, start);
+        }
+        for (BufferListener listener : bufferListeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.handleException(this, ex);
+            called(listener, "handleException", event, monitor, start);
         }
     }
+
+    private void called(ConnectionListener listener, String callback, CallbackEvent event,
+            CallbackMonitor monitor, long start) {
+        if (monitor != null && monitor.check(listener, callback, start)) {
+            synchronized (listeners) {
+                int index = listeners.indexOf(listener);
+                if (index != -1) {
+                    listeners.set(index, monitor.async(listener));
+                }
+            }
+        }
+        if (event != null) {
+            event.finish(listener, callback, this);
+        }
+    }
+
+    private void called(BufferListener listener, String callback, CallbackEvent event,
+            CallbackMonitor monitor, long start) {
+        if (monitor != null) {
+            monitor.check(listener, callback, start);  // not moved, the buffer is only valid during the call
+        }
+        if (event != null) {
+            event.finish(listener, callback, this);
+        }
+    }
+
     
     
+    static void putLength(byte[] header, int length) {
+        header[0] = (byte) (length >>> 24);
+        header[1] = (byte) (length >>> 16);
+        header[2] = (byte) (length >>> 8);
+        header[3] = (byte) length;
+    }
+
+    static int getLength(byte[] header) {
+        return ((header[0] & 0xFF) << 24)
+             | ((header[1] & 0xFF) << 16)
+             | ((header[2] & 0xFF) << 8)
+             | (header[3] & 0xFF);
+    }
+
+
     private class Receiver implements Runnable {
 
         private final InputStream input;
 
         private Thread thread = null;
-        private boolean shutdown = false;
+        private volatile boolean shutdown = false;
+        private volatile boolean relayed = false;
         
-        private final ByteArrayOutputStream buffer;
+        /** Reused for every read, only the delivered data is copied. */
+        private byte[] buffer = null;
+        /** The buffers taken from the pool, <code>null</code> if not pooled. */
+        private ByteBuffer pooledBuffer = null;
+        private ByteBuffer pooledFrame = null;
+        /** Read-only view of the buffer for the buffer listeners, created when needed. */
+        private ByteBuffer view = null;
+        /** End of the last read if tracing, else 0. */
+        private long readTime = 0;
+        /** Frames of the current read for the batch listeners, <code>null</code> if none. */
+        private List<byte[]> batch = null;
 
-        Receiver(Socket socket) throws IOException {
-            assert socket != null : "null socket";
+        // decoding state if framed
+        private final byte[] header = new byte[HEADER_SIZE];
+        private int headerCount = 0;
+        private byte[] frame = null;
+        private int frameCount = 0;
+        private int frameEnd = 0;
+        private int chunkLane = -1;
+        private boolean chunkLast = false;
+        /** Chunks received so far of each lane. */
+        private final byte[][] partials = new byte[MAX_PRIORITY + 1][];
+        private final int[] partialCounts = new int[MAX_PRIORITY + 1];
+        
+        Receiver(Transport transport) throws IOException {
+            assert transport != null : "null transport";
             
-            input = socket.getInputStream();
-            buffer = new ByteArrayOutputStream(128);
+            input = transport.getInputStream();
+        }
+        
+        synchronized void checkNotStarted() {
+            if (thread != null)
+                throw new IllegalStateException("already started");
+            if (relayed)
+                throw new IllegalStateException("relayed");
+        }
+        
+        synchronized void relay() {
+            checkNotStarted();
+            relayed = true;
         }
 
         synchronized void start() {
+            if (relayed)
+                throw new IllegalStateException("relayed");
             if (shutdown)
                 new IllegalStateException("can only be started once");
             if (thread == null) {
                 thread = new Thread(this);
                 thread.setDaemon(true);
-                thread.setName("Receiver: " + socket.getPort());
+                int port = getRemotePort();
+                thread.setName("Receiver: " + (port != -1 ? port : getRemoteAddress()));
             }
             thread.start();
         }
+        
+        void join() throws InterruptedException {
+            Thread t;
+            synchronized (this) {
+                t = thread;
+            }
+            if (t != null) {
+                t.join();
+            }
+        }
 
         synchronized void stop() throws IOException {
             shutdown = true;
-            if (!socket.isOutputShutdown()) {
-                socket.shutdownOutput();
-            }
-            if (!socket.isInputShutdown()) {
-                socket.shutdownInput();
+            try {
+                if (!transport.isOutputShutdown()) {
+                    transport.shutdownOutput();
+                }
+                if (!transport.isInputShutdown()) {
+                    transport.shutdownInput();  // the blocked read returns the end of stream
+                }
+            } catch (IOException ex) {
+                if (!transport.isClosed())
+                    throw ex;
+                // else already closed, by the receiver when the peer closed
             }
-            thread.interrupt();
         }
 
         @Override
         public void run() {
-            List<ConnectionListener> copy;  // to allow list changes in the listener
-            
-            synchronized (listeners) {
-                copy = new ArrayList<ConnectionListener>(listeners);
-            }
-            for (ConnectionListener listener : copy) {
-                listener.started(Connection.this);
-            }
+            Events.started(Connection.this, getLocalPort());
+            fireStarted();
+            Exception exception = null;
             try {
+                allocate((bufferPool != null) ? Math.min(BUFFER_SIZE, bufferPool.getMaxSize()) : BUFFER_SIZE);
                 while (!shutdown) {
-                    byte[] data = readData();
-                    if (data.length == 0) {
+                    int count = readData();
+                    if (count == 0) {
                         break;
                     }
-                    synchronized (listeners) {
-                        copy = new ArrayList<ConnectionListener>(listeners);
-                    }
-                    for (ConnectionListener listener : copy) {
-                        listener.receivedData(Connection.this, data);
+                    long decoded = framed ? 0 : decoded();
+                    pace(inboundLimit, globalInboundLimit, "inbound", count, framed ? 0 : 1);
+                    if (framed) {
+                        decodeFrames(count);
+                    } else {
+                        long dispatched = dispatched(decoded);
+                        byte[] data = null;
+                        if (!listeners.isEmpty()) {
+                            data = Arrays.copyOf(buffer, count);
+                            fireReceivedData(data);
+                        }
+                        if (!bufferListeners.isEmpty()) {
+                            fireReceivedData(view(), 0, count);
+                        }
+                        if (!batchListeners.isEmpty()) {
+                            batched((data != null) ? data : Arrays.copyOf(buffer, count));
+                        }
+                        delivered(decoded, dispatched);
                     }
+                    fireBatch();
                 }
             } catch (IOException ex) {
-                synchronized (listeners) {
-                    copy = new ArrayList<ConnectionListener>(listeners);
-                }
-                for (ConnectionListener listener : copy) {
-                    listener.handleException(Connection.this, ex);
-                }
+                exception = ex;
+                fireBatch();  // the frames decoded before the error
+                fireException(ex);
             } finally {
                 shutdown = true;
-                synchronized (listeners) {
-                    copy = new ArrayList<ConnectionListener>(listeners);
-                }
-                for (ConnectionListener listener : copy) {
-                    listener.shutdown(Connection.this);
-                }
+                releaseBuffers();
+                sender.close();
+                Events.shutdown(Connection.this, getLocalPort(), exception);
+                fireShutdown();
                 try {
-                    socket.close();
+                    transport.close();
                 } catch (IOException ex) {
-                    synchronized (listeners) {
-                        copy = new ArrayList<ConnectionListener>(listeners);
+                    fireException(ex);
+                }
+            }
+        }
+        
+        /**
+         * Decodes the frames in the buffer, passing each complete one to
+         * the listeners. Incomplete frames are completed by the next reads.
+         */
+        private void decodeFrames(int count) throws IOException {
+            int pos = 0;
+            while (pos < count) {
+                if (frame == null) {
+                    while (headerCount < HEADER_SIZE && pos < count) {
+                        header[headerCount++] = buffer[pos++];
                     }
-                    for (ConnectionListener listener : copy) {
-                        listener.handleException(Connection.this, ex);
+                    if (headerCount < HEADER_SIZE)
+                        break;
+                    headerCount = 0;
+                    int length = getLength(header);
+                    if (listeners.isEmpty() && batchListeners.isEmpty() && (length & CHUNK) == 0
+                            && length <= maxFrameSize && length <= count - pos) {
+                        // only buffer listeners and the whole frame was read, no copy
+                        long decoded = decoded();
+                        pace(inboundLimit, globalInboundLimit, "inbound", 0, 1);
+                        long dispatched = dispatched(decoded);
+                        fireReceivedData(view(), pos, length);
+                        delivered(decoded, dispatched);
+                        pos += length;
+                        continue;
+                    }
+                    startFrame(length);
+                }
+                int n = Math.min(frameEnd - frameCount, count - pos);
+                System.arraycopy(buffer, pos, frame, frameCount, n);
+                pos += n;
+                frameCount += n;
+                if (frameCount == frameEnd) {
+                    byte[] data = endFrame();
+                    if (data != null) {
+                        int length = frameEnd;
+                        long decoded = decoded();
+                        pace(inboundLimit, globalInboundLimit, "inbound", 0, 1);
+                        long dispatched = dispatched(decoded);
+                        // a pooled frame is released below, listeners added meanwhile get a copy
+                        boolean own = pooledFrame == null && length == data.length;
+                        byte[] copy = null;
+                        if (!listeners.isEmpty()) {
+                            copy = own ? data : Arrays.copyOf(data, length);
+                            fireReceivedData(copy);
+                        }
+                        if (!bufferListeners.isEmpty()) {
+                            fireReceivedData(ByteBuffer.wrap(data).asReadOnlyBuffer(), 0, length);
+                        }
+                        if (!batchListeners.isEmpty()) {
+                            if (copy == null) {
+                                copy = own ? data : Arrays.copyOf(data, length);
+                            }
+                            batched(copy);
+                        }
+                        delivered(decoded, dispatched);
+                        if (pooledFrame != null) {
+                            bufferPool.release(pooledFrame);
+                            pooledFrame = null;
+                        }
                     }
                 }
             }
         }
+        
+        /**
+         * Samples a decoded message for tracing.
+         * 
+         * @return the current time if traced, else 0
+         */
+        private long decoded() {
+            Tracer tracer = Connection.this.tracer;
+            return (readTime != 0 && tracer != null && tracer.sample()) ? System.nanoTime() : 0;
+        }
+        
+        private long dispatched(long decoded) {
+            return (decoded != 0) ? System.nanoTime() : 0;
+        }
+        
+        /**
+         * Records the stages of a traced message, after the listeners returned.
+         */
+        private void delivered(long decoded, long dispatched) {
+            Tracer tracer = Connection.this.tracer;
+            if (decoded != 0 && tracer != null) {
+                tracer.received(readTime, decoded, dispatched, System.nanoTime());
+            }
+        }
+        
+        private void batched(byte[] frame) {
+            if (batch == null) {
+                batch = new ArrayList<byte[]>();
+            }
+            batch.add(frame);
+        }
+        
+        /**
+         * Passes the frames of the read to the batch listeners.
+         */
+        private void fireBatch() {
+            if (batch != null) {
+                List<byte[]> frames = batch;
+                batch = null;
+                fireReceivedBatch(frames);
+            }
+        }
+        
+        private ByteBuffer view() {
+            if (view == null) {
+                view = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+            }
+            return view;
+        }
+        
+        /**
+         * Prepares the frame buffer for a frame or chunk.
+         * 
+         * @param header the length of a frame or the header of a chunk
+         */
+        private void startFrame(int header) throws IOException {
+            if ((header & CHUNK) == 0) {
+                if (header > maxFrameSize)
+                    throw new IOException("invalid frame size: " + header);
+                if (bufferPool != null && header > bufferPool.getMaxSize())
+                    throw new IOException("frame size exceeds the buffer pool: " + header);
+                chunkLane = -1;
+                if (bufferPool != null && listeners.isEmpty() && batchListeners.isEmpty()) {
+                    pooledFrame = bufferPool.acquire(header);
+                    frame = pooledFrame.array();
+                } else {
+                    frame = new byte[header];
+                }
+                frameCount = 0;
+                frameEnd = header;
+            } else {
+                if ((header & RESERVED) != 0)
+                    throw new IOException("invalid chunk header: " + Integer.toHexString(header));
+                int lane = (header >>> LANE_SHIFT) & MAX_PRIORITY;
+                int length = header & MAX_CHUNK_SIZE;
+                int partialCount = partialCounts[lane];
+                if (partialCount + length > maxFrameSize)
+                    throw new IOException("invalid frame size: " + (partialCount + length));
+                byte[] partial = partials[lane];
+                if (partial == null) {
+                    partial = new byte[length];
+                } else if (partialCount + length > partial.length) {
+                    partial = Arrays.copyOf(partial, Math.min(
+                            Math.max(2 * partial.length, partialCount + length), maxFrameSize));
+                }
+                chunkLane = lane;
+                chunkLast = (header & LAST) != 0;
+                frame = partial;
+                frameCount = partialCount;
+                frameEnd = partialCount + length;
+            }
+        }
+        
+        /**
+         * Ends the frame or chunk being received.
+         * 
+         * @return the complete frame, <code>null</code> if more chunks follow
+         */
+        private byte[] endFrame() {
+            byte[] data = frame;
+            frame = null;
+            if (chunkLane == -1)
+                return data;
+            if (!chunkLast) {
+                partials[chunkLane] = data;
+                partialCounts[chunkLane] = frameEnd;
+                return null;
+            }
+            partials[chunkLane] = null;
+            partialCounts[chunkLane] = 0;
+            return (frameEnd == data.length) ? data : Arrays.copyOf(data, frameEnd);
+        }
 
-        private byte[] readData() throws IOException {
-            buffer.reset();
-            do {
-                int b = input.read();  // block
-                if (b == -1) {
+        /**
+         * Allocates the receive buffer, from the pool if set.
+         */
+        private void allocate(int size) throws IOException {
+            if (bufferPool != null) {
+                pooledBuffer = bufferPool.acquire(size);
+                buffer = pooledBuffer.array();
+            } else {
+                buffer = new byte[size];
+            }
+            view = null;
+        }
+        
+        /**
+         * Replaces the receive buffer by a larger one, keeping the data read.
+         */
+        private void grow(int count, int size) throws IOException {
+            if (bufferPool != null) {
+                byte[] old = buffer;
+                ByteBuffer oldPooled = pooledBuffer;
+                allocate(size);
+                System.arraycopy(old, 0, buffer, 0, count);
+                bufferPool.release(oldPooled);
+            } else {
+                buffer = Arrays.copyOf(buffer, size);
+                view = null;
+            }
+        }
+        
+        private void releaseBuffers() {
+            if (pooledBuffer != null) {
+                bufferPool.release(pooledBuffer);
+                pooledBuffer = null;
+            }
+            if (pooledFrame != null) {
+                bufferPool.release(pooledFrame);
+                pooledFrame = null;
+            }
+        }
+        
+        /**
+         * Reads all data available into the buffer, blocking only for the first byte.
+         *
+         * @return the number of bytes read, 0 at end of stream
+         */
+        private int readData() throws IOException {
+            ReadEvent event = Events.beginRead();
+            int count = input.read(buffer, 0, buffer.length);  // block
+            if (count == -1) {
+                return 0;
+            }
+            int available;
+            while ((available = input.available()) > 0) {  // don't block
+                if (count + available > buffer.length) {
+                    int size = Math.max(2 * buffer.length, count + available);
+                    if (bufferPool != null) {
+                        size = Math.min(size, bufferPool.getMaxSize());
+                    }
+                    if (size > buffer.length) {
+                        grow(count, size);
+                    }
+                    available = Math.min(available, buffer.length - count);
+                    if (available == 0)
+                        break;  // the buffer is as large as the pool allows, the rest is read next time
+                }
+                int n = input.read(buffer, count, available);
+                if (n == -1) {
                     break;
                 }
-                buffer.write(b);
-            } while (input.available() > 0);  // don't block
-            return buffer.toByteArray();
+                count += n;
+            }
+            readTime = (tracer != null) ? System.nanoTime() : 0;
+            SocketPolicy.Tuning tuning = Connection.this.tuning;
+            if (tuning != null) {
+                tuning.received(count);
+            }
+            if (event != null) {
+                event.finish(Connection.this, count);
+            }
+            return count;
+        }
+    }
+
+
+//  ############################################################################
+
+    /**
+     * Writes the sent data, one thread at a time.
+     * 
+     * <P>A thread sending data while no other one is writing becomes the
+     * writer: it writes its data and then the data queued by other threads
+     * meanwhile. Data sent while a thread is writing is queued in the lane
+     * of its priority. The writer always continues with the highest lane
+     * that has data; chunked frames are written one chunk at a time, so a
+     * higher lane can interrupt them.
+     * 
+     * <P>With a spill file, a thread of the sender is always the writer.
+     * Data of the lowest lane that does not fit in memory is added to the
+     * file, and moved back to the lane as the queue empties. The thread is
+     * also started by the first data sent with an outbound limit, the
+     * writer pauses for the limit before each write.
+     */
+    private class Sender implements Runnable {
+
+        private final ArrayDeque<Message>[] lanes;
+        private final byte[] header = new byte[HEADER_SIZE];
+        
+        // guarded by this
+        private boolean writing = false;
+        private Thread writer = null;
+        private long queued = 0;
+        private SpillFile spill = null;
+        private Thread thread = null;
+        private boolean closed = false;
+        
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        Sender() {
+            lanes = new ArrayDeque[MAX_PRIORITY + 1];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new ArrayDeque<Message>();
+            }
+        }
+        
+        synchronized long getQueued() {
+            return queued;
+        }
+        
+        synchronized long getSpilled() {
+            return (spill == null) ? 0 : spill.size();
+        }
+        
+        synchronized void setSpill(SpillFile file) {
+            if (writing || thread != null || closed)
+                throw new IllegalStateException("data already sent or stopped");
+            spill = file;
+        }
+        
+        /**
+         * Sends or queues the data.
+         * 
+         * @param start the time <code>sendData</code> was called if traced, else 0
+         */
+        void send(byte[] data, int priority, long start) throws IOException {
+            int size = chunkSize;
+            boolean chunked = framed && size > 0 && data.length > size;
+            synchronized (this) {
+                if (spill != null || thread != null || (isPaced() && !writing)) {
+                    // a current writer drains the queue, the thread starts once it is done
+                    if (spill == null) {
+                        awaitRoom();
+                    }
+                    if (queue(data, priority, chunked ? size : 0, start))
+                        return;
+                    // else over quota
+                } else {
+                    if (writing) {
+                        awaitRoom();
+                    }
+                    if (writing || chunked) {
+                        lanes[priority].add(new Message(data, priority, chunked ? size : 0, start));
+                        queued += data.length;
+                        if (writing)
+                            return;  // written by the current writer
+                    }
+                    writing = true;
+                    writer = Thread.currentThread();
+                }
+            }
+            if (spill != null) {
+                overQuota();
+                return;
+            }
+            boolean drained = false;
+            try {
+                if (!chunked) {
+                    long writing = (start != 0) ? System.nanoTime() : 0;
+                    write(data);
+                    if (start != 0) {
+                        traceSent(start, writing, writing);
+                    }
+                    fireSentData(data);
+                }
+                drain();
+                drained = true;
+            } finally {
+                if (!drained) {
+                    discard();
+                }
+            }
+        }
+        
+        /**
+         * Queues the data for the sender thread, in memory or in the spill
+         * file; once data is spilled, the following data of the lowest lane
+         * is spilled too, to keep the order. Spilled data is not traced.
+         * Without a spill file, the caller waited for room in the queue.
+         * 
+         * @return <code>false</code> if the quota of the spill file is exceeded
+         */
+        private boolean queue(byte[] data, int priority, int size, long start) throws IOException {
+            if (closed)
+                throw new IOException("connection stopped");
+            if (spill != null && priority == 0 && (!spill.isEmpty() || queued + data.length > maxQueued)) {
+                boolean started = spill.isEmpty();
+                if (!spill.add(data))
+                    return false;
+                if (started) {
+                    Events.backpressure(Connection.this, "spill", true, spill.size());
+                }
+            } else {
+                lanes[priority].add(new Message(data, priority, size, start));
+                queued += data.length;
+            }
+            if (thread == null) {
+                thread = new Thread(this);
+                thread.setDaemon(true);
+                int port = getRemotePort();
+                thread.setName("Sender: " + (port != -1 ? port : getRemoteAddress()));
+                thread.start();
+            }
+            notifyAll();
+            return true;
+        }
+        
+        /**
+         * Stops the connection, the peer cannot catch up.
+         */
+        private void overQuota() throws IOException {
+            fireException(new IOException("spill quota exceeded, " + getSpilled() + " bytes spilled"));
+            Connection.this.stop();
+        }
+        
+        /**
+         * Writes the queued data with a spill file or limit, until closed.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Message message;
+                    synchronized (this) {
+                        while ((message = next()) == null) {
+                            if (closed)
+                                return;
+                            wait();
+                        }
+                    }
+                    writeNext(message);
+                }
+            } catch (InterruptedException ex) {
+                // closed
+            } catch (IOException ex) {
+                boolean stopped;
+                synchronized (this) {
+                    stopped = closed;
+                }
+                if (!stopped) {
+                    fireException(ex);
+                    try {
+                        Connection.this.stop();
+                    } catch (IOException ex2) {
+                        fireException(ex2);
+                    }
+                }
+            } finally {
+                close();
+            }
+        }
+        
+        /**
+         * Ends the sender thread, the queued and spilled data is dropped.
+         */
+        synchronized void close() {
+            closed = true;
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException ex) {
+                    fireException(ex);
+                }
+            }
+            if (spill != null || thread != null) {
+                for (ArrayDeque<Message> lane : lanes) {
+                    lane.clear();
+                }
+                queued = 0;
+            }
+            notifyAll();
+        }
+        
+        synchronized boolean awaitSent(long deadline) throws InterruptedException {
+            long remaining;
+            while (writing || queued > 0 || (spill != null && !spill.isEmpty())) {
+                if (closed || (remaining = deadline - System.nanoTime()) <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+        
+        /**
+         * Waits while the queue is full and another thread is writing. The
+         * writing thread itself, sending from a <code>sentData</code>
+         * callback, does not wait: it would wait for itself.
+         */
+        private void awaitRoom() throws IOException {
+            if (queued < maxQueued)
+                return;
+            Thread current = Thread.currentThread();
+            if (current == writer || current == thread)
+                return;
+            Events.backpressure(Connection.this, "outbound", true, queued);
+            try {
+                while ((writing || thread != null) && queued >= maxQueued) {
+                    if (closed)
+                        throw new IOException("connection stopped");
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while the outbound queue is full");
+            }
+            Events.backpressure(Connection.this, "outbound", false, queued);
+        }
+        
+        /**
+         * Writes the queued data until the queue is empty.
+         */
+        private void drain() throws IOException {
+            while (true) {
+                Message message;
+                synchronized (this) {
+                    message = next();
+                    if (message == null) {
+                        writing = false;
+                        writer = null;
+                        notifyAll();
+                        return;
+                    }
+                }
+                writeNext(message);
+            }
+        }
+        
+        /**
+         * Returns the message of the highest lane to be written next,
+         * refilling the lowest lane from the spill file.
+         * 
+         * @return the message, <code>null</code> if nothing is queued
+         */
+        private Message next() {
+            if (spill != null && !spill.isEmpty() && queued < maxQueued) {
+                int size = chunkSize;
+                while (!spill.isEmpty() && queued < maxQueued) {
+                    byte[] data = spill.poll();
+                    boolean chunked = framed && size > 0 && data.length > size;
+                    lanes[0].add(new Message(data, 0, chunked ? size : 0, 0));
+                    queued += data.length;
+                }
+                if (spill.isEmpty()) {
+                    Events.backpressure(Connection.this, "spill", false, 0);
+                }
+            }
+            Message message = null;
+            for (int lane = MAX_PRIORITY; lane >= 0 && message == null; lane--) {
+                message = lanes[lane].peek();
+            }
+            return message;
+        }
+        
+        /**
+         * Writes the message, or its next chunk, removing it from its lane
+         * when done.
+         */
+        private void writeNext(Message message) throws IOException {
+            if (isPaced()) {
+                int n = (message.chunkSize > 0)
+                        ? Math.min(message.data.length - message.offset, message.chunkSize)
+                        : message.data.length;
+                pace(outboundLimit, globalOutboundLimit, "outbound", n, (message.offset == 0) ? 1 : 0);
+            }
+            if (message.sendTime != 0 && message.writeTime == 0) {
+                message.writeTime = System.nanoTime();
+            }
+            int n;
+            boolean done;
+            if (message.chunkSize > 0) {
+                n = writeChunk(message);
+                done = message.offset == message.data.length;
+            } else {
+                write(message.data);
+                n = message.data.length;
+                done = true;
+            }
+            synchronized (this) {
+                if (lanes[message.priority].peek() != message)
+                    return;  // dropped by close
+                queued -= n;
+                if (done) {
+                    lanes[message.priority].poll();
+                }
+                notifyAll();
+            }
+            if (done) {
+                if (message.sendTime != 0) {
+                    traceSent(message.sendTime, message.queueTime, message.writeTime);
+                }
+                fireSentData(message.data);
+            }
+        }
+        
+        /**
+         * Records the stages of a traced message, after it was written.
+         */
+        private void traceSent(long start, long queueTime, long writeTime) {
+            Tracer tracer = Connection.this.tracer;
+            if (tracer != null) {
+                tracer.sent(start, queueTime, writeTime, System.nanoTime());
+            }
+        }
+        
+        /**
+         * Drops the queued data after an error, the connection is broken.
+         */
+        private synchronized void discard() {
+            for (ArrayDeque<Message> lane : lanes) {
+                lane.clear();
+            }
+            queued = 0;
+            writing = false;
+            writer = null;
+            notifyAll();
+        }
+        
+        private void write(byte[] data) throws IOException {
+            WriteEvent event = Events.beginWrite();
+            if (framed) {
+                putLength(header, data.length);
+                output.write(header);
+            }
+            output.write(data);
+            SocketPolicy.Tuning tuning = Connection.this.tuning;
+            if (tuning != null) {
+                tuning.sent(data.length);
+            }
+            if (event != null) {
+                event.finish(Connection.this, data.length);
+            }
+        }
+        
+        /**
+         * Writes the next chunk of the message.
+         * 
+         * @return the number of bytes of data written
+         */
+        private int writeChunk(Message message) throws IOException {
+            WriteEvent event = Events.beginWrite();
+            int n = Math.min(message.data.length - message.offset, message.chunkSize);
+            boolean last = message.offset + n == message.data.length;
+            putLength(header, CHUNK | (message.priority << LANE_SHIFT) | (last ? LAST : 0) | n);
+            output.write(header);
+            output.write(message.data, message.offset, n);
+            message.offset += n;
+            SocketPolicy.Tuning tuning = Connection.this.tuning;
+            if (tuning != null) {
+                tuning.sent(n);
+            }
+            if (event != null) {
+                event.finish(Connection.this, n);
+            }
+            return n;
+        }
+    }
+
+//  ============================================================================
+
+    private static class Message {
+
+        private final byte[] data;
+        private final int priority;
+        /** Size of the chunks, 0 if sent whole. */
+        private final int chunkSize;
+        private int offset = 0;
+        /** Times of the stages if traced, else 0. */
+        private final long sendTime;
+        private final long queueTime;
+        private long writeTime = 0;
+        
+        Message(byte[] data, int priority, int chunkSize, long sendTime) {
+            this.data = data;
+            this.priority = priority;
+            this.chunkSize = chunkSize;
+            this.sendTime = sendTime;
+            queueTime = (sendTime != 0) ? System.nanoTime() : 0;
         }
     }
 }
@@ -0,0 +1,334 @@
+package cfh.tcp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events emitted by the servers and connections.
+ *
+ * <P>The event classes are only touched once the Flight Recorder is
+ * initialized, loading the first event class would otherwise initialize
+ * it. An event is only created if it is enabled in a running recording:
+ * the <code>begin</code> methods return <code>null</code> otherwise,
+ * so the instrumentation costs a few static reads and no allocation
+ * while nothing is recording and can stay enabled in production.
+ *
+ * <P>The per message events (read, write and listener callbacks) have a
+ * threshold so a recording with the default settings only contains the
+ * slow ones; set the threshold to 0 to get every message.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+final class Events {
+
+    private static final String CATEGORY = "TCP Server";
+
+    private Events() {
+        throw new AssertionError("no instances");
+    }
+
+    private static boolean initialized() {
+        return FlightRecorder.isInitialized();
+    }
+
+    static String address(Connection connection) {
+        Object address = connection.getRemoteAddress();
+        return (address != null) ? address.toString() : null;
+    }
+
+    static AcceptEvent beginAccept() {
+        if (!initialized() || !AcceptEvent.PROBE.isEnabled())
+            return null;
+        AcceptEvent event = new AcceptEvent();
+        event.begin();
+        return event;
+    }
+
+    static void started(Connection connection, int localPort) {
+        if (initialized() && StartEvent.PROBE.isEnabled()) {
+            StartEvent.commit(connection, localPort);
+        }
+    }
+
+    static void shutdown(Connection connection, int localPort, Exception ex) {
+        if (initialized() && ShutdownEvent.PROBE.isEnabled()) {
+            ShutdownEvent.commit(connection, localPort, ex);
+        }
+    }
+
+    static ReadEvent beginRead() {
+        if (!initialized() || !ReadEvent.PROBE.isEnabled())
+            return null;
+        ReadEvent event = new ReadEvent();
+        event.begin();
+        return event;
+    }
+
+    static WriteEvent beginWrite() {
+        if (!initialized() || !WriteEvent.PROBE.isEnabled())
+            return null;
+        WriteEvent event = new WriteEvent();
+        event.begin();
+        return event;
+    }
+
+    static CallbackEvent beginCallback() {
+        if (!initialized() || !CallbackEvent.PROBE.isEnabled())
+            return null;
+        CallbackEvent event = new CallbackEvent();
+        event.begin();
+        return event;
+    }
+
+    static void backpressure(Connection connection, String queue, boolean active, long queued) {
+        if (initialized() && BackpressureEvent.PROBE.isEnabled()) {
+            BackpressureEvent.commit(connection, queue, active, queued);
+        }
+    }
+
+    static void socketOption(Connection connection, String option, String value) {
+        if (initialized() && SocketOptionEvent.PROBE.isEnabled()) {
+            SocketOptionEvent.commit(connection, option, value);
+        }
+    }
+
+//  ############################################################################
+
+    @Name("cfh.tcp.Accept")
+    @Label("Accept")
+    @Description("A connection was accepted, duration covers the connected listeners and the start of the connection")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class AcceptEvent extends Event {
+        static final AcceptEvent PROBE = new AcceptEvent();
+
+        @Label("Local Port")
+        int localPort;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        void finish(Connection connection, int port) {
+            end();
+            if (shouldCommit()) {
+                localPort = port;
+                remoteAddress = address(connection);
+                commit();
+            }
+        }
+    }
+
+//  ############################################################################
+
+    @Name("cfh.tcp.ConnectionStart")
+    @Label("Connection Start")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class StartEvent extends Event {
+        static final StartEvent PROBE = new StartEvent();
+
+        @Label("Local Port")
+        int localPort;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        static void commit(Connection connection, int port) {
+            StartEvent event = new StartEvent();
+            if (event.shouldCommit()) {
+                event.localPort = port;
+                event.remoteAddress = address(connection);
+                event.commit();
+            }
+        }
+    }
+
+//  ############################################################################
+
+    @Name("cfh.tcp.ConnectionShutdown")
+    @Label("Connection Shutdown")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ShutdownEvent extends Event {
+        static final ShutdownEvent PROBE = new ShutdownEvent();
+
+        @Label("Local Port")
+        int localPort;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Exception")
+        String exception;
+
+        static void commit(Connection connection, int port, Exception ex) {
+            ShutdownEvent event = new ShutdownEvent();
+            if (event.shouldCommit()) {
+                event.localPort = port;
+                event.remoteAddress = address(connection);
+                event.exception = (ex != null) ? ex.toString() : null;
+                event.commit();
+            }
+        }
+    }
+
+//  ############################################################################
+
+    @Name("cfh.tcp.Read")
+    @Label("Read")
+    @Description("Data read by the receiver, duration includes waiting for the first byte")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static class ReadEvent extends Event {
+        static final ReadEvent PROBE = new ReadEvent();
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Bytes Read")
+        @DataAmount
+        int size;
+
+        void finish(Connection connection, int bytes) {
+            end();
+            if (shouldCommit()) {
+                remoteAddress = address(connection);
+                size = bytes;
+                commit();
+            }
+        }
+    }
+
+//  ############################################################################
+
+    @Name("cfh.tcp.Write")
+    @Label("Write")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static class WriteEvent extends Event {
+        static final WriteEvent PROBE = new WriteEvent();
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Bytes Written")
+        @DataAmount
+        int size;
+
+        void finish(Connection connection, int bytes) {
+            end();
+            if (shouldCommit()) {
+                remoteAddress = address(connection);
+                size = bytes;
+                commit();
+            }
+        }
+    }
+
+//  ############################################################################
+
+    @Name("cfh.tcp.ListenerCallback")
+    @Label("Listener Callback")
+    @Description("A ConnectionListener or ServerListener method was called")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class CallbackEvent extends Event {
+        static final CallbackEvent PROBE = new CallbackEvent();
+
+        @Label("Listener")
+        Class<?> listener;
+
+        @Label("Callback")
+        String callback;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        void finish(Object callbackListener, String name, Connection connection) {
+            end();
+            if (shouldCommit()) {
+                listener = callbackListener.getClass();
+                callback = name;
+                remoteAddress = (connection != null) ? address(connection) : null;
+                commit();
+            }
+        }
+    }
+
+//  ############################################################################
+
+    @Name("cfh.tcp.Backpressure")
+    @Label("Backpressure")
+    @Description("A queue got full and the producer is held back, or it was released again")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class BackpressureEvent extends Event {
+        static final BackpressureEvent PROBE = new BackpressureEvent();
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Queue")
+        String queue;
+
+        @Label("Active")
+        @Description("true if the backpressure started, false if it ended")
+        boolean active;
+
+        @Label("Queued")
+        @DataAmount
+        long queued;
+
+        static void commit(Connection connection, String queue, boolean active, long queued) {
+            BackpressureEvent event = new BackpressureEvent();
+            if (event.shouldCommit()) {
+                event.remoteAddress = address(connection);
+                event.queue = queue;
+                event.active = active;
+                event.queued = queued;
+                event.commit();
+            }
+        }
+    }
+
+//  ############################################################################
+
+    @Name("cfh.tcp.SocketOption")
+    @Label("Socket Option")
+    @Description("A socket option of a connection was set by its SocketPolicy")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class SocketOptionEvent extends Event {
+        static final SocketOptionEvent PROBE = new SocketOptionEvent();
+        
+        @Label("Remote Address")
+        String remoteAddress;
+        
+        @Label("Option")
+        String option;
+        
+        @Label("Value")
+        String value;
+        
+        static void commit(Connection connection, String option, String value) {
+            SocketOptionEvent event = new SocketOptionEvent();
+            if (event.shouldCommit()) {
+                event.remoteAddress = address(connection);
+                event.option = option;
+                event.value = value;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package cfh.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broadcasts data to the clients of several servers.
+ *
+ * <P>Each node of a federation has its own {@link Server} for its clients
+ * and listens on a separate link port for the other nodes. Nodes are
+ * linked with {@link #link(String, int)}; {@link #sendData(byte[])} sends
+ * the data to the local clients and once to every linked node, which
+ * sends it to its clients and relays it to its other links.
+ *
+ * <P>The links need not form a full mesh: every message carries the id of
+ * its originating node and a sequence number, messages already seen are
+ * dropped, so each node delivers a message only once even if it arrives
+ * over several links. Messages sent on a link are batched, a batch is sent
+ * when it reaches the batch size or after the batch delay.
+ *
+ * <P>The batches are sent by a thread per busy link, never by the thread
+ * receiving from another link: in a cyclic mesh, receivers writing to
+ * each other would wait for each other forever. The messages received
+ * are sent to the local clients by a broadcast thread, in order, so slow
+ * clients do not hold up the links; the links only stop reading while a
+ * backlog of batches waits for it. A client or link that fails does not
+ * keep the data from the others, a link sending a malformed batch is
+ * closed.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class Federation {
+
+    /** Number of message ids remembered to drop duplicates. */
+    private static final int SEEN_CAPACITY = 1 << 16;
+
+    /** Number of received batches waiting for the broadcast thread. */
+    private static final int BROADCAST_BACKLOG = 64;
+
+    /** Size of the origin, sequence number and length of a message in a batch. */
+    private static final int MESSAGE_HEADER_SIZE = 8 + 8 + 4;
+
+    private final long nodeId;
+    private final Server server;
+    private final Server linkServer;
+
+    private final List<Link> links;
+    private final AtomicLong sequence;
+    private final Map<MessageId, Boolean> seen;
+
+    private final ScheduledExecutorService flusher;
+    private final ExecutorService sender;
+    private final ExecutorService broadcaster;
+    private final Semaphore backlog;
+
+    private volatile int batchSize = 64 * 1024;
+    private volatile long batchDelay = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Creates a new federation node.
+     *
+     * <P>The <code>port</code> must be between 0 and 65535, inclusive.
+     *
+     * @param server the server of the local clients
+     * @param port the local TCP port for links from other nodes
+     */
+    public Federation(Server server, int port) {
+        if (server == null)
+            throw new IllegalArgumentException("server must not be null");
+
+        this.server = server;
+        nodeId = UUID.randomUUID().getMostSignificantBits();
+        linkServer = new Server(port);
+        links = new CopyOnWriteArrayList<Link>();
+        sequence = new AtomicLong();
+        seen = new LinkedHashMap<MessageId, Boolean>(1024, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MessageId, Boolean> eldest) {
+                return size() > SEEN_CAPACITY;
+            }
+        };
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                thread.setName("Federation flusher: " + linkServer.getPort());
+                return thread;
+            }
+        });
+        sender = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                thread.setName("Federation sender: " + linkServer.getPort() + "-" + count.incrementAndGet());
+                return thread;
+            }
+        });
+        broadcaster = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                thread.setName("Federation broadcast: " + linkServer.getPort());
+                return thread;
+            }
+        });
+        backlog = new Semaphore(BROADCAST_BACKLOG);
+
+        linkServer.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.setFramed(true);
+                links.add(new Link(connection));
+            }
+        });
+    }
+
+    /**
+     * Starts listening for links from other nodes.
+     */
+    public void start() throws IOException {
+        linkServer.start();
+    }
+
+    /**
+     * Stops listening and closes all links, the local server is not stopped.
+     */
+    public void stop() throws IOException {
+        linkServer.stop();
+        for (Link link : links) {
+            link.connection.close();
+        }
+        links.clear();
+        flusher.shutdownNow();
+        sender.shutdownNow();
+        broadcaster.shutdownNow();
+        backlog.release(BROADCAST_BACKLOG);  // links still waiting for the broadcast thread
+    }
+
+    /**
+     * Links this node to another node.
+     *
+     * @param host the host of the other node
+     * @param port the link port of the other node
+     */
+    public void link(String host, int port) throws IOException {
+        Connection connection = new Connection(host, port);
+        connection.setFramed(true);
+        links.add(new Link(connection));
+        connection.start();
+    }
+
+    /**
+     * Sends the data to all clients of all nodes.
+     */
+    public void sendData(byte[] data) throws IOException {
+        if (data == null)
+            throw new IllegalArgumentException("data must not be null");
+
+        broadcast(data);
+        relay(nodeId, sequence.incrementAndGet(), data, null);
+    }
+
+    /**
+     * Sets when a batch of messages is sent on a link.
+     *
+     * @param size the size in bytes at which a batch is sent at once
+     * @param delay the time a message waits for more, 0 to send each message at once
+     * @param unit the unit of <code>delay</code>
+     */
+    public void setBatch(int size, long delay, TimeUnit unit) {
+        if (size < 0)
+            throw new IllegalArgumentException("size must not be negative: " + size);
+        if (delay < 0)
+            throw new IllegalArgumentException("delay must not be negative: " + delay);
+
+        batchSize = size;
+        batchDelay = unit.toNanos(delay);
+    }
+
+    /**
+     * Returns the local TCP port for links from other nodes.
+     */
+    public int getPort() {
+        return linkServer.getPort();
+    }
+
+    /**
+     * Returns the number of nodes linked to this one.
+     */
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    /**
+     * Relays a message received from a link, unless already seen.
+     *
+     * @return <code>true</code> if the message is new, to be sent to the local clients
+     */
+    private boolean receive(long origin, long seq, byte[] data, Link source) {
+        if (origin == nodeId)
+            return false;
+        synchronized (seen) {
+            if (seen.put(new MessageId(origin, seq), Boolean.TRUE) != null)
+                return false;
+        }
+        relay(origin, seq, data, source);
+        return true;
+    }
+
+    /**
+     * Sends the messages to the local clients on the broadcast thread,
+     * waiting while the backlog of the thread is full.
+     */
+    private void broadcastLater(final List<byte[]> messages) {
+        try {
+            backlog.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            broadcaster.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (byte[] data : messages) {
+                            broadcast(data);
+                        }
+                    } finally {
+                        backlog.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            backlog.release();  // stopped
+        }
+    }
+
+    /**
+     * Sends the data to each local client, also if sending to another one fails.
+     */
+    private void broadcast(byte[] data) {
+        for (Connection connection : server.getConnections()) {
+            try {
+                connection.sendData(data);
+            } catch (IOException ex) {
+                connection.fireException(ex);
+            }
+        }
+    }
+
+    private void relay(long origin, long seq, byte[] data, Link source) {
+        for (Link link : links) {
+            if (link != source) {
+                link.add(origin, seq, data);
+            }
+        }
+    }
+
+//  ############################################################################
+
+    /**
+     * Connection to another node, batches the sent messages.
+     *
+     * <P>A batch is sent as one frame containing, for each message, the
+     * origin node id, the sequence number, the length and the data.
+     * Messages are added to the batch holding the lock of the link; full
+     * batches are queued and sent by a sender thread without the lock.
+     */
+    private class Link extends ConnectionListener.Adapter implements Runnable {
+
+        private final Connection connection;
+
+        // guarded by this
+        private final ByteArrayOutputStream batch;
+        private final DataOutputStream output;
+        private final ArrayDeque<byte[]> ready;
+        private boolean scheduled = false;
+        private boolean sending = false;
+
+        Link(Connection connection) {
+            this.connection = connection;
+            batch = new ByteArrayOutputStream(1024);
+            output = new DataOutputStream(batch);
+            ready = new ArrayDeque<byte[]>();
+            connection.addListener(this);
+        }
+
+        synchronized void add(long origin, long seq, byte[] data) {
+            try {
+                output.writeLong(origin);
+                output.writeLong(seq);
+                output.writeInt(data.length);
+                output.write(data);
+            } catch (IOException ex) {
+                throw new AssertionError(ex);  // written to memory
+            }
+            long delay = batchDelay;
+            if (batch.size() >= batchSize || delay == 0) {
+                send();
+            } else if (!scheduled) {
+                scheduled = true;
+                try {
+                    flusher.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (Link.this) {
+                                scheduled = false;
+                                send();
+                            }
+                        }
+                    }, delay, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException ex) {
+                    batch.reset();  // stopped
+                }
+            }
+        }
+
+        /**
+         * Queues the batch and starts a sender thread, unless one is
+         * sending; called holding the lock.
+         */
+        private void send() {
+            if (batch.size() == 0)
+                return;
+            ready.add(batch.toByteArray());
+            batch.reset();
+            if (!sending) {
+                sending = true;
+                try {
+                    sender.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    sending = false;  // stopped
+                    ready.clear();
+                }
+            }
+        }
+
+        /**
+         * Sends the queued batches until none is left.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                byte[] data;
+                synchronized (this) {
+                    data = ready.poll();
+                    if (data == null) {
+                        sending = false;
+                        return;
+                    }
+                }
+                try {
+                    connection.sendData(data);
+                } catch (IOException ex) {
+                    synchronized (this) {
+                        sending = false;
+                        ready.clear();
+                    }
+                    connection.fireException(ex);  // the link is shut down by its receiver and removed
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void receivedData(Connection c, byte[] data) {
+            if (!isWellFormed(data)) {
+                c.fireException(new IOException("malformed batch of " + data.length + " bytes"));
+                try {
+                    c.close();
+                } catch (IOException ex) {
+                    c.fireException(ex);
+                }
+                return;
+            }
+            List<byte[]> messages = new ArrayList<byte[]>();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.remaining() > 0) {
+                long origin = buffer.getLong();
+                long seq = buffer.getLong();
+                byte[] message = new byte[buffer.getInt()];
+                buffer.get(message);
+                if (receive(origin, seq, message, this)) {
+                    messages.add(message);
+                }
+            }
+            if (!messages.isEmpty()) {
+                broadcastLater(messages);
+            }
+        }
+        
+        /**
+         * Checks that the batch consists of whole messages.
+         */
+        private boolean isWellFormed(byte[] data) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.remaining() > 0) {
+                if (buffer.remaining() < MESSAGE_HEADER_SIZE)
+                    return false;
+                int length = buffer.getInt(buffer.position() + MESSAGE_HEADER_SIZE - 4);
+                if (length < 0 || length > buffer.remaining() - MESSAGE_HEADER_SIZE)
+                    return false;
+                buffer.position(buffer.position() + MESSAGE_HEADER_SIZE + length);
+            }
+            return true;
+        }
+
+        @Override
+        public void shutdown(Connection c) {
+            links.remove(this);
+        }
+    }
+
+//  ============================================================================
+
+    private static class MessageId {
+
+        private final long origin;
+        private final long seq;
+
+        MessageId(long origin, long seq) {
+            this.origin = origin;
+            this.seq = seq;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MessageId))
+                return false;
+            MessageId other = (MessageId) obj;
+            return origin == other.origin && seq == other.seq;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (origin ^ (origin >>> 32)) * 31 + (int) (seq ^ (seq >>> 32));
+        }
+    }
+}
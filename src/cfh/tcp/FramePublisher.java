@@ -0,0 +1,223 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes the data received by a connection, a frame or, if not framed,
+ * a read at a time, to one {@link Flow.Subscriber}.
+ *
+ * <P>The demand of the subscriber controls the reading: without demand
+ * the receiving thread of the connection waits, before passing on the
+ * next frame, so the connection stops reading and TCP holds back the
+ * peer. Nothing is buffered in between; the other listeners of the
+ * connection also wait.
+ *
+ * <P>The subscriber completes when the connection shuts down, or gets
+ * the first exception of the connection. Stopping or closing the
+ * connection completes it too, even without demand: the frame waiting
+ * for demand is dropped. Cancelling shuts down the input
+ * of the connection, the output can still be used.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class FramePublisher implements Flow.Publisher<byte[]> {
+
+    private final Connection connection;
+
+    // guarded by this
+    private Flow.Subscriber<? super byte[]> subscriber = null;
+    private long demand = 0;
+    private boolean cancelled = false;
+    private boolean stopped = false;
+    private boolean terminated = false;
+    private Throwable error = null;
+
+    /**
+     * Creates a new publisher, added as listener to the connection.
+     *
+     * @param connection the connection, best not started yet, the data
+     *        received before a subscriber requests it waits
+     */
+    public FramePublisher(Connection connection) {
+        if (connection == null)
+            throw new IllegalArgumentException("connection must not be null");
+
+        this.connection = connection;
+        connection.addListener(new Receiver());
+        connection.addStopHook(new Runnable() {
+            @Override
+            public void run() {
+                stopped();
+            }
+        });
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super byte[]> s) {
+        if (s == null)
+            throw new NullPointerException("subscriber must not be null");
+        boolean subscribed;
+        boolean done;
+        Throwable ex;
+        synchronized (this) {
+            subscribed = subscriber != null;
+            if (!subscribed) {
+                subscriber = s;
+            }
+            done = terminated;
+            ex = error;
+        }
+        if (subscribed) {
+            s.onSubscribe(new Subscription(null));
+            s.onError(new IllegalStateException("only one subscriber supported"));
+            return;
+        }
+        s.onSubscribe(new Subscription(s));
+        if (done) {
+            terminate(s, ex);
+        }
+    }
+
+    /**
+     * Waits for the demand of the subscriber.
+     *
+     * @return the subscriber, <code>null</code> if cancelled or the connection was stopped
+     */
+    private synchronized Flow.Subscriber<? super byte[]> awaitDemand() throws InterruptedException {
+        while (!cancelled && !stopped && (subscriber == null || demand == 0)) {
+            wait();
+        }
+        if (cancelled || stopped)
+            return null;
+        if (demand != Long.MAX_VALUE) {
+            demand -= 1;
+        }
+        return subscriber;
+    }
+
+    /**
+     * Releases the receiving thread waiting for demand, the connection
+     * was stopped: it drops the frame and ends, completing the subscriber.
+     */
+    private synchronized void stopped() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Marks the publisher terminated.
+     *
+     * @return the subscriber to signal, <code>null</code> if none or already terminated
+     */
+    private synchronized Flow.Subscriber<? super byte[]> terminated(Throwable ex) {
+        if (terminated)
+            return null;
+        terminated = true;
+        error = ex;
+        notifyAll();
+        return cancelled ? null : subscriber;
+    }
+
+    private static void terminate(Flow.Subscriber<? super byte[]> s, Throwable ex) {
+        if (ex != null) {
+            s.onError(ex);
+        } else {
+            s.onComplete();
+        }
+    }
+
+//  ############################################################################
+
+    private class Receiver extends ConnectionListener.Adapter {
+
+        @Override
+        public void receivedData(Connection conn, byte[] data) {
+            Flow.Subscriber<? super byte[]> s;
+            try {
+                s = awaitDemand();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (s != null) {
+                s.onNext(data);
+            }
+        }
+
+        @Override
+        public void handleException(Connection conn, Exception ex) {
+            Flow.Subscriber<? super byte[]> s = terminated(ex);
+            if (s != null) {
+                s.onError(ex);
+            }
+        }
+
+        @Override
+        public void shutdown(Connection conn) {
+            Flow.Subscriber<? super byte[]> s = terminated(null);
+            if (s != null) {
+                s.onComplete();
+            }
+        }
+    }
+
+//  ============================================================================
+
+    private class Subscription implements Flow.Subscription {
+
+        /** The subscriber, <code>null</code> if rejected. */
+        private final Flow.Subscriber<? super byte[]> owner;
+
+        Subscription(Flow.Subscriber<? super byte[]> owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void request(long n) {
+            if (owner == null)
+                return;
+            if (n <= 0) {
+                IllegalArgumentException ex = new IllegalArgumentException("request must be positive: " + n);
+                Flow.Subscriber<? super byte[]> s = terminated(ex);
+                cancel();
+                if (s != null) {
+                    s.onError(ex);
+                }
+                return;
+            }
+            synchronized (FramePublisher.this) {
+                demand += n;
+                if (demand < 0) {
+                    demand = Long.MAX_VALUE;  // overflow, unbounded
+                }
+                FramePublisher.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (owner == null)
+                return;
+            synchronized (FramePublisher.this) {
+                if (cancelled)
+                    return;
+                cancelled = true;
+                FramePublisher.this.notifyAll();
+            }
+            try {
+                Transport transport = connection.getTransport();
+                if (!transport.isInputShutdown() && !transport.isClosed()) {
+                    transport.shutdownInput();
+                }
+            } catch (IOException ex) {
+                connection.fireException(ex);
+            }
+        }
+    }
+}
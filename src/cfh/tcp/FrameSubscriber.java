@@ -0,0 +1,130 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Flow;
+
+/**
+ * Sends the items of a {@link Flow.Publisher} over a connection, one
+ * frame each if framed.
+ *
+ * <P>At most <code>batch</code> items are requested ahead, more are
+ * requested as the sent items make room. An item is sent by the thread
+ * calling <code>onNext</code>, which waits while the queue of the
+ * connection is full, see {@link Connection#setMaxQueued(int)}: the
+ * publisher is held back as long as the peer does not read.
+ *
+ * <P>When the publisher completes the output of the connection is shut
+ * down, after the data still queued was written. An error of the
+ * publisher, or when sending, is passed to the listeners of the
+ * connection, which is then stopped.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class FrameSubscriber implements Flow.Subscriber<byte[]> {
+
+    public static final int DEFAULT_BATCH = 16;
+
+    private final Connection connection;
+    private final int batch;
+
+    private Flow.Subscription subscription = null;
+    private int outstanding = 0;
+    private boolean done = false;
+
+    public FrameSubscriber(Connection connection) {
+        this(connection, DEFAULT_BATCH);
+    }
+
+    /**
+     * Creates a new subscriber.
+     *
+     * @param connection the connection to send the items over
+     * @param batch the maximum number of items requested ahead
+     */
+    public FrameSubscriber(Connection connection, int batch) {
+        if (connection == null)
+            throw new IllegalArgumentException("connection must not be null");
+        if (batch <= 0)
+            throw new IllegalArgumentException("batch must be positive: " + batch);
+
+        this.connection = connection;
+        this.batch = batch;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    // the signals are serialized by the publisher
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        if (subscription != null) {
+            s.cancel();  // only one publisher
+            return;
+        }
+        subscription = s;
+        outstanding = batch;
+        s.request(batch);
+    }
+
+    @Override
+    public void onNext(byte[] item) {
+        if (done)
+            return;
+        try {
+            connection.sendData(item);
+        } catch (IOException ex) {
+            done = true;
+            subscription.cancel();
+            failed(ex);
+            return;
+        }
+        outstanding -= 1;
+        if (outstanding <= batch / 2) {
+            int n = batch - outstanding;
+            outstanding = batch;
+            subscription.request(n);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (done)
+            return;
+        done = true;
+        failed((throwable instanceof Exception) ? (Exception) throwable : new Exception(throwable));
+    }
+
+    @Override
+    public void onComplete() {
+        if (done)
+            return;
+        done = true;
+        try {
+            // queued or spilled data would be lost
+            if (!connection.awaitSent(System.nanoTime() + Long.MAX_VALUE))
+                return;  // stopped meanwhile
+            Transport transport = connection.getTransport();
+            if (!transport.isOutputShutdown() && !transport.isClosed()) {
+                transport.shutdownOutput();
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failed(new InterruptedIOException("interrupted while sending the queued data"));
+        }
+    }
+
+    private void failed(Exception ex) {
+        connection.fireException(ex);
+        try {
+            connection.stop();
+        } catch (IOException ex2) {
+            connection.fireException(ex2);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+
+/**
+ * In-process server transport, the connections are pairs of lock-free
+ * ring buffers instead of sockets.
+ *
+ * <P>Used to run a {@link Server} and its {@link Connection}s in tests and
+ * benchmarks without opening any port:
+ * <pre>
+ *   LoopbackServerTransport transport = new LoopbackServerTransport("test");
+ *   Server server = new Server(transport);
+ *   server.start();
+ *   Connection client = new Connection(transport.connect());
+ * </pre>
+ * The transports behave like connected sockets with a send buffer of
+ * the given size; the data written to a full buffer waits until the peer
+ * reads. The reads and the writes of a transport must each be done by
+ * one thread at a time, as a {@link Connection} does.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class LoopbackServerTransport implements ServerTransport {
+
+    public static final int DEFAULT_BACKLOG = 50;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final Address address;
+    private final int backlog;
+    private final int bufferSize;
+
+    // guarded by pending
+    private final ArrayDeque<LoopbackTransport> pending;
+    private int nextId = 1;
+    private boolean closed = false;
+    private boolean woken = false;
+
+    public LoopbackServerTransport(String name) {
+        this(name, DEFAULT_BACKLOG, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new transport.
+     *
+     * @param name the name of the address, only informative
+     * @param backlog the maximum number of connections waiting to be accepted
+     * @param bufferSize the size of the buffer of each direction, a power of two
+     */
+    public LoopbackServerTransport(String name, int backlog, int bufferSize) {
+        if (name == null)
+            throw new IllegalArgumentException("name must not be null");
+        if (backlog <= 0)
+            throw new IllegalArgumentException("backlog must be positive: " + backlog);
+        if (bufferSize <= 0 || Integer.bitCount(bufferSize) != 1)
+            throw new IllegalArgumentException("bufferSize must be a power of two: " + bufferSize);
+
+        address = new Address(name, 0);
+        this.backlog = backlog;
+        this.bufferSize = bufferSize;
+        pending = new ArrayDeque<LoopbackTransport>();
+    }
+
+    /**
+     * Connects a new client.
+     *
+     * @return the client side of the connection
+     * @throws ConnectException if the transport is closed or the backlog is full
+     */
+    public Transport connect() throws IOException {
+        RingBuffer up = new RingBuffer(bufferSize);
+        RingBuffer down = new RingBuffer(bufferSize);
+        synchronized (pending) {
+            if (closed)
+                throw new ConnectException("connection refused: " + address);
+            if (pending.size() >= backlog)
+                throw new ConnectException("backlog full: " + address);
+            Address client = new Address(address.getName(), nextId++);
+            pending.add(new LoopbackTransport(up, down, address, client));
+            pending.notifyAll();
+            return new LoopbackTransport(down, up, client, address);
+        }
+    }
+
+    @Override
+    public Transport accept() throws IOException {
+        synchronized (pending) {
+            try {
+                while (pending.isEmpty() && !closed && !woken) {
+                    pending.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while accepting");
+            }
+            if (closed)
+                throw new ClosedChannelException();
+            return pending.poll();
+        }
+    }
+
+    @Override
+    public Transport acceptNow() throws IOException {
+        synchronized (pending) {
+            if (closed)
+                throw new ClosedChannelException();
+            return pending.poll();
+        }
+    }
+
+    @Override
+    public void wakeup() {
+        synchronized (pending) {
+            woken = true;
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the transport, the connections not yet accepted are closed.
+     */
+    @Override
+    public void close() {
+        synchronized (pending) {
+            closed = true;
+            for (LoopbackTransport transport : pending) {
+                transport.close();
+            }
+            pending.clear();
+            pending.notifyAll();
+        }
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return address;
+    }
+
+//  ############################################################################
+
+    /**
+     * Address of a loopback transport, the name of the server transport
+     * and an id: 0 for the server, like a port for the clients.
+     */
+    public static class Address extends SocketAddress {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int id;
+
+        Address(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Address))
+                return false;
+            Address other = (Address) obj;
+            return name.equals(other.name) && id == other.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + id;
+        }
+
+        @Override
+        public String toString() {
+            return "loopback:" + name + ":" + id;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+
+/**
+ * One end of an in-process connection, created by a
+ * {@link LoopbackServerTransport}.
+ *
+ * <P>Each direction is a {@link RingBuffer}, written by one end and read
+ * by the other. Shutting down and closing behave like a socket: the peer
+ * reads the end of stream after the output is shut down, and its writes
+ * fail once this end is closed.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+class LoopbackTransport implements Transport {
+
+    private final RingBuffer in;
+    private final RingBuffer out;
+    private final SocketAddress localAddress;
+    private final SocketAddress remoteAddress;
+
+    private final Input input;
+    private final Output output;
+
+    private volatile boolean inputShutdown = false;
+    private volatile boolean outputShutdown = false;
+    private volatile boolean closed = false;
+
+    LoopbackTransport(RingBuffer in, RingBuffer out, SocketAddress localAddress, SocketAddress remoteAddress) {
+        assert in != null : "null in";
+        assert out != null : "null out";
+
+        this.in = in;
+        this.out = out;
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+
+        input = new Input();
+        output = new Output();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public void shutdownInput() {
+        inputShutdown = true;
+        in.closeRead();
+    }
+
+    @Override
+    public void shutdownOutput() {
+        outputShutdown = true;
+        out.closeWrite();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        in.reset();
+        out.closeWrite();
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+//  ############################################################################
+
+    private class Input extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int n = in.read(single, 0, 1);
+            return (n == -1) ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return in.available();
+        }
+    }
+
+//  ============================================================================
+
+    private class Output extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            out.write(b, off, len);
+        }
+    }
+}
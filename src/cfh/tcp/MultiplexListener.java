@@ -0,0 +1,56 @@
+package cfh.tcp;
+
+import cfh.tcp.Multiplexer.Channel;
+
+/**
+ * Listener for the events of a {@link Multiplexer}.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface MultiplexListener {
+
+    /**
+     * The peer opened a new channel. The data received on the channel is
+     * passed to its listeners added during this call.
+     *
+     * @param multiplexer the Multiplexer instance
+     * @param channel the new Channel
+     */
+    void opened(Multiplexer multiplexer, Channel channel);
+
+    /**
+     * An exception was catched in the multiplexer or its connection.
+     *
+     * @param multiplexer the Multiplexer instance.
+     * @param ex The Exception.
+     */
+    void handleException(Multiplexer multiplexer, Exception ex);
+
+    /**
+     * The connection shut down, after all channels were closed.
+     *
+     * @param multiplexer the Multiplexer instance.
+     */
+    void shutdown(Multiplexer multiplexer);
+
+//  ############################################################################
+
+    public class Adapter implements MultiplexListener {
+
+        @Override
+        public void opened(Multiplexer multiplexer, Channel channel) {
+            //
+        }
+
+        @Override
+        public void handleException(Multiplexer multiplexer, Exception ex) {
+            //
+        }
+
+        @Override
+        public void shutdown(Multiplexer multiplexer) {
+            //
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many logical channels over one {@link Connection}.
+ *
+ * <P>The connection is framed, each frame carries a type, the id of a
+ * channel and the data. Either side opens channels with
+ * {@link #open(ChannelListener)}, the peer gets them in
+ * {@link MultiplexListener#opened(Multiplexer, Channel)}. Each channel
+ * has its own listeners, it is closed by either side or when the
+ * connection shuts down.
+ *
+ * <P>Each channel has a flow control window: a side sends at most the
+ * window before the peer returns credit, which it does as the data is
+ * passed to the listeners of the channel. A paused channel holds the
+ * credit back, so the peer stops sending on that channel while the other
+ * channels go on. Both sides must use the same window. The credit is
+ * received by the thread calling the channel listeners, so that thread
+ * never waits for it: the data it sends without credit, for example an
+ * echo, is queued and sent as the credit arrives. Meanwhile the channel
+ * holds back the credit for the peer, as if paused, so an echo queues at
+ * most about a window; more than twice the window fails with an
+ * IOException.
+ *
+ * <P>The multiplexer is a {@link BufferListener} of the connection, the
+ * data is copied once, into the array passed to the channel listeners.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class Multiplexer {
+
+    public static final int DEFAULT_WINDOW = 256 * 1024;
+    public static final int DEFAULT_MAX_CHANNELS = 1024;
+
+    private static final int OPEN = 1;
+    private static final int DATA = 2;
+    private static final int WINDOW = 3;
+    private static final int CLOSE = 4;
+    /** Set in the type if the channel was opened by the sender of the frame. */
+    private static final int OPENER = 0x80;
+
+    /** Type and channel id. */
+    private static final int HEADER_SIZE = 5;
+
+    private final Connection connection;
+    private final List<MultiplexListener> listeners;
+    private final Map<Integer, Channel> localChannels;
+    private final Map<Integer, Channel> remoteChannels;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    private volatile int window = DEFAULT_WINDOW;
+    private volatile int maxChannels = DEFAULT_MAX_CHANNELS;
+    private volatile boolean shutdown = false;
+    /** The thread calling the channel listeners, which receives the credit. */
+    private volatile Thread receiving = null;
+
+    /**
+     * Creates a new multiplexer over a connection not yet started.
+     *
+     * @param connection the connection, set to framed
+     */
+    public Multiplexer(Connection connection) {
+        if (connection == null)
+            throw new IllegalArgumentException("connection must not be null");
+
+        connection.setFramed(true);
+        this.connection = connection;
+        listeners = new CopyOnWriteArrayList<MultiplexListener>();
+        localChannels = new ConcurrentHashMap<Integer, Channel>();
+        remoteChannels = new ConcurrentHashMap<Integer, Channel>();
+        connection.addBufferListener(new Receiver());
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public void start() {
+        connection.start();
+    }
+
+    /**
+     * Closes the connection and with it all channels.
+     */
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    /**
+     * Sets the flow control window of the channels opened after this call.
+     *
+     * @param bytes the number of bytes sent on a channel before waiting for credit
+     */
+    public void setWindow(int bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("bytes must be positive: " + bytes);
+        window = bytes;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets the maximum number of channels the peer can open, further
+     * channels are closed at once.
+     *
+     * @param count the maximum number of open channels
+     */
+    public void setMaxChannels(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative: " + count);
+        maxChannels = count;
+    }
+
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+
+    /**
+     * Opens a new channel.
+     *
+     * @param listener a listener added before the channel is started, may be <code>null</code>
+     * @return the new channel
+     * @throws IOException if the connection shut down
+     */
+    public Channel open(ChannelListener listener) throws IOException {
+        if (shutdown)
+            throw new IOException("connection shut down");
+        Channel channel = new Channel(nextId.getAndIncrement(), true, window);
+        if (listener != null) {
+            channel.addListener(listener);
+        }
+        localChannels.put(channel.id, channel);
+        send(OPEN, channel, null, 0);
+        channel.fireStarted();
+        return channel;
+    }
+
+    /**
+     * Returns the open channels, opened by either side.
+     */
+    public List<Channel> getChannels() {
+        List<Channel> channels = new ArrayList<Channel>(localChannels.values());
+        channels.addAll(remoteChannels.values());
+        return channels;
+    }
+
+    public void addListener(MultiplexListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MultiplexListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void send(int type, Channel channel, byte[] data, int priority) throws IOException {
+        int length = (data != null) ? data.length : 0;
+        byte[] frame = new byte[HEADER_SIZE + length];
+        frame[0] = (byte) (channel.local ? type | OPENER : type);
+        putInt(frame, 1, channel.id);
+        if (data != null) {
+            System.arraycopy(data, 0, frame, HEADER_SIZE, length);
+        }
+        connection.sendData(frame, priority);
+    }
+
+    private void sendCredit(Channel channel, int credit) throws IOException {
+        byte[] data = new byte[4];
+        putInt(data, 0, credit);
+        send(WINDOW, channel, data, Connection.MAX_PRIORITY);
+    }
+
+    private static void putInt(byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+
+    private void fireOpened(Channel channel) {
+        for (MultiplexListener listener : listeners) {
+            listener.opened(this, channel);
+        }
+    }
+
+    private void fireException(Exception ex) {
+        for (MultiplexListener listener : listeners) {
+            listener.handleException(this, ex);
+        }
+    }
+
+    private void fireShutdown() {
+        for (MultiplexListener listener : listeners) {
+            listener.shutdown(this);
+        }
+    }
+
+//  ############################################################################
+
+    /**
+     * Decodes the frames received by the connection.
+     */
+    private class Receiver extends BufferListener.Adapter {
+
+        @Override
+        public void receivedData(Connection conn, ByteBuffer data) {
+            receiving = Thread.currentThread();
+            int pos = data.position();
+            if (data.remaining() < HEADER_SIZE) {
+                fireException(new IOException("frame too short: " + data.remaining() + " bytes"));
+                return;
+            }
+            int type = data.get(pos) & 0xFF;
+            int id = data.getInt(pos + 1);
+            Map<Integer, Channel> channels = ((type & OPENER) != 0) ? remoteChannels : localChannels;
+            Channel channel;
+            try {
+                switch (type & ~OPENER) {
+                    case OPEN:
+                        opened(id);
+                        break;
+                    case DATA:
+                        channel = channels.get(id);
+                        if (channel != null) {  // else closed meanwhile
+                            byte[] bytes = new byte[data.remaining() - HEADER_SIZE];
+                            data.get(pos + HEADER_SIZE, bytes);
+                            try {
+                                channel.received(bytes);
+                            } catch (IOException ex) {
+                                channel.fireException(ex);
+                            }
+                        }
+                        break;
+                    case WINDOW:
+                        channel = channels.get(id);
+                        if (channel != null && data.remaining() >= HEADER_SIZE + 4) {
+                            channel.grant(data.getInt(pos + HEADER_SIZE));
+                            channel.flush();
+                        }
+                        break;
+                    case CLOSE:
+                        channel = channels.remove(id);
+                        if (channel != null) {
+                            channel.closed();
+                        }
+                        break;
+                    default:
+                        fireException(new IOException("unknown frame type: " + type));
+                        break;
+                }
+            } catch (IOException ex) {
+                fireException(ex);
+            }
+        }
+
+        @Override
+        public void handleException(Connection conn, Exception ex) {
+            fireException(ex);
+        }
+
+        @Override
+        public void shutdown(Connection conn) {
+            shutdown = true;
+            closeAll(localChannels);
+            closeAll(remoteChannels);
+            fireShutdown();
+        }
+
+        private void closeAll(Map<Integer, Channel> channels) {
+            for (Integer id : channels.keySet()) {
+                Channel channel = channels.remove(id);
+                if (channel != null) {
+                    channel.closed();
+                }
+            }
+        }
+
+        private void opened(int id) throws IOException {
+            Channel channel = new Channel(id, false, window);
+            if (remoteChannels.size() >= maxChannels) {
+                send(CLOSE, channel, null, 0);
+                fireException(new IOException("too many channels, closed channel " + id));
+                return;
+            }
+            remoteChannels.put(id, channel);
+            fireOpened(channel);
+            channel.fireStarted();
+        }
+    }
+
+//  ============================================================================
+
+    /**
+     * A logical channel of the multiplexer.
+     */
+    public class Channel {
+
+        private final int id;
+        private final boolean local;
+        private final int initialWindow;
+        private final List<ChannelListener> channelListeners;
+
+        // guarded by this
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+        private long pendingBytes = 0;
+        private boolean flushing = false;
+        private long window;
+        private int credit = 0;
+        private boolean paused = false;
+        private boolean open = true;
+
+        Channel(int id, boolean local, int initialWindow) {
+            this.id = id;
+            this.local = local;
+            this.initialWindow = initialWindow;
+            window = initialWindow;
+            channelListeners = new CopyOnWriteArrayList<ChannelListener>();
+        }
+
+        /**
+         * Returns the id, unique among the channels opened by the same side.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns if the channel was opened by this side.
+         */
+        public boolean isLocal() {
+            return local;
+        }
+
+        public Multiplexer getMultiplexer() {
+            return Multiplexer.this;
+        }
+
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Returns the number of bytes that can be sent before waiting for
+         * credit, negative if a message larger than the window was sent.
+         */
+        public synchronized long getWindow() {
+            return window;
+        }
+
+        public void addListener(ChannelListener listener) {
+            channelListeners.add(listener);
+        }
+
+        public void removeListener(ChannelListener listener) {
+            channelListeners.remove(listener);
+        }
+
+        /**
+         * Sends the data, waiting while the window is used up. Called by
+         * the thread calling the listeners, the data is queued instead and
+         * sent when the peer returns credit.
+         *
+         * @throws IOException if the channel is closed, or if called by the
+         *         thread calling the listeners with twice the window queued
+         */
+        public void sendData(byte[] data) throws IOException {
+            if (data == null)
+                throw new IllegalArgumentException("data must not be null");
+            synchronized (this) {
+                if (Thread.currentThread() != receiving) {
+                    try {
+                        while (open && (window <= 0 || !pending.isEmpty() || flushing)) {
+                            wait();
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while waiting for credit");
+                    }
+                }
+                if (!open)
+                    throw new IOException("channel closed: " + id);
+                if (window <= 0 || !pending.isEmpty() || flushing) {
+                    // the credit is received by this thread
+                    if (!pending.isEmpty() && pendingBytes + data.length > 2L * initialWindow)
+                        throw new IOException("channel " + id + ": " + pendingBytes + " bytes waiting for credit");
+                    pending.add(data);
+                    pendingBytes += data.length;
+                    return;
+                }
+                window -= data.length;
+            }
+            send(DATA, this, data, 0);
+            fireSentData(data);
+        }
+        
+        /**
+         * Returns the number of messages waiting for credit, sent by the
+         * thread calling the listeners.
+         */
+        public synchronized int getPending() {
+            return pending.size();
+        }
+
+        /**
+         * Stops returning credit to the peer, which stops sending on this
+         * channel once its window is used up. The data already sent by the
+         * peer is still passed to the listeners.
+         */
+        public synchronized void pause() {
+            paused = true;
+        }
+
+        /**
+         * Returns the credit held back while paused.
+         */
+        public void resume() throws IOException {
+            int n;
+            synchronized (this) {
+                paused = false;
+                n = credit;
+                credit = 0;
+                if (!open)
+                    return;
+            }
+            if (n > 0) {
+                sendCredit(this, n);
+            }
+        }
+
+        public synchronized boolean isPaused() {
+            return paused;
+        }
+
+        /**
+         * Closes the channel on both sides.
+         */
+        public void close() throws IOException {
+            if (!isOpen())
+                return;
+            Map<Integer, Channel> channels = local ? localChannels : remoteChannels;
+            if (channels.remove(id) != null && !shutdown) {
+                send(CLOSE, this, null, 0);
+            }
+            closed();
+        }
+
+        private void received(byte[] data) throws IOException {
+            fireReceivedData(data);
+            int n;
+            synchronized (this) {
+                credit += data.length;
+                n = takeCredit();
+            }
+            if (n > 0) {
+                sendCredit(this, n);
+            }
+        }
+        
+        /**
+         * Takes the credit to return to the peer, none while paused or
+         * while data sent by the listeners waits for credit itself.
+         * Called holding the lock.
+         */
+        private int takeCredit() {
+            if (paused || !open || !pending.isEmpty() || credit < initialWindow / 2)
+                return 0;
+            int n = credit;
+            credit = 0;
+            return n;
+        }
+
+        private synchronized void grant(int bytes) {
+            window += bytes;
+            notifyAll();
+        }
+
+        /**
+         * Sends the queued data the window allows, in order, and the
+         * credit held back once all is sent.
+         */
+        private void flush() throws IOException {
+            while (true) {
+                byte[] data = null;
+                int n = 0;
+                synchronized (this) {
+                    if (!open || pending.isEmpty() || window <= 0) {
+                        flushing = false;
+                        notifyAll();
+                        n = takeCredit();
+                    } else {
+                        data = pending.poll();
+                        pendingBytes -= data.length;
+                        window -= data.length;
+                        flushing = true;
+                    }
+                }
+                if (data == null) {
+                    if (n > 0) {
+                        sendCredit(this, n);
+                    }
+                    return;
+                }
+                boolean sent = false;
+                try {
+                    send(DATA, this, data, 0);
+                    sent = true;
+                } finally {
+                    if (!sent) {
+                        synchronized (this) {
+                            flushing = false;
+                            notifyAll();
+                        }
+                    }
+                }
+                fireSentData(data);
+            }
+        }
+        
+        /**
+         * Marks the channel closed, waking the waiting senders.
+         */
+        private void closed() {
+            synchronized (this) {
+                if (!open)
+                    return;
+                open = false;
+                pending.clear();
+                pendingBytes = 0;
+                notifyAll();
+            }
+            fireShutdown();
+        }
+
+        private void fireStarted() {
+            for (ChannelListener listener : channelListeners) {
+                listener.started(this);
+            }
+        }
+
+        private void fireSentData(byte[] data) {
+            for (ChannelListener listener : channelListeners) {
+                listener.sentData(this, data);
+            }
+        }
+
+        private void fireReceivedData(byte[] data) {
+            for (ChannelListener listener : channelListeners) {
+                listener.receivedData(this, data);
+            }
+        }
+
+        private void fireException(Exception ex) {
+            for (ChannelListener listener : channelListeners) {
+                listener.handleException(this, ex);
+            }
+        }
+
+        private void fireShutdown() {
+            for (ChannelListener listener : channelListeners) {
+                listener.shutdown(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Channel " + id + (local ? " (local)" : " (remote)");
+        }
+    }
+}
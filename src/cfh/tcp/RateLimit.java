@@ -0,0 +1,170 @@
+package cfh.tcp;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the bytes and messages per second of connections.
+ *
+ * <P>A limit is set for the inbound or outbound data of a connection with
+ * {@link Connection#setInboundLimit(RateLimit)} or
+ * {@link Connection#setOutboundLimit(RateLimit)}, or for all connections
+ * of a server with {@link Server#setGlobalLimits(RateLimit, RateLimit)}.
+ * Nothing is dropped: the receiver pauses after reading data over the
+ * limit, so TCP flow control holds back the peer, and the sent data is
+ * queued and written by a thread of the connection that pauses before
+ * writing; {@link Connection#sendData(byte[])} only waits if the queue
+ * is full.
+ *
+ * <P>Waiting connections take their tokens in turn, in quanta of at most
+ * {@value #QUANTUM} bytes, so a limit shared by several connections is
+ * split evenly between the busy ones; bandwidth not used by idle
+ * connections is shared by the others. The buckets hold up to a tenth of
+ * a second of tokens.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class RateLimit {
+
+    /** Maximum number of bytes taken from the bucket at once. */
+    public static final int QUANTUM = 16 * 1024;
+
+    private final long bytesPerSecond;
+    private final long messagesPerSecond;
+
+    private final Bucket bytes;
+    private final Bucket messages;
+
+    private long totalBytes = 0;
+    private long totalMessages = 0;
+    private long pausedNanos = 0;
+
+    /**
+     * Creates a new limit.
+     *
+     * @param bytesPerSecond maximum bytes per second, 0 for no limit
+     * @param messagesPerSecond maximum messages per second, 0 for no limit;
+     *     unframed, each data read or sent counts as a message
+     */
+    public RateLimit(long bytesPerSecond, long messagesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("bytesPerSecond must not be negative: " + bytesPerSecond);
+        if (messagesPerSecond < 0)
+            throw new IllegalArgumentException("messagesPerSecond must not be negative: " + messagesPerSecond);
+
+        this.bytesPerSecond = bytesPerSecond;
+        this.messagesPerSecond = messagesPerSecond;
+        bytes = (bytesPerSecond > 0) ? new Bucket(bytesPerSecond) : null;
+        messages = (messagesPerSecond > 0) ? new Bucket(messagesPerSecond) : null;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    /**
+     * Returns the number of bytes that passed this limit.
+     */
+    public synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the number of messages that passed this limit.
+     */
+    public synchronized long getMessages() {
+        return totalMessages;
+    }
+
+    /**
+     * Returns the total time the connections were paused by this limit.
+     */
+    public synchronized long getPausedTime(TimeUnit unit) {
+        return unit.convert(pausedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Takes the tokens, pausing the calling thread as long as needed.
+     *
+     * @param connection the paused connection, for the backpressure events
+     * @param queue the direction, for the backpressure events
+     */
+    void acquire(Connection connection, String queue, long count, int messageCount)
+            throws InterruptedIOException {
+        long remaining = count;
+        int m = messageCount;
+        do {
+            long n = Math.min(remaining, QUANTUM);
+            long delay = reserve(n, m);
+            if (delay > 0) {
+                Events.backpressure(connection, queue, true, remaining);
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while paused by rate limit");
+                }
+                Events.backpressure(connection, queue, false, remaining - n);
+            }
+            remaining -= n;
+            m = 0;
+        } while (remaining > 0);
+    }
+
+    /**
+     * Takes the tokens, the buckets go into debt if not enough are left.
+     * Later callers have to wait for the debt too, so the callers are
+     * served in order.
+     *
+     * @return the time to wait until the tokens are available, in nanoseconds
+     */
+    private synchronized long reserve(long count, int messageCount) {
+        long now = System.nanoTime();
+        long delay = 0;
+        if (bytes != null && count > 0) {
+            delay = bytes.take(count, now);
+        }
+        if (messages != null && messageCount > 0) {
+            delay = Math.max(delay, messages.take(messageCount, now));
+        }
+        totalBytes += count;
+        totalMessages += messageCount;
+        pausedNanos += delay;
+        return delay;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimit[" + bytesPerSecond + " bytes/s, " + messagesPerSecond + " messages/s]";
+    }
+
+//  ############################################################################
+
+    private static class Bucket {
+
+        private final double perNano;
+        private final double capacity;
+
+        private double tokens;
+        private long last;
+
+        Bucket(long perSecond) {
+            perNano = perSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            capacity = Math.max(perSecond / 10.0, 1.0);
+            tokens = capacity;
+            last = System.nanoTime();
+        }
+
+        long take(long count, long now) {
+            tokens = Math.min(capacity, tokens + (now - last) * perNano);
+            last = now;
+            tokens -= count;
+            return (tokens < 0) ? (long) Math.ceil(-tokens / perNano) : 0;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import cfh.tcp.Events.ReadEvent;
+import cfh.tcp.Events.WriteEvent;
+
+/**
+ * Forwards the bytes between two connections, in both directions.
+ *
+ * <P>A relay takes over two connections that were not started: each
+ * direction is copied by its own thread through a direct buffer, reading
+ * from and writing to the socket channels, so the data never passes
+ * through the heap and nothing is allocated per chunk. Connections not
+ * over a channel are copied through their streams.
+ *
+ * <P>A chunk is written completely before the next one is read, so a
+ * slow receiver stops the reading from the other side and TCP flow control
+ * passes the backpressure on to the sender. When one side closes its
+ * output, the output to the other side is shut down; the relay ends, and
+ * both connections are closed, once both directions have ended.
+ *
+ * <P>The listeners of the connections get the <code>started</code>,
+ * <code>shutdown</code> and <code>handleException</code> callbacks,
+ * but not <code>receivedData</code> or <code>sentData</code>.
+ * Data must not be sent over a relayed connection.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class Relay {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Connection inbound;
+    private final Connection outbound;
+
+    private final Pump upstream;
+    private final Pump downstream;
+
+    private int running = 0;
+    private volatile boolean closing = false;
+    private volatile BufferPool bufferPool = null;
+
+    /**
+     * Creates a new relay, the connections must not be started.
+     *
+     * @param inbound the connection from the client
+     * @param outbound the connection to the server
+     */
+    public Relay(Connection inbound, Connection outbound) throws IOException {
+        if (inbound == null)
+            throw new IllegalArgumentException("inbound must not be null");
+        if (outbound == null)
+            throw new IllegalArgumentException("outbound must not be null");
+        if (inbound == outbound)
+            throw new IllegalArgumentException("inbound and outbound must differ");
+
+        this.inbound = inbound;
+        this.outbound = outbound;
+        upstream = new Pump(inbound, outbound);
+        downstream = new Pump(outbound, inbound);
+    }
+
+    /**
+     * Takes over both connections and starts forwarding.
+     *
+     * @throws IllegalStateException if a connection was already started or relayed
+     */
+    public synchronized void start() {
+        if (running > 0 || upstream.start != 0)
+            throw new IllegalStateException("can only be started once");
+        inbound.relay();
+        outbound.relay();
+
+        running = 2;
+        Events.started(inbound, inbound.getLocalPort());
+        inbound.fireStarted();
+        Events.started(outbound, outbound.getLocalPort());
+        outbound.fireStarted();
+        upstream.start("Relay upstream: " + name(inbound));
+        downstream.start("Relay downstream: " + name(outbound));
+    }
+
+    /**
+     * Sets the pool the buffers of both directions are taken from, must be
+     * set before the relay is started.
+     * 
+     * @param pool a heap or direct pool, <code>null</code> to allocate the buffers
+     */
+    public synchronized void setBufferPool(BufferPool pool) {
+        if (running > 0 || upstream.start != 0)
+            throw new IllegalStateException("already started");
+        bufferPool = pool;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Stops forwarding in both directions.
+     */
+    public void stop() throws IOException {
+        closing = true;
+        inbound.stop();
+        outbound.stop();
+    }
+
+    public Connection getInbound() {
+        return inbound;
+    }
+
+    public Connection getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * Returns the number of bytes forwarded from the inbound to the outbound connection.
+     */
+    public long getUpstreamBytes() {
+        return upstream.bytes;
+    }
+
+    /**
+     * Returns the number of bytes forwarded from the outbound to the inbound connection.
+     */
+    public long getDownstreamBytes() {
+        return downstream.bytes;
+    }
+
+    /**
+     * Returns the average number of bytes forwarded per second from the
+     * inbound to the outbound connection, since the start until now or
+     * until the direction ended.
+     */
+    public double getUpstreamThroughput() {
+        return upstream.throughput();
+    }
+
+    /**
+     * Returns the average number of bytes forwarded per second from the
+     * outbound to the inbound connection, since the start until now or
+     * until the direction ended.
+     */
+    public double getDownstreamThroughput() {
+        return downstream.throughput();
+    }
+
+    /**
+     * Returns <code>true</code> while at least one direction is forwarding.
+     */
+    public synchronized boolean isRunning() {
+        return running > 0;
+    }
+
+    private static String name(Connection connection) {
+        int port = connection.getRemotePort();
+        return (port != -1) ? Integer.toString(port) : String.valueOf(connection.getRemoteAddress());
+    }
+
+    private static ReadableByteChannel readable(Transport transport) throws IOException {
+        if (transport instanceof ChannelTransport)
+            return ((ChannelTransport) transport).getChannel();
+        return Channels.newChannel(transport.getInputStream());
+    }
+
+    private static WritableByteChannel writable(Transport transport) throws IOException {
+        if (transport instanceof ChannelTransport)
+            return ((ChannelTransport) transport).getChannel();
+        return Channels.newChannel(transport.getOutputStream());
+    }
+
+    /**
+     * Closes both connections after an error in one direction,
+     * the other direction then ends with an exception that is not reported.
+     */
+    private void abort() {
+        closing = true;
+        try {
+            inbound.getTransport().close();
+        } catch (IOException ignored) {
+        }
+        try {
+            outbound.getTransport().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void finished(Exception exception) {
+        boolean last;
+        synchronized (this) {
+            running -= 1;
+            last = running == 0;
+        }
+        if (last) {
+            closing = true;
+            close(inbound, exception);
+            close(outbound, exception);
+        }
+    }
+
+    private static void close(Connection connection, Exception exception) {
+        Events.shutdown(connection, connection.getLocalPort(), exception);
+        connection.fireShutdown();
+        try {
+            connection.getTransport().close();
+        } catch (IOException ex) {
+            connection.fireException(ex);
+        }
+    }
+
+//  ############################################################################
+
+    /**
+     * Copies one direction.
+     */
+    private class Pump implements Runnable {
+
+        private final Connection from;
+        private final Connection to;
+        private final ReadableByteChannel input;
+        private final WritableByteChannel output;
+        private ByteBuffer buffer = null;
+
+        private volatile long bytes = 0;
+        private volatile long start = 0;
+        private volatile long end = 0;
+
+        Pump(Connection from, Connection to) throws IOException {
+            this.from = from;
+            this.to = to;
+            input = readable(from.getTransport());
+            output = writable(to.getTransport());
+        }
+
+        void start(String name) {
+            start = System.nanoTime();
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.setName(name);
+            thread.start();
+        }
+
+        double throughput() {
+            long begin = start;
+            if (begin == 0)
+                return 0;
+            long stop = end;
+            long nanos = ((stop != 0) ? stop : System.nanoTime()) - begin;
+            return (nanos > 0) ? bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+        }
+
+        @Override
+        public void run() {
+            Exception exception = null;
+            Connection failed = from;
+            BufferPool pool = bufferPool;
+            try {
+                if (pool != null) {
+                    buffer = pool.acquire(BUFFER_SIZE);
+                } else {
+                    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                }
+                while (true) {
+                    ReadEvent readEvent = Events.beginRead();
+                    int count = input.read(buffer);  // block
+                    if (count == -1)
+                        break;
+                    if (readEvent != null) {
+                        readEvent.finish(from, count);
+                    }
+
+                    failed = to;
+                    WriteEvent writeEvent = Events.beginWrite();
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer);  // blocks while the other side does not read
+                    }
+                    buffer.clear();
+                    if (writeEvent != null) {
+                        writeEvent.finish(to, count);
+                    }
+                    bytes += count;
+                    failed = from;
+                }
+                Transport transport = to.getTransport();
+                if (!transport.isOutputShutdown() && !transport.isClosed()) {
+                    transport.shutdownOutput();
+                }
+            } catch (IOException ex) {
+                if (!closing) {
+                    exception = ex;
+                    failed.fireException(ex);
+                    abort();
+                }
+            } finally {
+                if (pool != null && buffer != null) {
+                    pool.release(buffer);
+                }
+                end = System.nanoTime();
+                finished(exception);
+            }
+        }
+    }
+}
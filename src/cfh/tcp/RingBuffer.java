@@ -0,0 +1,167 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring of bytes from one writer to one reader, without locks.
+ *
+ * <P>Each side only advances its own position, published in a volatile
+ * field. A side that must wait, for data or for room, parks its thread
+ * until the other side unparks it. The reads, and the writes, may be
+ * done by different threads over time but never at the same time.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+class RingBuffer {
+
+    private final byte[] data;
+    private final int mask;
+
+    /** Positions, not wrapped, of the next byte to read and write. */
+    private volatile long head = 0;
+    private volatile long tail = 0;
+
+    /** No more data is written, the reader gets the end of stream after the data. */
+    private volatile boolean writeClosed = false;
+    /** The reader is gone, written data is dropped. */
+    private volatile boolean readClosed = false;
+    /** The reader is closed, writes fail. */
+    private volatile boolean reset = false;
+
+    private volatile Thread reader = null;
+    private volatile Thread writer = null;
+
+    /**
+     * @param capacity the size of the ring, a power of two
+     */
+    RingBuffer(int capacity) {
+        assert capacity > 0 && Integer.bitCount(capacity) == 1 : "capacity: " + capacity;
+
+        data = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    int capacity() {
+        return data.length;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without blocking.
+     */
+    int available() {
+        return readClosed ? 0 : (int) (tail - head);
+    }
+
+    /**
+     * Reads at least one byte, blocking until data is available.
+     *
+     * @return the number of bytes read, -1 at the end of stream
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        long h = head;
+        int available;
+        while (true) {
+            boolean closed = writeClosed;  // before tail: the last data is written before
+            if (readClosed)
+                return -1;
+            available = (int) (tail - h);
+            if (available > 0)
+                break;
+            if (closed)
+                return -1;
+            reader = Thread.currentThread();
+            if (tail == h && !writeClosed && !readClosed) {
+                LockSupport.park(this);
+            }
+            reader = null;
+            checkInterrupted();
+        }
+        int n = Math.min(len, available);
+        int offset = (int) (h & mask);
+        int first = Math.min(n, data.length - offset);
+        System.arraycopy(data, offset, b, off, first);
+        System.arraycopy(data, 0, b, off + first, n - first);
+        head = h + n;
+        unpark(writer);
+        return n;
+    }
+
+    /**
+     * Writes all bytes, blocking while the ring is full.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        long t = tail;
+        while (len > 0) {
+            if (writeClosed)
+                throw new IOException("output shut down");
+            if (reset)
+                throw new IOException("connection reset");
+            if (readClosed)
+                return;
+            int free = data.length - (int) (t - head);
+            if (free == 0) {
+                writer = Thread.currentThread();
+                if (t - head == data.length && !readClosed) {
+                    LockSupport.park(this);
+                }
+                writer = null;
+                checkInterrupted();
+                continue;
+            }
+            int n = Math.min(len, free);
+            int offset = (int) (t & mask);
+            int first = Math.min(n, data.length - offset);
+            System.arraycopy(b, off, data, offset, first);
+            System.arraycopy(b, off + first, data, 0, n - first);
+            t += n;
+            tail = t;
+            unpark(reader);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Ends the data, the reader gets the end of stream once all is read.
+     */
+    void closeWrite() {
+        writeClosed = true;
+        unpark(reader);
+    }
+
+    /**
+     * Ends the reading, a blocked read returns the end of stream and
+     * further written data is dropped.
+     */
+    void closeRead() {
+        readClosed = true;
+        unpark(reader);
+        unpark(writer);
+    }
+
+    /**
+     * Ends the reading, further writes fail.
+     */
+    void reset() {
+        reset = true;
+        closeRead();
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting");
+        }
+    }
+}
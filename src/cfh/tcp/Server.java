@@ -1,18 +1,47 @@
 package cfh.tcp;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cfh.tcp.Events.AcceptEvent;
+import cfh.tcp.Events.CallbackEvent;
 
 /**
  * Server for TCP connections.
  * 
+ * <P>Also accepts connections on a Unix domain socket, created with an
+ * {@link java.net.UnixDomainSocketAddress}, or on any other
+ * {@link ServerTransport}. The connections and listeners behave the same.
+ * 
+ * <P>For a restart without refusing connections, the new process either
+ * starts with the listening socket inherited, see {@link #inherited()},
+ * or binds the same port with {@link #setReusePort(boolean)} set in both
+ * processes; the old process then calls {@link #drain(long, TimeUnit)}
+ * to stop accepting and let its clients finish, or
+ * {@link #shutdown(long, TimeUnit)} to send the queued data and close
+ * the connections in bounded time.
+ * 
  * @author Carlos Heuberger
  * $Revision: 1.12 $
  */
@@ -21,11 +50,32 @@ public class Server {
     public static String getRevision() {
         return Server.class.getName() + " $Revision: 1.12 $";
     }
+
+    /** Maximum number of threads closing connections in parallel on shutdown. */
+    public static final int SHUTDOWN_THREADS = 16;
     
     private final List<ServerListener> listeners;
-    private List<Connection> connections;
+    private final List<Connection> connections;
     
     private final Acceptor acceptor;
+
+    private volatile CallbackMonitor monitor = null;
+    private volatile Tracer tracer = null;
+    private volatile SocketPolicy socketPolicy = null;
+
+    private volatile long inboundBytesPerSecond = 0;
+    private volatile long inboundMessagesPerSecond = 0;
+    private volatile long outboundBytesPerSecond = 0;
+    private volatile long outboundMessagesPerSecond = 0;
+
+    private volatile Path spillDirectory = null;
+    private volatile int spillQuota = 0;
+
+    private volatile BufferPool bufferPool = null;
+    private volatile RateLimit globalInboundLimit = null;
+    private volatile RateLimit globalOutboundLimit = null;
+
+    private volatile long startupNanos = -1;
     
     /**
      * Creates a new Server.
@@ -45,9 +95,9 @@ public class Server {
         if (port < 0 || port > 0xFFFF)
             throw new IllegalArgumentException("Port: " + port);
         
-        listeners = new ArrayList<ServerListener>();
-        connections = new ArrayList<Connection>();
-        acceptor = new Acceptor(port, backlog, bindAddr);
+        listeners = new CopyOnWriteArrayList<ServerListener>();
+        connections = new CopyOnWriteArrayList<Connection>();
+        acceptor = new Acceptor(new InetSocketAddress(bindAddr, port), backlog);
     }
     
     /**
@@ -63,7 +113,55 @@ public class Server {
     public Server(int port) {
         this(port, 0, null);
     }
+
+    /**
+     * Creates a new Server bound to the given address.
+     * 
+     * <P>The address may be an {@link InetSocketAddress} for TCP or an
+     * {@link java.net.UnixDomainSocketAddress} for a Unix domain socket;
+     * the file of the Unix domain socket must not exist, it is deleted
+     * when the server is stopped.
+     * <BR>If the <code>backlog</code> value is equal or less
+     * than 0, then the default value will be assumed.
+     * 
+     * @param address the local address
+     * @param backlog the listen backlog
+     */
+    public Server(SocketAddress address, int backlog) {
+        if (address == null)
+            throw new IllegalArgumentException("address must not be null");
+        
+        listeners = new CopyOnWriteArrayList<ServerListener>();
+        connections = new CopyOnWriteArrayList<Connection>();
+        acceptor = new Acceptor(address, backlog);
+    }
+
+    /**
+     * Creates a new Server accepting connections from an already bound transport.
+     * 
+     * @param transport the bound transport, closed when the server is stopped
+     */
+    public Server(ServerTransport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("transport must not be null");
+        
+        listeners = new CopyOnWriteArrayList<ServerListener>();
+        connections = new CopyOnWriteArrayList<Connection>();
+        acceptor = new Acceptor(transport);
+    }
     
+    /**
+     * Creates a new Server accepting connections from the listening socket
+     * inherited from the process that started this one, like with socket
+     * activation by <code>systemd</code> or <code>inetd</code> in wait mode.
+     * 
+     * @throws IOException if no listening socket was inherited
+     * @see System#inheritedChannel()
+     */
+    public static Server inherited() throws IOException {
+        return new Server(ChannelServerTransport.inherited());
+    }
+
     public void start() throws IOException {
         acceptor.start();
     }
@@ -71,6 +169,158 @@ public class Server {
     public void stop() throws IOException {
         acceptor.stop();
     }
+
+    /**
+     * Stops accepting connections and waits for the connected clients to
+     * close their connections. The connections still open after the
+     * timeout are stopped.
+     * 
+     * <P>The listeners are notified of the shutdown when the server stops
+     * accepting.
+     * 
+     * @param timeout the maximum time to wait
+     * @param unit the unit of <code>timeout</code>
+     * @return <code>true</code> if all connections were closed by the clients
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        acceptor.stopAccepting();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (connections) {
+            long remaining;
+            while (!connections.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(connections, remaining);
+            }
+        }
+        boolean drained = connections.isEmpty();
+        acceptor.stop();
+        return drained;
+    }
+
+    /**
+     * Stops accepting connections and closes the connected ones in
+     * parallel, without waiting for the clients.
+     * 
+     * <P>The connections get until the timeout to write their queued and
+     * spilled data, each one is closed as soon as its data is written or
+     * the timeout elapsed, by up to {@value #SHUTDOWN_THREADS} threads, so
+     * a slow client does not hold up the others. The caller does not wait,
+     * the connections still in the backlog are accepted and closed too.
+     * 
+     * @param timeout the maximum time to write the queued data
+     * @param unit the unit of <code>timeout</code>
+     * @return a future completed when all connections are closed and
+     *         their receiving threads ended, with <code>true</code> if all
+     *         queued data was written
+     */
+    public CompletableFuture<Boolean> shutdown(long timeout, TimeUnit unit) throws IOException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        if (unit == null)
+            throw new IllegalArgumentException("unit must not be null");
+        
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final Thread accepting = acceptor.stopAcceptingLater();
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acceptor.awaitStopped(accepting);
+                } catch (IOException ex) {
+                    future.completeExceptionally(ex);
+                    return;
+                }
+                List<Connection> stopping = new ArrayList<Connection>(connections);
+                ExecutorService executor = Executors.newFixedThreadPool(
+                        Math.max(1, Math.min(SHUTDOWN_THREADS, stopping.size())), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread t = new Thread(runnable);
+                        t.setDaemon(true);
+                        t.setName("Shutdown: " + count.incrementAndGet());
+                        return t;
+                    }
+                });
+                final Queue<Exception> exceptions = new ConcurrentLinkedQueue<Exception>();
+                final AtomicBoolean sent = new AtomicBoolean(true);
+                try {
+                    for (final Connection connection : stopping) {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    if (!connection.awaitSent(deadline)) {
+                                        sent.set(false);
+                                    }
+                                } catch (InterruptedException ex) {
+                                    Thread.currentThread().interrupt();
+                                    sent.set(false);
+                                }
+                                connections.remove(connection);
+                                try {
+                                    connection.close();
+                                    connection.join();
+                                } catch (IOException ex) {
+                                    exceptions.add(ex);
+                                } catch (InterruptedException ex) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        });
+                    }
+                    executor.shutdown();
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ex) {
+                    executor.shutdownNow();
+                    future.completeExceptionally(ex);
+                    return;
+                }
+                for (Exception ex : exceptions) {
+                    fireException(ex);
+                }
+                future.complete(sent.get());
+            }
+        };
+        thread.setDaemon(true);
+        int port = getPort();
+        thread.setName("Shutdown:" + (port != -1 ? port : getAddress()));
+        thread.start();
+        return future;
+    }
+
+    /**
+     * Sets if the listening socket is bound with <code>SO_REUSEPORT</code>,
+     * allowing a new process to listen on the same port while this one is
+     * draining its connections. Only for TCP, must be set before the server
+     * is started.
+     * 
+     * @param reusePort <code>true</code> to share the port
+     */
+    public void setReusePort(boolean reusePort) {
+        acceptor.setReusePort(reusePort);
+    }
+
+    public boolean isReusePort() {
+        return acceptor.reusePort;
+    }
+
+    /**
+     * Returns the time from the start of the process to the first
+     * accepted connection, -1 if none was accepted yet or the start of the
+     * process is not known.
+     */
+    public long getStartupTime(TimeUnit unit) {
+        long nanos = startupNanos;
+        return (nanos != -1) ? unit.convert(nanos, TimeUnit.NANOSECONDS) : -1;
+    }
+
+    private void firstAccept() {
+        Instant start = ProcessHandle.current().info().startInstant().orElse(null);
+        if (start != null) {
+            startupNanos = Duration.between(start, Instant.now()).toNanos();
+        }
+    }
     
     public void sendData(byte[] data) throws IOException {
         if (data == null)
@@ -78,37 +328,250 @@ public class Server {
         if (acceptor == null)
             throw new IllegalStateException("not running");
         
-        List<Connection> copy;
-        synchronized (connections) {
-            copy = new ArrayList<Connection>(connections);
-        }
-        for (Connection c : copy) {
+        for (Connection c : connections) {
             c.sendData(data);
         }
     }
     
+    /**
+     * Returns the local TCP port, -1 if not listening on TCP.
+     */
     public int getPort() {
-        return acceptor.getPort();
+        return Connection.port(acceptor.getAddress());
+    }
+
+    /**
+     * Returns the local address, the configured one if not started.
+     */
+    public SocketAddress getAddress() {
+        return acceptor.getAddress();
     }
     
     public List<Connection> getConnections() {
-        synchronized (connections) {
-            return Collections.unmodifiableList(connections);
-        }
+        return Collections.unmodifiableList(connections);
     }
     
     public void addListener(ServerListener listener) {
-        synchronized (listeners) {
-            listeners.add(listener);
-        }
+        listeners.add(listener);
     }
     
     public void removeListener(ServerListener listener) {
-        synchronized (listeners) {
-            listeners.remove(listener);
+        synchronized (listeners) {  // in sync with moving listeners to an async lane
+            if (!listeners.remove(listener)) {
+                for (ServerListener l : listeners) {
+                    if (CallbackMonitor.unwrap(l) == listener) {
+                        listeners.remove(l);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the monitor timing the listener callbacks of this server and
+     * of the connections accepted after this call.
+     * 
+     * @param monitor the monitor, <code>null</code> to stop timing
+     */
+    public void setCallbackMonitor(CallbackMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    public CallbackMonitor getCallbackMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Sets the tracer of the connections accepted after this call, the
+     * histograms are shared by all of them.
+     * 
+     * @param tracer the tracer, <code>null</code> for no tracing
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Sets the socket policy of the connections accepted after this call,
+     * each connection is tuned on its own.
+     * 
+     * @param policy the policy, <code>null</code> to keep the options of the system
+     */
+    public void setSocketPolicy(SocketPolicy policy) {
+        socketPolicy = policy;
+    }
+
+    public SocketPolicy getSocketPolicy() {
+        return socketPolicy;
+    }
+
+    /**
+     * Sets the limits of the data received by each connection accepted
+     * after this call, every connection gets its own {@link RateLimit}.
+     * 
+     * @param bytesPerSecond maximum bytes per second, 0 for no limit
+     * @param messagesPerSecond maximum messages per second, 0 for no limit
+     */
+    public void setInboundRate(long bytesPerSecond, long messagesPerSecond) {
+        checkRate(bytesPerSecond, messagesPerSecond);
+        inboundBytesPerSecond = bytesPerSecond;
+        inboundMessagesPerSecond = messagesPerSecond;
+    }
+
+    /**
+     * Sets the limits of the data sent by each connection accepted
+     * after this call, every connection gets its own {@link RateLimit}.
+     * 
+     * @param bytesPerSecond maximum bytes per second, 0 for no limit
+     * @param messagesPerSecond maximum messages per second, 0 for no limit
+     */
+    public void setOutboundRate(long bytesPerSecond, long messagesPerSecond) {
+        checkRate(bytesPerSecond, messagesPerSecond);
+        outboundBytesPerSecond = bytesPerSecond;
+        outboundMessagesPerSecond = messagesPerSecond;
+    }
+
+    /**
+     * Sets the limits shared by all connections of this server, in
+     * addition to the limits of each connection. The busy connections get
+     * an even share, the share of idle connections is used by the others.
+     * 
+     * @param inbound the limit of the received data, <code>null</code> for none
+     * @param outbound the limit of the sent data, <code>null</code> for none
+     */
+    public void setGlobalLimits(RateLimit inbound, RateLimit outbound) {
+        globalInboundLimit = inbound;
+        globalOutboundLimit = outbound;
+        for (Connection connection : connections) {
+            connection.setGlobalLimits(inbound, outbound);
         }
     }
+
+    public RateLimit getGlobalInboundLimit() {
+        return globalInboundLimit;
+    }
+
+    public RateLimit getGlobalOutboundLimit() {
+        return globalOutboundLimit;
+    }
+
+    /**
+     * Sets the spill file of each connection accepted after this call, a
+     * client that can not keep up with the sent data is disconnected once
+     * its file exceeds the quota.
+     * 
+     * @param directory the directory of the files, <code>null</code> to not spill
+     * @param quota the maximum size of each file in bytes
+     * @see Connection#setSpill(Path, int)
+     */
+    public void setSpill(Path directory, int quota) {
+        if (directory != null && quota <= Connection.HEADER_SIZE)
+            throw new IllegalArgumentException("quota must be greater than " + Connection.HEADER_SIZE + ": " + quota);
+        spillQuota = quota;
+        spillDirectory = directory;
+    }
+
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public int getSpillQuota() {
+        return spillQuota;
+    }
+
+    /**
+     * Sets the pool shared by the connections accepted after this call,
+     * limiting the memory of their receive buffers together.
+     * 
+     * @param pool a heap pool, <code>null</code> for none
+     * @see Connection#setBufferPool(BufferPool)
+     */
+    public void setBufferPool(BufferPool pool) {
+        if (pool != null && pool.isDirect())
+            throw new IllegalArgumentException("pool must not be direct");
+        bufferPool = pool;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private static void checkRate(long bytesPerSecond, long messagesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("bytesPerSecond must not be negative: " + bytesPerSecond);
+        if (messagesPerSecond < 0)
+            throw new IllegalArgumentException("messagesPerSecond must not be negative: " + messagesPerSecond);
+    }
+
+    private static RateLimit limit(long bytesPerSecond, long messagesPerSecond) {
+        if (bytesPerSecond == 0 && messagesPerSecond == 0)
+            return null;
+        return new RateLimit(bytesPerSecond, messagesPerSecond);
+    }
     
+    // listeners is copy-on-write, iterating on a snapshot allows list changes in the listener
+
+    private void fireStarted() {
+        CallbackMonitor monitor = this.monitor;
+        for (ServerListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.started(this);
+            called(listener, "started", null, event, monitor, start);
+        }
+    }
+
+    private void fireConnected(Connection connection) {
+        CallbackMonitor monitor = this.monitor;
+        for (ServerListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.connected(this, connection);
+            called(listener, "connected", connection, event, monitor, start);
+        }
+    }
+
+    private void fireException(Exception ex) {
+        CallbackMonitor monitor = this.monitor;
+        for (ServerListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.handleException(this, ex);
+            called(listener, "handleException", null, event, monitor, start);
+        }
+    }
+
+    private void fireShutdown() {
+        CallbackMonitor monitor = this.monitor;
+        for (ServerListener listener : listeners) {
+            CallbackEvent event = Events.beginCallback();
+            long start = (monitor != null) ? System.nanoTime() : 0;
+            listener.shutdown(this);
+            called(listener, "shutdown", null, event, monitor, start);
+        }
+    }
+
+    private void called(ServerListener listener, String callback, Connection connection, CallbackEvent event,
+            CallbackMonitor monitor, long start) {
+        if (monitor != null && monitor.check(listener, callback, start)) {
+            synchronized (listeners) {
+                int index = listeners.indexOf(listener);
+                if (index != -1) {
+                    listeners.set(index, monitor.async(listener));
+                }
+            }
+        }
+        if (event != null) {
+            event.finish(listener, callback, connection);
+        }
+    }
+
+
 //  ############################################################################
     
     /**
@@ -116,39 +579,43 @@ public class Server {
      */
     private class Acceptor implements Runnable {
         
-        private final int port;
+        private final SocketAddress address;
         private final int backlog;
-        private final InetAddress bindAddr;
         
-        private ServerSocket socket = null;
+        private ServerTransport transport = null;
+        private volatile boolean reusePort = false;
         
         private Thread thread = null;
-        private boolean shutdown = false;
+        private volatile boolean shutdown = false;
+        private boolean accepted = false;
         
         private final CloseConnListener closeConnListener;
         
         /**
          * Creates a new Acceptor to wait for connections.
          * 
-         * <P>The <code>port</code> must be between 0 and 65535, inclusive.
-         * <BR>If the <code>backlog</code> value is equal or less
+         * <P>If the <code>backlog</code> value is equal or less
          * than 0, then the default value will be assumed.
-         * <BR>If <code>bindAddr</code> is null, it will default accepting
-         * connections on any/all local addresses.
          * 
-         * @param port the local TCP port
+         * @param address the local address the server will bind to
          * @param backlog the listen backlog
-         * @param bindAddr the local InetAddress the server will bind to
-         * 
-         * @throws  SecurityException if a security manager exists and 
-         * its <code>checkListen</code> method doesn't allow the operation.
-         * 
-         * @throws IOException if an I/O error occurs when opening the socket.
          */
-        protected Acceptor(int port, int backlog, InetAddress bindAddr) {
-            this.port = port;
+        protected Acceptor(SocketAddress address, int backlog) {
+            this.address = address;
             this.backlog = backlog;
-            this.bindAddr = bindAddr;
+            
+            closeConnListener = new CloseConnListener();
+        }
+        
+        /**
+         * Creates a new Acceptor to wait for connections on a bound transport.
+         * 
+         * @param transport the bound transport
+         */
+        protected Acceptor(ServerTransport transport) {
+            this.address = transport.getLocalAddress();
+            this.backlog = 0;
+            this.transport = transport;
             
             closeConnListener = new CloseConnListener();
         }
@@ -156,84 +623,147 @@ public class Server {
         protected void start() throws IOException {
             if (shutdown)
                 new IllegalStateException("can only be started once");
-            if (socket != null)
+            if (thread != null)
                 new IllegalStateException("already started");
             
-            socket = new ServerSocket(port, backlog, bindAddr);
+            if (transport == null) {
+                transport = ChannelServerTransport.bind(address, backlog, reusePort);
+            }
             if (thread == null) {
                 thread = new Thread(this);
                 thread.setDaemon(true);
-                thread.setName("Acceptor:" + port);
+                int port = getPort();
+                thread.setName("Acceptor:" + (port != -1 ? port : getAddress()));
             }
             thread.start();
         }
         
-        protected void stop() throws IOException {
+        protected synchronized void setReusePort(boolean reusePort) {
+            if (thread != null)
+                throw new IllegalStateException("already started");
+            this.reusePort = reusePort;
+        }
+        
+        /**
+         * Stops accepting new connections. The connections already waiting
+         * in the backlog are accepted before the transport is closed, the
+         * system would reset them; with <code>SO_REUSEPORT</code> the new
+         * connections then go to the other listeners of the port. Only a
+         * connection arriving between the last accept and the close is still
+         * reset, the system cannot be told to stop routing to the listener.
+         * Waits until the backlog was accepted.
+         */
+        protected void stopAccepting() throws IOException {
+            awaitStopped(stopAcceptingLater());
+        }
+        
+        /**
+         * Stops accepting new connections like {@link #stopAccepting()},
+         * without waiting for the backlog.
+         * 
+         * @return the thread accepting the backlog, <code>null</code> if none
+         */
+        protected Thread stopAcceptingLater() throws IOException {
             shutdown = true;
-            if (socket != null) {
-                socket.close();
+            if (transport == null)
+                return null;
+            Thread t;
+            synchronized (this) {
+                t = thread;
             }
-            synchronized (connections) {
-                ListIterator<Connection> iter = connections.listIterator();
-                while (iter.hasNext()) {
-                    Connection c = iter.next();
-                    iter.remove();
-                    c.stop();
+            if (t == null) {
+                transport.close();
+                return null;
+            }
+            transport.wakeup();
+            return t;
+        }
+        
+        /**
+         * Waits for the thread returned by {@link #stopAcceptingLater()}.
+         */
+        protected void awaitStopped(Thread t) throws IOException {
+            if (t != null && t != Thread.currentThread()) {
+                try {
+                    t.join();  // drained and closed
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while draining the backlog");
                 }
             }
         }
         
-        protected int getPort() {
-            return (socket != null) ? socket.getLocalPort() : port;
+        protected void stop() throws IOException {
+            shutdown = true;
+            if (transport != null) {
+                transport.close();
+            }
+            for (Connection c : connections) {
+                connections.remove(c);
+                c.stop();
+            }
+        }
+        
+        protected SocketAddress getAddress() {
+            SocketAddress local = (transport != null) ? transport.getLocalAddress() : null;
+            return (local != null) ? local : address;
         }
         
         @Override
         public void run() {
-            List<ServerListener> copy;  // to allow list changes in the listener 
-            
-            synchronized (listeners) {
-                copy = new ArrayList<ServerListener>(listeners);
-            }
-            for (ServerListener listener : copy) {
-                listener.started(Server.this);
-            }
+            fireStarted();
             try {
                 while (!shutdown) {
-                    Socket client = socket.accept();
-                    Connection connection = new Connection(client);
-                    synchronized (connections) {
-                        connections.add(connection);
-                    }
-                    connection.addListener(closeConnListener);
-                    
-                    synchronized (listeners) {
-                        copy = new ArrayList<ServerListener>(listeners);
-                    }
-                    for (ServerListener listener : copy) {
-                        listener.connected(Server.this, connection);
+                    Transport client = transport.accept();
+                    if (client != null) {
+                        accepted(client);
                     }
-                    
-                    connection.start();
                 }
+                Transport client;
+                while ((client = transport.acceptNow()) != null) {
+                    accepted(client);
+                }
+                transport.close();
             } catch (IOException ex) {
-                if (shutdown && (ex instanceof SocketException)) {
+                if (shutdown && (ex instanceof SocketException || ex instanceof ClosedChannelException)) {
                     // ignore, socket was closed
                 } else {
-                    synchronized (listeners) {
-                        copy = new ArrayList<ServerListener>(listeners);
-                    }
-                    for (ServerListener listener : copy) {
-                        listener.handleException(Server.this, ex);
-                    }
+                    fireException(ex);
                 }
             } finally {
                 shutdown = true;
-                synchronized (listeners) {
-                    copy = new ArrayList<ServerListener>(listeners);
-                }
-                for (ServerListener listener : copy) {
-                    listener.shutdown(Server.this);
-                }
+                fireShutdown();
+            }
+        }
+        
+        private void accepted(Transport client) throws IOException {
+            AcceptEvent event = Events.beginAccept();
+            if (!accepted) {
+                accepted = true;
+                firstAccept();
+            }
+            Connection connection = new Connection(client);
+            connection.setCallbackMonitor(monitor);
+            connection.setTracer(tracer);
+            connection.setSocketPolicy(socketPolicy);
+            connection.setInboundLimit(limit(inboundBytesPerSecond, inboundMessagesPerSecond));
+            connection.setOutboundLimit(limit(outboundBytesPerSecond, outboundMessagesPerSecond));
+            connection.setGlobalLimits(globalInboundLimit, globalOutboundLimit);
+            connection.setBufferPool(bufferPool);
+            Path spill = spillDirectory;
+            if (spill != null) {
+                connection.setSpill(spill, spillQuota);
+            }
+            connections.add(connection);
+            connection.setCloseListener(closeConnListener);
+            
+            fireConnected(connection);
+            
+            if (!connection.isRelayed()) {
+                connection.start();
+            }
+            if (event != null) {
+                event.finish(connection, connection.getLocalPort());
             }
         }
     }
@@ -245,6 +775,7 @@ public class Server {
         public void shutdown(Connection connection) {
             synchronized (connections) {
                 connections.remove(connection);
+                connections.notifyAll();  // drain
             }
         }
     }
@@ -0,0 +1,49 @@
+package cfh.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * A bound endpoint accepting {@link Transport}s for a {@link Server}.
+ * 
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface ServerTransport extends Closeable {
+    
+    /**
+     * Waits for a connection.
+     * 
+     * @return the accepted connection, <code>null</code> after {@link #wakeup()}
+     * @throws IOException if an I/O error occurs, or the transport was closed
+     */
+    Transport accept() throws IOException;
+
+    /**
+     * Accepts a connection waiting in the backlog, without blocking.
+     * 
+     * @return the accepted connection, <code>null</code> if none is waiting
+     *         or the transport can not tell
+     */
+    default Transport acceptNow() throws IOException {
+        return null;
+    }
+
+    /**
+     * Makes a blocked {@link #accept()} return <code>null</code>, the
+     * transport stays open so the backlog can be drained with
+     * {@link #acceptNow()}. By default the transport is closed.
+     */
+    default void wakeup() throws IOException {
+        close();
+    }
+    
+    /**
+     * Closes the transport, a blocked {@link #accept()} throws an IOException.
+     */
+    @Override
+    void close() throws IOException;
+    
+    SocketAddress getLocalAddress();
+}
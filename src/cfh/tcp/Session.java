@@ -0,0 +1,589 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A stream of messages that survives reconnects.
+ *
+ * <P>The messages of each side are numbered and kept in a replay window
+ * until the peer acknowledges them; a new connection continues after the
+ * last message the peer received, only the missed messages are sent
+ * again and a message received twice is dropped. The peer acknowledges
+ * every {@value #ACK_INTERVAL} messages and when reconnecting.
+ *
+ * <P>A client creates a session and calls {@link #connect(Connection)}
+ * with a new connection to the server, again after each disconnect; the
+ * sessions of the server are created by a {@link SessionManager}.
+ * Messages sent while disconnected are kept in the window and sent on the
+ * next connection.
+ *
+ * <P>The window holds at most the given number of bytes, the oldest
+ * messages are dropped if the peer does not acknowledge in time. If a side
+ * can no longer replay the messages the other missed, or the session
+ * expired on the server, the server starts a new session: both sides
+ * get {@link SessionListener#connected(Session, boolean)} with
+ * <code>false</code> and the messages of the old session are lost.
+ *
+ * <P>Each frame starts with its type: <code>HELLO</code> with the id,
+ * the last received and the first kept sequence number, answered by
+ * <code>WELCOME</code> with the id, if resumed and the last received
+ * sequence number; then <code>DATA</code> with the sequence number and
+ * the message, <code>ACK</code> with the last received sequence number,
+ * and <code>CLOSE</code>.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class Session {
+
+    public static final int DEFAULT_REPLAY_WINDOW = 1024 * 1024;
+    public static final int ACK_INTERVAL = 32;
+
+    static final int HELLO = 1;
+    private static final int WELCOME = 2;
+    private static final int DATA = 3;
+    private static final int ACK = 4;
+    private static final int CLOSE = 5;
+
+    /** Type and sequence number. */
+    private static final int DATA_HEADER = 9;
+
+    private final SessionManager manager;
+    private final int replayWindow;
+    private final List<SessionListener> listeners;
+
+    // guarded by this
+    private long id;
+    private Connection connection = null;
+    private boolean welcomed = false;
+    private boolean closed = false;
+    private long sent = 0;
+    private final ArrayDeque<Message> window = new ArrayDeque<Message>();
+    private long windowBytes = 0;
+    /** The messages not yet sent on the current connection. */
+    private final ArrayDeque<Message> unsent = new ArrayDeque<Message>();
+    private long disconnectedNanos = 0;
+    private long replayed = 0;
+
+    /**
+     * Held while sending the unsent messages, in order; the thread receiving
+     * from the peer never waits for it, see {@link #flush(boolean)}.
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /** Serializes the delivery of the received messages, also from an old and a new connection. */
+    private final Object deliverLock = new Object();
+    /** Guards the sequence numbers of the received messages, never held calling listeners. */
+    private final Object receiveLock = new Object();
+    // guarded by receiveLock
+    private volatile long received = 0;
+    private long acknowledged = 0;
+
+    /**
+     * Creates a new client session with the default replay window.
+     */
+    public Session() {
+        this(DEFAULT_REPLAY_WINDOW);
+    }
+
+    /**
+     * Creates a new client session.
+     *
+     * @param replayWindow the maximum number of bytes kept for a replay
+     */
+    public Session(int replayWindow) {
+        this(null, 0, replayWindow);
+    }
+
+    Session(SessionManager manager, long id, int replayWindow) {
+        if (replayWindow <= 0)
+            throw new IllegalArgumentException("replayWindow must be positive: " + replayWindow);
+
+        this.manager = manager;
+        this.id = id;
+        this.replayWindow = replayWindow;
+        listeners = new CopyOnWriteArrayList<SessionListener>();
+    }
+
+    /**
+     * Continues the session over a new connection to the server, replacing
+     * the current one; the listeners get <code>connected</code> once the
+     * server answered.
+     *
+     * @param conn a connection not yet started, set to framed and started
+     * @throws IOException if the session is closed or sending fails
+     */
+    public void connect(Connection conn) throws IOException {
+        if (conn == null)
+            throw new IllegalArgumentException("connection must not be null");
+        if (manager != null)
+            throw new IllegalStateException("connected by the session manager");
+
+        conn.setFramed(true);
+        Connection old;
+        byte[] hello;
+        synchronized (this) {
+            if (closed)
+                throw new IOException("session closed");
+            old = connection;
+            connection = conn;
+            welcomed = false;
+            unsent.clear();
+            hello = ByteBuffer.allocate(25).put((byte) HELLO).putLong(id).putLong(received)
+                    .putLong(firstKept()).array();
+        }
+        if (old != null) {
+            old.close();
+        }
+        conn.addBufferListener(new Link(conn));
+        conn.start();
+        conn.sendData(hello);
+    }
+
+    /**
+     * Takes over a connection of the server, after its <code>HELLO</code>.
+     *
+     * @param peerReceived the last sequence number received by the client
+     */
+    void accept(Connection conn, boolean resumed, long peerReceived) throws IOException {
+        Connection old;
+        synchronized (this) {
+            old = connection;
+            connection = conn;
+            welcomed = false;
+            unsent.clear();
+        }
+        if (old != null) {
+            old.close();
+        }
+        conn.addBufferListener(new Link(conn));
+        conn.sendData(ByteBuffer.allocate(18).put((byte) WELCOME).putLong(id).put((byte) (resumed ? 1 : 0))
+                .putLong(received).array());
+        synchronized (this) {
+            if (conn != connection)
+                return;  // replaced meanwhile
+            replay(resumed ? peerReceived : 0, resumed);
+            welcomed = true;
+        }
+        flush(false);
+        fireConnected(resumed);
+    }
+
+    /**
+     * Returns if the messages the peer missed can still be replayed and
+     * the peer can replay the ones missed here.
+     */
+    synchronized boolean canResume(long peerReceived, long peerFirstKept) {
+        return !closed && peerReceived <= sent && firstKept() <= peerReceived + 1
+                && peerFirstKept <= received + 1;
+    }
+
+    synchronized boolean isExpired(long now, long expiryNanos) {
+        return !closed && connection == null && now - disconnectedNanos >= expiryNanos;
+    }
+
+    /**
+     * Closes the session without telling the peer.
+     */
+    void expire() {
+        try {
+            close(false);
+        } catch (IOException ex) {
+            fireException(ex);
+        }
+    }
+
+    /**
+     * Sends a message, or keeps it for the next connection if disconnected.
+     */
+    public void sendData(byte[] data) throws IOException {
+        if (data == null)
+            throw new IllegalArgumentException("data must not be null");
+
+        byte[] frame = new byte[DATA_HEADER + data.length];
+        synchronized (this) {
+            if (closed)
+                throw new IOException("session closed");
+            Message message = new Message(++sent, frame);
+            ByteBuffer.wrap(frame).put((byte) DATA).putLong(message.sequence).put(data);
+            window.add(message);
+            windowBytes += frame.length;
+            while (windowBytes > replayWindow && window.size() > 1) {
+                windowBytes -= window.poll().frame.length;
+            }
+            if (connection == null || !welcomed)
+                return;
+            unsent.add(message);
+        }
+        flush(true);
+    }
+
+    /**
+     * Sends the unsent messages on the current connection, in order, holding
+     * the send lock. A thread not getting the lock at once either waits for
+     * it or leaves its messages to the holder, which checks for more after
+     * releasing it.
+     *
+     * @param wait <code>false</code> for the thread receiving from the peer
+     */
+    private void flush(boolean wait) {
+        if (wait) {
+            sendLock.lock();
+        } else if (!sendLock.tryLock()) {
+            return;
+        }
+        while (true) {
+            try {
+                while (true) {
+                    Connection conn;
+                    Message message;
+                    synchronized (this) {
+                        conn = connection;
+                        message = (conn != null && welcomed) ? unsent.poll() : null;
+                    }
+                    if (message == null)
+                        break;
+                    try {
+                        conn.sendData(message.frame);
+                    } catch (IOException ex) {
+                        // kept in the window, the connection shuts down and is replaced
+                    }
+                }
+            } finally {
+                sendLock.unlock();
+            }
+            synchronized (this) {
+                if (unsent.isEmpty())
+                    return;
+            }
+            if (!sendLock.tryLock())
+                return;  // sent by the new holder
+        }
+    }
+
+    /**
+     * Closes the session on both sides, the messages not yet received by
+     * the peer are dropped.
+     */
+    public void close() throws IOException {
+        close(true);
+    }
+
+    private void close(boolean notify) throws IOException {
+        Connection conn;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            conn = connection;
+            connection = null;
+            welcomed = false;
+            window.clear();
+            windowBytes = 0;
+            unsent.clear();
+        }
+        if (manager != null) {
+            manager.remove(this);
+        }
+        try {
+            if (conn != null) {
+                if (notify) {
+                    conn.sendData(new byte[] { CLOSE });
+                }
+                conn.close();
+            }
+        } finally {
+            fireClosed();
+        }
+    }
+
+    /**
+     * Returns the id given by the server, 0 if not yet connected.
+     */
+    public synchronized long getId() {
+        return id;
+    }
+
+    public SessionManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Returns the current connection, <code>null</code> while disconnected.
+     */
+    public synchronized Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns if the session has a connection the peer answered on.
+     */
+    public synchronized boolean isConnected() {
+        return connection != null && welcomed;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public int getReplayWindow() {
+        return replayWindow;
+    }
+
+    /**
+     * Returns the sequence number of the last message sent.
+     */
+    public synchronized long getLastSent() {
+        return sent;
+    }
+
+    /**
+     * Returns the sequence number of the last message received.
+     */
+    public long getLastReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the number of messages sent again after a reconnect.
+     */
+    public synchronized long getReplayed() {
+        return replayed;
+    }
+
+    public void addListener(SessionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SessionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the sequence number of the oldest message kept.
+     */
+    private long firstKept() {
+        return window.isEmpty() ? sent + 1 : window.peek().sequence;
+    }
+
+    /**
+     * Drops the messages received by the peer.
+     */
+    private void trim(long peerReceived) {
+        while (!window.isEmpty() && window.peek().sequence <= peerReceived) {
+            windowBytes -= window.poll().frame.length;
+        }
+    }
+
+    /**
+     * Queues the messages the peer did not receive to be sent on the new
+     * connection, called holding the lock.
+     *
+     * @param resumed <code>true</code> if the messages are sent again
+     */
+    private void replay(long peerReceived, boolean resumed) {
+        trim(peerReceived);
+        unsent.clear();
+        unsent.addAll(window);
+        if (resumed) {
+            replayed += window.size();
+        }
+    }
+
+    private void welcomed(Connection conn, long newId, boolean resumed, long peerReceived) {
+        boolean lost;
+        synchronized (this) {
+            if (conn != connection)
+                return;  // replaced meanwhile
+            lost = !resumed && id != 0;
+            if (lost) {
+                // the session was lost, start over
+                sent = 0;
+                window.clear();
+                windowBytes = 0;
+            }
+        }
+        if (lost) {
+            synchronized (receiveLock) {
+                received = 0;
+                acknowledged = 0;
+            }
+        }
+        synchronized (this) {
+            if (conn != connection)
+                return;
+            id = newId;
+            replay(peerReceived, resumed);
+            welcomed = true;
+        }
+        flush(false);
+        fireConnected(resumed);
+    }
+
+    private void received(Connection conn, long sequence, byte[] data) throws IOException {
+        long ack = 0;
+        synchronized (deliverLock) {
+            synchronized (receiveLock) {
+                if (sequence <= received)
+                    return;  // replayed, already received on the old connection
+                if (sequence != received + 1)
+                    throw new IOException("messages " + (received + 1) + " to " + (sequence - 1) + " missing");
+                received = sequence;
+                if (sequence - acknowledged >= ACK_INTERVAL) {
+                    acknowledged = sequence;
+                    ack = sequence;
+                }
+            }
+            fireReceivedData(data);
+        }
+        if (ack != 0) {
+            conn.sendData(ByteBuffer.allocate(9).put((byte) ACK).putLong(ack).array());
+        }
+    }
+
+    private synchronized void acknowledged(long peerReceived) {
+        trim(peerReceived);
+    }
+
+    private void disconnected(Connection conn) {
+        synchronized (this) {
+            if (conn != connection || closed)
+                return;
+            connection = null;
+            welcomed = false;
+            unsent.clear();
+            disconnectedNanos = System.nanoTime();
+        }
+        fireDisconnected();
+    }
+
+    private synchronized boolean isCurrent(Connection conn) {
+        return conn == connection;
+    }
+
+    private void fireConnected(boolean resumed) {
+        for (SessionListener listener : listeners) {
+            listener.connected(this, resumed);
+        }
+    }
+
+    private void fireReceivedData(byte[] data) {
+        for (SessionListener listener : listeners) {
+            listener.receivedData(this, data);
+        }
+    }
+
+    private void fireDisconnected() {
+        for (SessionListener listener : listeners) {
+            listener.disconnected(this);
+        }
+    }
+
+    private void fireClosed() {
+        for (SessionListener listener : listeners) {
+            listener.closed(this);
+        }
+    }
+
+    private void fireException(Exception ex) {
+        for (SessionListener listener : listeners) {
+            listener.handleException(this, ex);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Session[%016x, sent=%d, received=%d, kept=%d%s]",
+                id, sent, received, window.size(), closed ? ", closed" : (connection == null) ? ", disconnected" : "");
+    }
+
+//  ############################################################################
+
+    /**
+     * Decodes the frames of one connection of the session.
+     */
+    private class Link extends BufferListener.Adapter {
+
+        private final Connection conn;
+
+        Link(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void receivedData(Connection c, ByteBuffer data) {
+            int pos = data.position();
+            try {
+                int type = (data.remaining() > 0) ? data.get(pos) & 0xFF : -1;
+                switch (type) {
+                    case WELCOME:
+                        check(data, 18);
+                        welcomed(conn, data.getLong(pos + 1), data.get(pos + 9) != 0, data.getLong(pos + 10));
+                        break;
+                    case DATA:
+                        check(data, DATA_HEADER);
+                        byte[] bytes = new byte[data.remaining() - DATA_HEADER];
+                        data.get(pos + DATA_HEADER, bytes);
+                        received(conn, data.getLong(pos + 1), bytes);
+                        break;
+                    case ACK:
+                        check(data, 9);
+                        acknowledged(data.getLong(pos + 1));
+                        break;
+                    case CLOSE:
+                        if (isCurrent(conn)) {
+                            close(false);
+                        }
+                        break;
+                    default:
+                        throw new IOException("unknown frame type: " + type);
+                }
+            } catch (IOException ex) {
+                if (isCurrent(conn)) {
+                    fireException(ex);
+                }
+                try {
+                    conn.stop();
+                } catch (IOException ex2) {
+                    fireException(ex2);
+                }
+            }
+        }
+
+        private void check(ByteBuffer data, int length) throws IOException {
+            if (data.remaining() < length)
+                throw new IOException("frame too short: " + data.remaining() + " bytes");
+        }
+
+        @Override
+        public void handleException(Connection c, Exception ex) {
+            if (isCurrent(conn)) {
+                fireException(ex);
+            }
+        }
+
+        @Override
+        public void shutdown(Connection c) {
+            disconnected(conn);
+        }
+    }
+
+//  ============================================================================
+
+    private static class Message {
+
+        private final long sequence;
+        /** The complete <code>DATA</code> frame. */
+        private final byte[] frame;
+
+        Message(long sequence, byte[] frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cfh.tcp;
+
+/**
+ * Listener for the events of a resumable {@link Session}.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface SessionListener {
+
+    /**
+     * The session got a connection.
+     *
+     * @param session the Session instance
+     * @param resumed <code>true</code> if the session continues where it
+     *        was disconnected, <code>false</code> if it is new: the messages
+     *        of a previous session were lost and a full resync is needed
+     */
+    void connected(Session session, boolean resumed);
+
+    /**
+     * A message was received, each message once and in order, also
+     * across reconnects.
+     */
+    void receivedData(Session session, byte[] data);
+
+    /**
+     * The connection of the session shut down, the session can be resumed
+     * with a new connection.
+     */
+    void disconnected(Session session);
+
+    /**
+     * The session was closed, by either side or because it expired.
+     */
+    void closed(Session session);
+
+    /**
+     * An exception was catched in the session or its connection.
+     *
+     * @param session the Session instance.
+     * @param ex The Exception.
+     */
+    void handleException(Session session, Exception ex);
+
+//  ############################################################################
+
+    public class Adapter implements SessionListener {
+
+        @Override
+        public void connected(Session session, boolean resumed) {
+            //
+        }
+
+        @Override
+        public void receivedData(Session session, byte[] data) {
+            //
+        }
+
+        @Override
+        public void disconnected(Session session) {
+            //
+        }
+
+        @Override
+        public void closed(Session session) {
+            //
+        }
+
+        @Override
+        public void handleException(Session session, Exception ex) {
+            //
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The resumable {@link Session}s of a server.
+ *
+ * <P>Each connection accepted by the server is set to framed and must
+ * start with the <code>HELLO</code> of a client session. A client without
+ * id, or whose session is unknown, expired or can not be resumed, gets a
+ * new session announced to the {@link SessionManagerListener}s; otherwise
+ * the session continues on the new connection, replacing the old one, and
+ * only the messages the client missed are sent again.
+ *
+ * <P>A disconnected session is kept until it expires, checked whenever a
+ * client connects. All connections of the server are used for sessions,
+ * so no other listeners should read from them.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class SessionManager {
+
+    public static final long DEFAULT_EXPIRY_SECONDS = 60;
+
+    private final Server server;
+    private final ConcurrentMap<Long, Session> sessions;
+    private final List<SessionManagerListener> listeners;
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile int replayWindow = Session.DEFAULT_REPLAY_WINDOW;
+    private volatile long expiryNanos = TimeUnit.SECONDS.toNanos(DEFAULT_EXPIRY_SECONDS);
+
+    /**
+     * Creates the manager, must be called before the server is started.
+     */
+    public SessionManager(Server server) {
+        if (server == null)
+            throw new IllegalArgumentException("server must not be null");
+
+        this.server = server;
+        sessions = new ConcurrentHashMap<Long, Session>();
+        listeners = new CopyOnWriteArrayList<SessionManagerListener>();
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.setFramed(true);
+                connection.addBufferListener(new Greeter());
+            }
+        });
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    /**
+     * Sets the replay window of new sessions.
+     *
+     * @param bytes the maximum number of bytes kept per session
+     */
+    public void setReplayWindow(int bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("bytes must be positive: " + bytes);
+        replayWindow = bytes;
+    }
+
+    public int getReplayWindow() {
+        return replayWindow;
+    }
+
+    /**
+     * Sets how long a disconnected session is kept.
+     */
+    public void setExpiry(long time, TimeUnit unit) {
+        if (time < 0)
+            throw new IllegalArgumentException("time must not be negative: " + time);
+        expiryNanos = unit.toNanos(time);
+    }
+
+    public long getExpiry(TimeUnit unit) {
+        return unit.convert(expiryNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the session with the given id, <code>null</code> if unknown.
+     */
+    public Session getSession(long id) {
+        return sessions.get(id);
+    }
+
+    public List<Session> getSessions() {
+        return new ArrayList<Session>(sessions.values());
+    }
+
+    public void addListener(SessionManagerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SessionManagerListener listener) {
+        listeners.remove(listener);
+    }
+
+    void remove(Session session) {
+        sessions.remove(session.getId(), session);
+    }
+
+    /**
+     * Closes the sessions disconnected for longer than the expiry.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        for (Session session : sessions.values()) {
+            if (session.isExpired(now, expiryNanos)) {
+                session.expire();
+            }
+        }
+    }
+
+    private Session newSession() {
+        while (true) {
+            long id = random.nextLong();
+            if (id == 0)
+                continue;
+            Session session = new Session(this, id, replayWindow);
+            if (sessions.putIfAbsent(id, session) == null)
+                return session;
+        }
+    }
+
+    private void hello(Connection connection, ByteBuffer data) throws IOException {
+        int pos = data.position();
+        if (data.remaining() < 25 || data.get(pos) != Session.HELLO)
+            throw new IOException("session expected from " + connection);
+        long id = data.getLong(pos + 1);
+        long received = data.getLong(pos + 9);
+        long firstKept = data.getLong(pos + 17);
+
+        expire();
+        Session session = (id != 0) ? sessions.get(id) : null;
+        boolean resumed = session != null && session.canResume(received, firstKept);
+        if (!resumed) {
+            if (session != null) {
+                session.expire();  // messages lost, replaced by a new session
+            }
+            session = newSession();
+            fireOpened(session);
+        }
+        session.accept(connection, resumed, received);
+    }
+
+    private void fireOpened(Session session) {
+        for (SessionManagerListener listener : listeners) {
+            listener.opened(this, session);
+        }
+    }
+
+    private void fireException(Exception ex) {
+        for (SessionManagerListener listener : listeners) {
+            listener.handleException(this, ex);
+        }
+    }
+
+//  ############################################################################
+
+    /**
+     * Waits for the <code>HELLO</code> on a new connection, then hands it
+     * over to its session.
+     */
+    private class Greeter extends BufferListener.Adapter {
+
+        @Override
+        public void receivedData(Connection connection, ByteBuffer data) {
+            connection.removeBufferListener(this);
+            try {
+                hello(connection, data);
+            } catch (IOException ex) {
+                fireException(ex);
+                try {
+                    connection.close();
+                } catch (IOException ex2) {
+                    fireException(ex2);
+                }
+            }
+        }
+
+        @Override
+        public void handleException(Connection connection, Exception ex) {
+            fireException(ex);
+        }
+    }
+}
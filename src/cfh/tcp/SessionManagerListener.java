@@ -0,0 +1,42 @@
+package cfh.tcp;
+
+/**
+ * Listener for the events of a {@link SessionManager}.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface SessionManagerListener {
+
+    /**
+     * A client started a new session. The data received in the session is
+     * passed to its listeners added during this call.
+     *
+     * @param manager the SessionManager instance
+     * @param session the new Session
+     */
+    void opened(SessionManager manager, Session session);
+
+    /**
+     * An exception was catched in a connection before its session was known.
+     *
+     * @param manager the SessionManager instance.
+     * @param ex The Exception.
+     */
+    void handleException(SessionManager manager, Exception ex);
+
+//  ############################################################################
+
+    public class Adapter implements SessionManagerListener {
+
+        @Override
+        public void opened(SessionManager manager, Session session) {
+            //
+        }
+
+        @Override
+        public void handleException(SessionManager manager, Exception ex) {
+            //
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Socket options set on connections and adapted to their traffic.
+ *
+ * <P>Set a policy with {@link Connection#setSocketPolicy(SocketPolicy)} or
+ * {@link Server#setSocketPolicy(SocketPolicy)}; a policy can be shared by
+ * many connections, each gets its own {@link Tuning}. The policy first
+ * sets <code>SO_KEEPALIVE</code> and <code>TCP_NODELAY</code>, and the
+ * buffer sizes if configured. If adaptive it then
+ * <UL>
+ * <LI>turns <code>TCP_NODELAY</code> off while the connection sends more
+ * than the bulk rate of writes per second in an interval, so TCP
+ * coalesces the small writes, and on again at the first write after a
+ * pause longer than the writes at half that rate, for request/response
+ * traffic;
+ * <LI>only if a buffer range is set, sizes <code>SO_SNDBUF</code> and
+ * <code>SO_RCVBUF</code> once per interval to twice the bandwidth-delay
+ * product, the observed throughput of the interval times the round trip
+ * time, rounded up to a power of two and within the range. A buffer is
+ * only changed if the size differs by more than a factor of two.
+ * </UL>
+ * Without a range the buffers are left to the system: setting a size
+ * turns off the automatic tuning of the buffers on Linux, which usually
+ * does better than a guessed round trip time.
+ *
+ * <P>Options the transport does not support, like <code>TCP_NODELAY</code>
+ * on Unix domain sockets, are skipped. Each change is reported as a
+ * <code>cfh.tcp.SocketOption</code> Flight Recorder event and the current
+ * settings are available from {@link Connection#getSocketTuning()}.
+ * The traffic is counted on each read and write, the options are only
+ * checked once the interval elapsed.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class SocketPolicy {
+
+    public static final int DEFAULT_BULK_RATE = 10_000;
+
+    private volatile boolean keepAlive = true;
+    private volatile boolean noDelay = true;
+    private volatile int sendBufferSize = 0;
+    private volatile int receiveBufferSize = 0;
+
+    private volatile boolean adaptive = true;
+    private volatile long intervalNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile int bulkRate = DEFAULT_BULK_RATE;
+    private volatile long roundTripNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private volatile int minBufferSize = 0;
+    private volatile int maxBufferSize = 0;
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Sets the initial <code>TCP_NODELAY</code>, adapted later if adaptive.
+     */
+    public void setNoDelay(boolean noDelay) {
+        this.noDelay = noDelay;
+    }
+
+    public boolean isNoDelay() {
+        return noDelay;
+    }
+
+    /**
+     * Sets the initial size of the send and receive buffers.
+     *
+     * @param sendBytes the <code>SO_SNDBUF</code>, 0 for the default of the system
+     * @param receiveBytes the <code>SO_RCVBUF</code>, 0 for the default of the system
+     */
+    public void setBufferSizes(int sendBytes, int receiveBytes) {
+        if (sendBytes < 0)
+            throw new IllegalArgumentException("sendBytes must not be negative: " + sendBytes);
+        if (receiveBytes < 0)
+            throw new IllegalArgumentException("receiveBytes must not be negative: " + receiveBytes);
+        sendBufferSize = sendBytes;
+        receiveBufferSize = receiveBytes;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Sets if the options are adapted to the traffic, or only set once.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Sets how often the options are adapted.
+     */
+    public void setInterval(long interval, TimeUnit unit) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        intervalNanos = unit.toNanos(interval);
+    }
+
+    public long getInterval(TimeUnit unit) {
+        return unit.convert(intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the rate of writes above which the traffic is bulk.
+     *
+     * @param writesPerSecond the rate, <code>TCP_NODELAY</code> is turned off above it
+     */
+    public void setBulkRate(int writesPerSecond) {
+        if (writesPerSecond <= 0)
+            throw new IllegalArgumentException("writesPerSecond must be positive: " + writesPerSecond);
+        bulkRate = writesPerSecond;
+    }
+
+    public int getBulkRate() {
+        return bulkRate;
+    }
+
+    /**
+     * Sets the round trip time the buffers are sized for.
+     */
+    public void setRoundTripTime(long time, TimeUnit unit) {
+        if (time <= 0)
+            throw new IllegalArgumentException("time must be positive: " + time);
+        roundTripNanos = unit.toNanos(time);
+    }
+
+    public long getRoundTripTime(TimeUnit unit) {
+        return unit.convert(roundTripNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the range of the adapted buffer sizes, the buffers are only
+     * adapted with a range.
+     */
+    public void setBufferRange(int minBytes, int maxBytes) {
+        if (minBytes <= 0)
+            throw new IllegalArgumentException("minBytes must be positive: " + minBytes);
+        if (maxBytes < minBytes)
+            throw new IllegalArgumentException("maxBytes must not be less than minBytes: " + maxBytes);
+        minBufferSize = minBytes;
+        maxBufferSize = maxBytes;
+    }
+
+    /**
+     * Returns the minimum of the adapted buffer sizes, 0 if not adapted.
+     */
+    public int getMinBufferSize() {
+        return minBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * Creates the tuning of a connection and sets the initial options.
+     */
+    Tuning tune(Connection connection) {
+        Tuning tuning = new Tuning(connection);
+        tuning.apply();
+        return tuning;
+    }
+
+//  ############################################################################
+
+    /**
+     * The socket options of one connection and the traffic they were
+     * adapted to.
+     */
+    public class Tuning {
+
+        private final Connection connection;
+        private final Transport transport;
+        private final Set<SocketOption<?>> supported;
+
+        // set by the tuning thread, the reader or the current writer
+        private volatile boolean noDelayOn = false;
+        private volatile int sendBuffer = 0;
+        private volatile int receiveBuffer = 0;
+        private volatile long sendRate = 0;
+        private volatile long receiveRate = 0;
+        private volatile long writeRate = 0;
+        private final AtomicLong changes = new AtomicLong();
+
+        // counted by the current writer
+        private long sendStart;
+        private long lastWrite;
+        private long sentBytes = 0;
+        private long writes = 0;
+        // counted by the receiver
+        private long receiveStart;
+        private long receivedBytes = 0;
+
+        private Tuning(Connection connection) {
+            this.connection = connection;
+            transport = connection.getTransport();
+            supported = transport.supportedOptions();
+            sendStart = receiveStart = lastWrite = System.nanoTime();
+        }
+
+        private void apply() {
+            set(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+            if (set(StandardSocketOptions.TCP_NODELAY, noDelay)) {
+                noDelayOn = noDelay;
+            }
+            sendBuffer = current(StandardSocketOptions.SO_SNDBUF);
+            receiveBuffer = current(StandardSocketOptions.SO_RCVBUF);
+            if (sendBufferSize > 0 && set(StandardSocketOptions.SO_SNDBUF, sendBufferSize)) {
+                sendBuffer = current(StandardSocketOptions.SO_SNDBUF);
+            }
+            if (receiveBufferSize > 0 && set(StandardSocketOptions.SO_RCVBUF, receiveBufferSize)) {
+                receiveBuffer = current(StandardSocketOptions.SO_RCVBUF);
+            }
+        }
+
+        /**
+         * Counts a write, a message or chunk, adapting the sending options;
+         * <code>TCP_NODELAY</code> is turned on at once after a pause.
+         */
+        void sent(int bytes) {
+            sentBytes += bytes;
+            writes += 1;
+            long now = System.nanoTime();
+            long pause = now - lastWrite;
+            lastWrite = now;
+            if (adaptive && !noDelayOn && pause > 2 * TimeUnit.SECONDS.toNanos(1) / bulkRate) {
+                if (set(StandardSocketOptions.TCP_NODELAY, true)) {
+                    noDelayOn = true;
+                }
+                // the writes before the pause do not count for the new pattern
+                sendStart = now;
+                sentBytes = bytes;
+                writes = 1;
+                return;
+            }
+            long elapsed = now - sendStart;
+            if (elapsed < intervalNanos)
+                return;
+            sendRate = rate(sentBytes, elapsed);
+            writeRate = rate(writes, elapsed);
+            sendStart = now;
+            sentBytes = 0;
+            writes = 0;
+            if (adaptive) {
+                adaptNoDelay();
+            }
+            if (adaptive && maxBufferSize > 0) {
+                int size = bufferSize(sendRate);
+                if (differs(size, sendBuffer) && set(StandardSocketOptions.SO_SNDBUF, size)) {
+                    sendBuffer = current(StandardSocketOptions.SO_SNDBUF);
+                }
+            }
+        }
+
+        /**
+         * Counts the bytes read, adapting the receive buffer once per interval.
+         */
+        void received(int bytes) {
+            receivedBytes += bytes;
+            long now = System.nanoTime();
+            long elapsed = now - receiveStart;
+            if (elapsed < intervalNanos)
+                return;
+            receiveRate = rate(receivedBytes, elapsed);
+            receiveStart = now;
+            receivedBytes = 0;
+            if (adaptive && maxBufferSize > 0) {
+                int size = bufferSize(receiveRate);
+                if (differs(size, receiveBuffer) && set(StandardSocketOptions.SO_RCVBUF, size)) {
+                    receiveBuffer = current(StandardSocketOptions.SO_RCVBUF);
+                }
+            }
+        }
+
+        private void adaptNoDelay() {
+            if (noDelayOn && writeRate > bulkRate) {
+                if (set(StandardSocketOptions.TCP_NODELAY, false)) {
+                    noDelayOn = false;
+                }
+            }
+        }
+
+        /**
+         * Returns twice the bandwidth-delay product, as power of two within the range.
+         */
+        private int bufferSize(long bytesPerSecond) {
+            long product = 2 * bytesPerSecond * roundTripNanos / TimeUnit.SECONDS.toNanos(1);
+            long size = (product <= 1) ? 1 : Long.highestOneBit(product - 1) << 1;
+            return (int) Math.max(minBufferSize, Math.min(maxBufferSize, size));
+        }
+
+        private boolean differs(int size, int current) {
+            return current <= 0 || size > 2 * current || 2 * size < current;
+        }
+
+        private static long rate(long count, long nanos) {
+            return count * TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        /**
+         * Sets the option if supported and changed.
+         *
+         * @return <code>true</code> if set
+         */
+        private <T> boolean set(SocketOption<T> name, T value) {
+            if (!supported.contains(name))
+                return false;
+            try {
+                if (value.equals(transport.getOption(name)))
+                    return true;
+                transport.setOption(name, value);
+            } catch (IOException ex) {
+                return false;  // closed, the read or write fails too
+            }
+            changes.incrementAndGet();
+            Events.socketOption(connection, name.name(), value.toString());
+            return true;
+        }
+
+        private int current(SocketOption<Integer> name) {
+            if (!supported.contains(name))
+                return 0;
+            try {
+                return transport.getOption(name);
+            } catch (IOException ex) {
+                return 0;
+            }
+        }
+
+        public SocketPolicy getPolicy() {
+            return SocketPolicy.this;
+        }
+
+        /** The current <code>TCP_NODELAY</code>, <code>false</code> if not supported. */
+        public boolean isNoDelay() {
+            return noDelayOn;
+        }
+
+        /** The current <code>SO_SNDBUF</code>, 0 if not supported. */
+        public int getSendBufferSize() {
+            return sendBuffer;
+        }
+
+        /** The current <code>SO_RCVBUF</code>, 0 if not supported. */
+        public int getReceiveBufferSize() {
+            return receiveBuffer;
+        }
+
+        /** Bytes per second sent in the last interval. */
+        public long getSendRate() {
+            return sendRate;
+        }
+
+        /** Writes per second in the last interval. */
+        public long getWriteRate() {
+            return writeRate;
+        }
+
+        /** Bytes per second received in the last interval. */
+        public long getReceiveRate() {
+            return receiveRate;
+        }
+
+        /** Number of options changed. */
+        public long getChanges() {
+            return changes.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Tuning[noDelay=%b, sndbuf=%d, rcvbuf=%d, sent=%d B/s, %d writes/s, received=%d B/s]",
+                    noDelayOn, sendBuffer, receiveBuffer, sendRate, writeRate, receiveRate);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package cfh.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.util.Set;
+
+/**
+ * Transport over a connected {@link Socket}.
+ * 
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+class SocketTransport implements Transport {
+    
+    private final Socket socket;
+    
+    SocketTransport(Socket socket) {
+        assert socket != null : "null socket";
+        
+        this.socket = socket;
+    }
+    
+    Socket getSocket() {
+        return socket;
+    }
+    
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+    
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+    
+    @Override
+    public void shutdownInput() throws IOException {
+        socket.shutdownInput();
+    }
+    
+    @Override
+    public void shutdownOutput() throws IOException {
+        socket.shutdownOutput();
+    }
+    
+    @Override
+    public boolean isInputShutdown() {
+        return socket.isInputShutdown();
+    }
+    
+    @Override
+    public boolean isOutputShutdown() {
+        return socket.isOutputShutdown();
+    }
+    
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+    
+    @Override
+    public SocketAddress getLocalAddress() {
+        return socket.getLocalSocketAddress();
+    }
+    
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return socket.supportedOptions();
+    }
+
+    @Override
+    public <T> void setOption(SocketOption<T> name, T value) throws IOException {
+        socket.setOption(name, value);
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        return socket.getOption(name);
+    }
+}
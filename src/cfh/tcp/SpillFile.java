@@ -0,0 +1,145 @@
+package cfh.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Queue of messages in a memory-mapped file.
+ *
+ * <P>The file is used as a ring buffer of fixed capacity, each message
+ * stored as its length followed by the data. The file is sparse, disk
+ * space is only used for the parts written to. It is created when the
+ * first message is added and deleted when closed; the mapping itself is
+ * released by the garbage collector.
+ *
+ * <P>Not thread-safe, used under the lock of the connection's sender.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+class SpillFile implements Closeable {
+
+    private static final int LENGTH_SIZE = 4;
+
+    private final Path directory;
+    private final int capacity;
+    private final byte[] length = new byte[LENGTH_SIZE];
+
+    private Path file = null;
+    private MappedByteBuffer buffer = null;
+
+    /** Positions, not wrapped, of the next message to read and write. */
+    private long head = 0;
+    private long tail = 0;
+    private int count = 0;
+
+    /**
+     * @param directory the directory of the file
+     * @param capacity the maximum number of bytes in the file
+     */
+    SpillFile(Path directory, int capacity) {
+        assert directory != null : "null directory";
+        assert capacity > LENGTH_SIZE : "capacity: " + capacity;
+
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the number of bytes used, including the length of each message.
+     */
+    long size() {
+        return tail - head;
+    }
+
+    int count() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Adds a message at the end.
+     *
+     * @return <code>false</code> if there is no room left
+     */
+    boolean add(byte[] data) throws IOException {
+        if (size() + LENGTH_SIZE + data.length > capacity)
+            return false;
+        if (buffer == null) {
+            open();
+        }
+        Connection.putLength(length, data.length);
+        put(tail, length);
+        put(tail + LENGTH_SIZE, data);
+        tail += LENGTH_SIZE + data.length;
+        count += 1;
+        return true;
+    }
+
+    /**
+     * Removes the first message.
+     *
+     * @return the message, <code>null</code> if empty
+     */
+    byte[] poll() {
+        if (count == 0)
+            return null;
+        get(head, length);
+        byte[] data = new byte[Connection.getLength(length)];
+        get(head + LENGTH_SIZE, data);
+        head += LENGTH_SIZE + data.length;
+        count -= 1;
+        if (count == 0) {
+            head = tail = 0;
+        }
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        head = tail = 0;
+        count = 0;
+        if (file != null) {
+            Files.deleteIfExists(file);
+            file = null;
+        }
+    }
+
+    private void open() throws IOException {
+        file = Files.createTempFile(directory, "spill", ".tmp");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.SPARSE);
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            channel.close();  // the mapping stays valid
+        }
+    }
+
+    private void put(long position, byte[] data) {
+        int offset = (int) (position % capacity);
+        int first = Math.min(data.length, capacity - offset);
+        buffer.put(offset, data, 0, first);
+        if (first < data.length) {
+            buffer.put(0, data, first, data.length - first);
+        }
+    }
+
+    private void get(long position, byte[] data) {
+        int offset = (int) (position % capacity);
+        int first = Math.min(data.length, capacity - offset);
+        buffer.get(offset, data, 0, first);
+        if (first < data.length) {
+            buffer.get(0, data, first, data.length - first);
+        }
+    }
+}
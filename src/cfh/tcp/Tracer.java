@@ -0,0 +1,227 @@
+package cfh.tcp;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traces the latency of sampled messages through the stages of a
+ * connection.
+ *
+ * <P>Set a tracer with {@link Connection#setTracer(Tracer)} or
+ * {@link Server#setTracer(Tracer)}. A sampled received message is
+ * timestamped when its read completes, when it is decoded, when it is
+ * dispatched to the listeners and when the last listener returns; a
+ * sampled sent message when <code>sendData</code> is called, when it is
+ * queued, when its write starts and when it is written to the transport.
+ * The time between two timestamps is added to the {@link Histogram} of
+ * its {@link Stage}; the histograms can be read at any time.
+ *
+ * <P>Listeners moved to an async lane, see {@link CallbackMonitor}, are
+ * timed until their call is queued. Without a tracer the connection only
+ * checks a field per message; with one, a sampled message costs a few
+ * <code>System.nanoTime()</code> calls, the others a random number.
+ *
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public class Tracer {
+
+    /**
+     * The stages of a message, each timed from the end of the previous one.
+     */
+    public enum Stage {
+        /** From the end of the read to the complete frame decoded. */
+        DECODE,
+        /** From decoded to the call of the first listener, includes the inbound rate limits. */
+        DISPATCH,
+        /** The calls of all listeners. */
+        LISTENERS,
+        /** From the end of the read to the return of the last listener. */
+        RECEIVE,
+        /** From the call of <code>sendData</code> to queued, includes the outbound rate limits and a full queue. */
+        ENQUEUE,
+        /** Waiting in the queue for the write to start. */
+        QUEUED,
+        /** Writing to the transport, all chunks if chunked. */
+        WRITE,
+        /** From the call of <code>sendData</code> to written. */
+        SEND
+    }
+
+    private final int sampleRate;
+    private final Map<Stage, Histogram> histograms;
+
+    /**
+     * Creates a new tracer.
+     *
+     * @param sampleRate trace one message in <code>sampleRate</code>, at random; 1 to trace all
+     */
+    public Tracer(int sampleRate) {
+        if (sampleRate <= 0)
+            throw new IllegalArgumentException("sampleRate must be positive: " + sampleRate);
+
+        this.sampleRate = sampleRate;
+        histograms = new EnumMap<Stage, Histogram>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public Histogram getHistogram(Stage stage) {
+        if (stage == null)
+            throw new IllegalArgumentException("stage must not be null");
+        return histograms.get(stage);
+    }
+
+    /**
+     * Clears all histograms.
+     */
+    public void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Decides if the next message is traced.
+     */
+    boolean sample() {
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * Records a received message, all times from <code>System.nanoTime()</code>.
+     */
+    void received(long read, long decoded, long dispatched, long done) {
+        histograms.get(Stage.DECODE).add(decoded - read);
+        histograms.get(Stage.DISPATCH).add(dispatched - decoded);
+        histograms.get(Stage.LISTENERS).add(done - dispatched);
+        histograms.get(Stage.RECEIVE).add(done - read);
+    }
+
+    /**
+     * Records a sent message, all times from <code>System.nanoTime()</code>.
+     */
+    void sent(long send, long queued, long writing, long written) {
+        histograms.get(Stage.ENQUEUE).add(queued - send);
+        histograms.get(Stage.QUEUED).add(writing - queued);
+        histograms.get(Stage.WRITE).add(written - writing);
+        histograms.get(Stage.SEND).add(written - send);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Tracer[1/").append(sampleRate);
+        for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+            builder.append(", ").append(entry.getKey()).append("=").append(entry.getValue());
+        }
+        return builder.append("]").toString();
+    }
+
+//  ############################################################################
+
+    /**
+     * Latencies of one stage, in buckets of powers of two nanoseconds.
+     *
+     * <P>Bucket <code>i</code> counts the latencies below
+     * <code>2<sup>i</sup></code> nanoseconds and not below the previous
+     * bucket, so percentiles are exact up to a factor of two.
+     */
+    public static class Histogram {
+
+        public static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Histogram() {
+        }
+
+        private void add(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+        }
+
+        private void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+
+        /** Number of traced messages. */
+        public long getCount() {
+            return count.get();
+        }
+
+        /** Number of latencies in the bucket. */
+        public long getBucket(int index) {
+            if (index < 0 || index >= BUCKETS)
+                throw new IllegalArgumentException("index must be between 0 and " + (BUCKETS - 1) + ": " + index);
+            return buckets.get(index);
+        }
+
+        /** Mean latency, 0 if none. */
+        public long getMeanTime(TimeUnit unit) {
+            long n = count.get();
+            return (n > 0) ? unit.convert(totalNanos.get() / n, TimeUnit.NANOSECONDS) : 0;
+        }
+
+        /** Longest latency. */
+        public long getMaxTime(TimeUnit unit) {
+            return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the percentile,
+         * at most the longest latency.
+         *
+         * @param percentile between 0 and 100
+         * @return the latency, 0 if none
+         */
+        public long getPercentile(double percentile, TimeUnit unit) {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+            long n = count.get();
+            if (n == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+            long seen = 0;
+            long nanos = maxNanos.get();
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    nanos = Math.min(nanos, (i == 0) ? 0 : (1L << i) - 1);
+                    break;
+                }
+            }
+            return unit.convert(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return count + " traced, mean " + getMeanTime(TimeUnit.NANOSECONDS) + " ns, p99 "
+                    + getPercentile(99, TimeUnit.NANOSECONDS) + " ns, max " + maxNanos + " ns";
+        }
+    }
+}
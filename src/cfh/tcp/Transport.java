@@ -0,0 +1,80 @@
+package cfh.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A connected, bidirectional byte stream used by a {@link Connection}.
+ * 
+ * <P>Implemented for TCP and Unix domain sockets; the input and output
+ * are used by different threads at the same time.
+ * 
+ * @author Carlos Heuberger
+ * $Revision: 1.1 $
+ */
+public interface Transport extends Closeable {
+    
+    /**
+     * Returns the stream to read from, reads block until data is available.
+     * {@link InputStream#available()} should return the number of bytes
+     * that can be read without blocking, if known.
+     */
+    InputStream getInputStream() throws IOException;
+    
+    /**
+     * Returns the stream to write to.
+     */
+    OutputStream getOutputStream() throws IOException;
+    
+    /**
+     * Shuts down the input, a blocked read returns the end of stream.
+     */
+    void shutdownInput() throws IOException;
+    
+    /**
+     * Shuts down the output, the peer reads the end of stream.
+     */
+    void shutdownOutput() throws IOException;
+    
+    boolean isInputShutdown();
+    
+    boolean isOutputShutdown();
+    
+    boolean isClosed();
+    
+    SocketAddress getLocalAddress();
+    
+    SocketAddress getRemoteAddress();
+
+    /**
+     * Returns the socket options supported by {@link #setOption(SocketOption, Object)},
+     * none by default.
+     */
+    default Set<SocketOption<?>> supportedOptions() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Sets a socket option, like {@link java.net.StandardSocketOptions#TCP_NODELAY}.
+     * 
+     * @throws UnsupportedOperationException if the option is not supported
+     */
+    default <T> void setOption(SocketOption<T> name, T value) throws IOException {
+        throw new UnsupportedOperationException("option not supported: " + name);
+    }
+
+    /**
+     * Returns the value of a socket option.
+     * 
+     * @throws UnsupportedOperationException if the option is not supported
+     */
+    default <T> T getOption(SocketOption<T> name) throws IOException {
+        throw new UnsupportedOperationException("option not supported: " + name);
+    }
+}
@@ -0,0 +1,324 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Guards the steady-state allocation on the I/O path.
+ *
+ * <P>The allocated bytes are taken from the thread allocation counters,
+ * a JFR recording of the allocation samples is used to report the
+ * allocation sites if the budget is exceeded.
+ */
+public class AllocationTest {
+
+    private static final int MESSAGE_SIZE = 64;
+    private static final int WARMUP = 20000;
+    private static final int MESSAGES = 20000;
+    private static final int CLIENTS = 8;
+
+    /** Bytes allowed per message on top of the copy delivered to the listeners. */
+    private static final long OVERHEAD_BUDGET = 128;
+
+    private static final String[] OWN_EVENTS = {
+        "cfh.tcp.Accept", "cfh.tcp.ConnectionStart", "cfh.tcp.ConnectionShutdown", "cfh.tcp.Read",
+        "cfh.tcp.Write", "cfh.tcp.ListenerCallback", "cfh.tcp.Backpressure"
+    };
+
+    private Server server;
+    private Recording recording;
+    private volatile boolean buffers = false;
+    private volatile boolean framed = false;
+    private final List<Socket> clients = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.setFramed(framed);
+                if (buffers) {
+                    connection.addBufferListener(new BufferEchoListener());
+                } else {
+                    connection.addListener(new EchoListener());
+                }
+            }
+        });
+        server.start();
+
+        recording = new Recording();
+        recording.enable("jdk.ObjectAllocationSample").with("throttle", "10000/s").withStackTrace();
+        // the budget is for the production case: own events not recording
+        for (String event : OWN_EVENTS) {
+            recording.disable(event);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        recording.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void testEcho() throws Exception {
+        final byte[] message = new byte[MESSAGE_SIZE];
+        final byte[] echo = new byte[MESSAGE_SIZE];
+        Socket client = connect();
+        client.setTcpNoDelay(true);
+        OutputStream output = client.getOutputStream();
+        DataInputStream input = new DataInputStream(client.getInputStream());
+        for (int i = 0; i < WARMUP; i++) {
+            output.write(message);
+            input.readFully(echo);
+        }
+
+        // server side Receiver is named after the remote, that is, our local port
+        Thread receiver = findThread("Receiver: " + client.getLocalPort());
+        recording.start();
+        long before = allocatedBytes(receiver);
+        for (int i = 0; i < MESSAGES; i++) {
+            output.write(message);
+            input.readFully(echo);
+        }
+        long allocated = allocatedBytes(receiver) - before;
+        recording.stop();
+
+        assertBudget(receiver, allocated, arraySize(MESSAGE_SIZE) + OVERHEAD_BUDGET);
+    }
+
+    @Test
+    public void testEcho_Buffer() throws Exception {
+        buffers = true;
+        final byte[] message = new byte[MESSAGE_SIZE];
+        final byte[] echo = new byte[MESSAGE_SIZE];
+        Socket client = connect();
+        client.setTcpNoDelay(true);
+        OutputStream output = client.getOutputStream();
+        DataInputStream input = new DataInputStream(client.getInputStream());
+        for (int i = 0; i < WARMUP; i++) {
+            output.write(message);
+            input.readFully(echo);
+        }
+        
+        Thread receiver = findThread("Receiver: " + client.getLocalPort());
+        recording.start();
+        long before = allocatedBytes(receiver);
+        for (int i = 0; i < MESSAGES; i++) {
+            output.write(message);
+            input.readFully(echo);
+        }
+        long allocated = allocatedBytes(receiver) - before;
+        recording.stop();
+        
+        assertBudget(receiver, allocated, OVERHEAD_BUDGET);
+    }
+
+    @Test
+    public void testEcho_BufferFrames() throws Exception {
+        buffers = true;
+        framed = true;
+        SocketPolicy policy = new SocketPolicy();
+        policy.setAdaptive(false);
+        server.setSocketPolicy(policy);  // NODELAY, the header and the data are written apart
+        final byte[] message = new byte[Connection.HEADER_SIZE + MESSAGE_SIZE];
+        Connection.putLength(message, MESSAGE_SIZE);
+        final byte[] echo = new byte[message.length];
+        Socket client = connect();
+        client.setTcpNoDelay(true);
+        OutputStream output = client.getOutputStream();
+        DataInputStream input = new DataInputStream(client.getInputStream());
+        for (int i = 0; i < WARMUP; i++) {
+            output.write(message);
+            input.readFully(echo);
+        }
+        
+        Thread receiver = findThread("Receiver: " + client.getLocalPort());
+        recording.start();
+        long before = allocatedBytes(receiver);
+        for (int i = 0; i < MESSAGES; i++) {
+            output.write(message);
+            input.readFully(echo);
+        }
+        long allocated = allocatedBytes(receiver) - before;
+        recording.stop();
+        
+        // whole frames are passed in the receive buffer, less than their copy
+        assertBudget(receiver, allocated, arraySize(MESSAGE_SIZE) - 1);
+    }
+
+    @Test
+    public void testBroadcast() throws Exception {
+        final byte[] message = new byte[MESSAGE_SIZE];
+        for (int i = 0; i < CLIENTS; i++) {
+            drain(connect());
+        }
+        while (server.getConnections().size() < CLIENTS) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            server.sendData(message);
+        }
+
+        Thread sender = Thread.currentThread();
+        recording.start();
+        long before = allocatedBytes(sender);
+        for (int i = 0; i < MESSAGES; i++) {
+            server.sendData(message);
+        }
+        long allocated = allocatedBytes(sender) - before;
+        recording.stop();
+
+        assertBudget(sender, allocated, OVERHEAD_BUDGET);
+    }
+
+    private Socket connect() throws IOException {
+        Socket client = new Socket("localhost", server.getPort());
+        clients.add(client);
+        return client;
+    }
+
+    private void assertBudget(Thread thread, long allocated, long budget) throws IOException {
+        long perMessage = allocated / MESSAGES;
+        if (perMessage > budget) {
+            fail(thread.getName() + ": " + perMessage + " bytes allocated per message, budget " + budget
+                    + allocationSites(thread));
+        }
+    }
+
+    private String allocationSites(Thread thread) throws IOException {
+        Path file = Files.createTempFile("allocation", ".jfr");
+        try {
+            recording.dump(file);
+            final Map<String, Long> sites = new HashMap<String, Long>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                RecordedThread eventThread = event.getThread();
+                RecordedStackTrace stack = event.getStackTrace();
+                if (eventThread == null || stack == null || stack.getFrames().isEmpty())
+                    continue;
+                if (eventThread.getJavaThreadId() != thread.getId())
+                    continue;
+                RecordedFrame frame = stack.getFrames().get(0);
+                String site = frame.getMethod().getType().getName() + "." + frame.getMethod().getName()
+                        + ":" + frame.getLineNumber();
+                Long weight = sites.get(site);
+                sites.put(site, (weight == null ? 0 : weight) + event.getLong("weight"));
+            }
+            List<String> sorted = new ArrayList<String>(sites.keySet());
+            Collections.sort(sorted, new Comparator<String>() {
+                @Override
+                public int compare(String s1, String s2) {
+                    return sites.get(s2).compareTo(sites.get(s1));
+                }
+            });
+            StringBuilder builder = new StringBuilder();
+            for (String site : sorted.subList(0, Math.min(5, sorted.size()))) {
+                builder.append("\n    ").append(sites.get(site)).append(" bytes at ").append(site);
+            }
+            return builder.toString();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static long allocatedBytes(Thread thread) {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(thread.getId());
+    }
+
+    private static Thread findThread(String name) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals(name))
+                    return thread;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("thread not found: " + name);
+    }
+
+    /** Approximate heap size of a byte array: header plus data, 8 byte aligned. */
+    private static long arraySize(int length) {
+        return (16 + length + 7) & ~7;
+    }
+
+    private static void drain(Socket socket) throws IOException {
+        final InputStream input = socket.getInputStream();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (input.read(buffer) != -1) {
+                        // discard
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.setName("Drain: " + socket.getLocalPort());
+        thread.start();
+    }
+
+//  ############################################################################
+
+    private static class EchoListener extends ConnectionListener.Adapter {
+        @Override
+        public void receivedData(Connection connection, byte[] data) {
+            try {
+                connection.sendData(data);
+            } catch (IOException ex) {
+                connection.removeListener(this);
+            }
+        }
+    }
+
+//  ============================================================================
+
+    private static class BufferEchoListener extends BufferListener.Adapter {
+        private final byte[] output = new byte[MESSAGE_SIZE];
+        @Override
+        public void receivedData(Connection connection, ByteBuffer data) {
+            try {
+                while (data.remaining() >= output.length) {
+                    data.get(output);
+                    connection.sendData(output);
+                }
+            } catch (IOException ex) {
+                connection.removeBufferListener(this);
+            }
+        }
+    }
+}
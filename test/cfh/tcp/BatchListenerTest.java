@@ -0,0 +1,123 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchListenerTest {
+
+    private LoopbackServerTransport transport;
+    private Connection client;
+    private Connection server;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new LoopbackServerTransport("batch");
+        client = new Connection(transport.connect());
+        server = new Connection(transport.accept());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        transport.close();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        client.setFramed(true);
+        server.setFramed(true);
+        TestBatchListener batches = new TestBatchListener(100);
+        server.addBatchListener(batches);
+        final List<byte[]> frames = Collections.synchronizedList(new ArrayList<byte[]>());
+        server.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                frames.add(data);
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            client.sendData(("frame " + i).getBytes());
+        }
+        server.start();  // all frames are available for the first read
+        assertTrue(batches.done.await(1, TimeUnit.SECONDS));
+
+        assertEquals(1, batches.batches.size());
+        List<byte[]> batch = batches.batches.get(0);
+        assertEquals(100, batch.size());
+        assertEquals("frame 0", new String(batch.get(0)));
+        assertEquals("frame 99", new String(batch.get(99)));
+        assertSame(frames.get(99), batch.get(99));  // same array as the connection listeners
+    }
+
+    @Test
+    public void testBatch_Chunked() throws Exception {
+        client.setFramed(true);
+        client.setChunkSize(100);
+        server.setFramed(true);
+        server.setBufferPool(new BufferPool(1024 * 1024));
+        TestBatchListener batches = new TestBatchListener(20);
+        server.addBatchListener(batches);
+        server.start();
+        for (int i = 0; i < 20; i++) {
+            byte[] frame = new byte[1000];
+            frame[999] = (byte) i;
+            client.sendData(frame);
+        }
+        assertTrue(batches.done.await(1, TimeUnit.SECONDS));
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for (List<byte[]> batch : batches.batches) {
+            assertFalse(batch.isEmpty());
+            frames.addAll(batch);
+        }
+        assertEquals(20, frames.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(1000, frames.get(i).length);
+            assertEquals((byte) i, frames.get(i)[999]);
+        }
+    }
+
+    @Test
+    public void testUnframed() throws Exception {
+        TestBatchListener batches = new TestBatchListener(1);
+        server.addBatchListener(batches);
+        server.start();
+        client.sendData("test".getBytes());
+        assertTrue(batches.done.await(1, TimeUnit.SECONDS));
+        assertEquals(1, batches.batches.get(0).size());
+        assertEquals("test", new String(batches.batches.get(0).get(0)));
+
+        server.removeBatchListener(batches);
+        client.sendData("removed".getBytes());
+        Thread.sleep(20);
+        assertEquals(1, batches.batches.size());
+    }
+
+//  ############################################################################
+
+    private static class TestBatchListener implements BatchListener {
+        final List<List<byte[]>> batches = Collections.synchronizedList(new ArrayList<List<byte[]>>());
+        final CountDownLatch done;
+
+        TestBatchListener(int frames) {
+            done = new CountDownLatch(frames);
+        }
+
+        @Override
+        public void receivedBatch(Connection connection, List<byte[]> frames) {
+            batches.add(frames);
+            for (int i = 0; i < frames.size(); i++) {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferListenerTest {
+
+    private Server server;
+    private volatile Connection connection;
+    private volatile boolean framed = false;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection c) {
+                c.setFramed(framed);
+                connection = c;
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testReceivedData() throws Exception {
+        Connection client = new Connection("localhost", server.getPort());
+        TestBufferListener listener = new TestBufferListener();
+        client.addBufferListener(listener);
+        client.start();
+        Thread.sleep(20);
+        assertEquals(1, listener.started);
+
+        connection.sendData("test1".getBytes());
+        Thread.sleep(20);
+        connection.sendData("test2".getBytes());
+        Thread.sleep(20);
+        assertEquals(2, listener.received.size());
+        assertEquals("test1", new String(listener.received.get(0).array()));
+        assertEquals("test2", new String(listener.received.get(1).array()));
+        assertTrue(listener.readOnly);
+
+        client.removeBufferListener(listener);
+        connection.sendData("test3".getBytes());
+        Thread.sleep(20);
+        assertEquals(2, listener.received.size());
+        client.close();
+    }
+
+    @Test
+    public void testFramed() throws Exception {
+        framed = true;
+        Connection client = new Connection("localhost", server.getPort());
+        client.setFramed(true);
+        TestBufferListener listener = new TestBufferListener();
+        client.addBufferListener(listener);
+        client.start();
+        Thread.sleep(20);
+
+        byte[] large = new byte[100 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        connection.sendData("test1".getBytes());
+        connection.sendData(large);
+        connection.sendData("test2".getBytes());
+        Thread.sleep(100);
+        assertEquals(3, listener.received.size());
+        assertEquals("test1", new String(listener.received.get(0).array()));
+        assertArrayEquals(large, listener.received.get(1).array());
+        assertEquals("test2", new String(listener.received.get(2).array()));
+        client.close();
+        Thread.sleep(20);
+        assertEquals(1, listener.shutdown);
+    }
+
+    @Test
+    public void testArrayAdapter() throws Exception {
+        Connection client = new Connection("localhost", server.getPort());
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        ConnectionListener listener = new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection c, byte[] data) {
+                received.add(data);
+            }
+        };
+        BufferListener.ArrayAdapter adapter = new BufferListener.ArrayAdapter(listener);
+        assertSame(listener, adapter.getListener());
+        client.addBufferListener(adapter);
+        client.start();
+        Thread.sleep(20);
+
+        connection.sendData("test1".getBytes());
+        Thread.sleep(20);
+        assertEquals(1, received.size());
+        assertArrayEquals("test1".getBytes(), received.get(0));
+        client.close();
+    }
+
+    @Test
+    public void testSentData() throws Exception {
+        Connection client = new Connection("localhost", server.getPort());
+        TestBufferListener listener = new TestBufferListener();
+        client.addBufferListener(listener);
+        client.start();
+        client.sendData("test1".getBytes());
+        assertEquals(1, listener.sent.size());
+        assertEquals("test1", new String(listener.sent.get(0).array()));
+        client.close();
+    }
+
+    @Test
+    public void testRetain() {
+        ByteBuffer data = ByteBuffer.wrap("xxtest1yy".getBytes()).asReadOnlyBuffer();
+        data.position(2).limit(7);
+        ByteBuffer copy = Connection.retain(data);
+        assertEquals(2, data.position());
+        assertEquals(0, copy.position());
+        assertEquals(5, copy.remaining());
+        assertEquals("test1", new String(copy.array()));
+    }
+
+//  ############################################################################
+
+    private static class TestBufferListener extends BufferListener.Adapter {
+        volatile int started = 0;
+        volatile int shutdown = 0;
+        volatile boolean readOnly = true;
+        final List<ByteBuffer> received = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+        final List<ByteBuffer> sent = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+        @Override
+        public void started(Connection c) {
+            started += 1;
+        }
+        @Override
+        public void receivedData(Connection c, ByteBuffer data) {
+            readOnly &= data.isReadOnly();
+            received.add(Connection.retain(data));
+        }
+        @Override
+        public void sentData(Connection c, ByteBuffer data) {
+            sent.add(Connection.retain(data));
+        }
+        @Override
+        public void shutdown(Connection c) {
+            shutdown += 1;
+        }
+    }
+}
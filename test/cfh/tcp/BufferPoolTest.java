@@ -0,0 +1,318 @@
+package cfh.tcp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testAcquire() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer small = pool.acquire(100);
+        assertEquals(BufferPool.MIN_CLASS_SIZE, small.capacity());
+        assertEquals(100, small.limit());
+        assertEquals(0, small.position());
+        assertTrue(small.hasArray());
+        ByteBuffer large = pool.acquire(5000);
+        assertEquals(8192, large.capacity());
+        assertEquals(1024 + 8192, pool.getUsed());
+
+        pool.release(small);
+        assertEquals(8192, pool.getUsed());
+        assertEquals(1024, pool.getKept());
+        assertSame(small, pool.acquire(1024));
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(1.0 / 3, pool.getHitRate(), 0.001);
+        assertEquals(1 - (100 + 5000 + 1024) / (double) (1024 + 8192 + 1024), pool.getFragmentation(), 0.001);
+    }
+
+    @Test
+    public void testDirect() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024, true, 0, MILLISECONDS);
+        ByteBuffer buffer = pool.acquire(10);
+        assertTrue(buffer.isDirect());
+        pool.release(buffer);
+        try {
+            pool.release(ByteBuffer.allocate(1024));
+            fail("heap buffer released to direct pool");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new Connection(new LoopbackServerTransport("direct").connect()).setBufferPool(pool);
+            fail("direct pool for connection");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testReleaseTwice() throws Exception {
+        BufferPool pool = new BufferPool(4096);
+        ByteBuffer buffer = pool.acquire(1024);
+        pool.release(buffer);
+        try {
+            pool.release(buffer);
+            fail("released twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1024, pool.getKept());
+        assertSame(buffer, pool.acquire(1024));
+        assertNotSame(buffer, pool.acquire(1024));  // kept once, not handed out twice
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        final BufferPool pool = new BufferPool(4096, false, 0, MILLISECONDS);
+        ByteBuffer first = pool.acquire(2048);
+        pool.acquire(2048);
+        try {
+            pool.acquire(1);
+            fail("over the limit");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, pool.getRejections());
+
+        pool.release(first);
+        assertEquals(2048, pool.getKept());
+        pool.acquire(1024);  // drops the kept buffer
+        assertEquals(0, pool.getKept());
+        assertEquals(2048 + 1024, pool.getUsed());
+    }
+
+    @Test
+    public void testLimit_Wait() throws Exception {
+        final BufferPool pool = new BufferPool(4096, false, 1, TimeUnit.SECONDS);
+        final ByteBuffer first = pool.acquire(4096);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                pool.release(first);
+            }
+        }.start();
+        long start = System.nanoTime();
+        ByteBuffer buffer = pool.acquire(1024);
+        assertTrue("waited", System.nanoTime() - start >= MILLISECONDS.toNanos(40));
+        assertEquals(1024, buffer.capacity());
+        assertEquals(1, pool.getWaits());
+        assertEquals(0, pool.getRejections());
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        BufferPool pool = new BufferPool(4096);
+        try {
+            pool.acquire(8192);
+            fail("larger than the limit");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pool.acquire(-1);
+            fail("negative size");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new BufferPool(100);
+            fail("limit too small");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testFrames() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("frames", 1, 1024);
+        BufferPool pool = new BufferPool(1024 * 1024);
+        Transport client = transport.connect();
+        Connection receiver = new Connection(transport.accept());
+        receiver.setFramed(true);
+        receiver.setBufferPool(pool);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(100);
+        receiver.addBufferListener(new BufferListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, ByteBuffer data) {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                received.add(new String(bytes));
+                done.countDown();
+            }
+        });
+        receiver.start();
+        Connection sender = new Connection(client);
+        sender.setFramed(true);
+        byte[] padding = new byte[3000];  // larger than a read, received into the pool
+        for (int i = 0; i < 100; i++) {
+            sender.sendData(("frame " + i + new String(padding)).getBytes());
+        }
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals("frame 99" + new String(padding), received.get(99));
+        assertTrue("frame buffers reused: " + pool, pool.getHits() > pool.getMisses());
+        assertEquals("only the receive buffer in use", 0, pool.getUsed() & (pool.getUsed() - 1));
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testFrames_ListenerAdded() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("added");
+        BufferPool pool = new BufferPool(1024 * 1024);
+        Transport client = transport.connect();
+        Connection receiver = new Connection(transport.accept());
+        receiver.setFramed(true);
+        receiver.setBufferPool(pool);
+        receiver.addBufferListener(new BufferListener.Adapter());
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+        receiver.start();
+        
+        byte[] header = new byte[Connection.HEADER_SIZE];
+        Connection.putLength(header, 2048);  // exactly a size class
+        client.getOutputStream().write(header);
+        client.getOutputStream().write(new byte[1000]);
+        client.getOutputStream().flush();
+        Thread.sleep(50);  // frame buffer taken from the pool
+        receiver.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                received.add(data);
+            }
+        });
+        byte[] rest = new byte[1048];
+        Arrays.fill(rest, (byte) 1);
+        client.getOutputStream().write(rest);
+        client.getOutputStream().flush();
+        
+        byte[] data = received.poll(1, TimeUnit.SECONDS);
+        assertNotNull(data);
+        assertEquals(2048, data.length);
+        ByteBuffer reused = pool.acquire(2048);
+        assertNotSame(data, reused.array());
+        Arrays.fill(reused.array(), (byte) 7);
+        assertEquals(1, data[2047]);
+        client.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testFrames_Oversized() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("oversized");
+        BufferPool pool = new BufferPool(64 * 1024);
+        Transport client = transport.connect();
+        Connection receiver = new Connection(transport.accept());
+        receiver.setFramed(true);
+        receiver.setBufferPool(pool);
+        receiver.addBufferListener(new BufferListener.Adapter());
+        final BlockingQueue<Exception> exceptions = new LinkedBlockingQueue<Exception>();
+        final CountDownLatch shutdown = new CountDownLatch(1);
+        receiver.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void handleException(Connection connection, Exception ex) {
+                exceptions.add(ex);
+            }
+            @Override
+            public void shutdown(Connection connection) {
+                shutdown.countDown();
+            }
+        });
+        receiver.start();
+        
+        client.getOutputStream().write(new byte[] { 0, 2, 0, 0 });  // 128 KiB
+        client.getOutputStream().flush();
+        Exception ex = exceptions.poll(1, TimeUnit.SECONDS);
+        assertTrue(String.valueOf(ex), ex instanceof IOException);
+        assertTrue("shut down", shutdown.await(1, TimeUnit.SECONDS));
+        assertEquals(0, pool.getUsed());
+        client.close();
+    }
+
+    @Test
+    public void testReceive_LargerThanPool() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("larger");
+        BufferPool pool = new BufferPool(4096);
+        Transport client = transport.connect();
+        Connection receiver = new Connection(transport.accept());
+        receiver.setBufferPool(pool);
+        final BlockingQueue<Integer> received = new LinkedBlockingQueue<Integer>();
+        receiver.addBufferListener(new BufferListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, ByteBuffer data) {
+                received.add(data.remaining());
+            }
+        });
+        receiver.start();
+        
+        client.getOutputStream().write(new byte[20000]);
+        client.getOutputStream().flush();
+        int total = 0;
+        while (total < 20000) {
+            Integer count = received.poll(1, TimeUnit.SECONDS);
+            assertNotNull("received " + total, count);
+            assertTrue("read into the pool: " + count, count <= 4096);
+            total += count;
+        }
+        assertEquals(4096, pool.getUsed());
+        client.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("pool");
+        BufferPool pool = new BufferPool(64 * 1024, false, 0, MILLISECONDS);
+        Server server = new Server(transport);
+        server.setBufferPool(pool);
+        final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch shutdown = new CountDownLatch(9);
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.addListener(new ConnectionListener.Adapter() {
+                    @Override
+                    public void handleException(Connection connection, Exception ex) {
+                        exceptions.add(ex);
+                    }
+                    @Override
+                    public void shutdown(Connection connection) {
+                        shutdown.countDown();
+                    }
+                });
+            }
+        });
+        server.start();
+        try {
+            List<Transport> clients = new ArrayList<Transport>();
+            for (int i = 0; i < 9; i++) {
+                clients.add(transport.connect());
+            }
+            long deadline = System.currentTimeMillis() + 1000;
+            while ((exceptions.isEmpty() || pool.getUsed() < 8 * 8192) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals("only 8 receive buffers fit", 1, exceptions.size());
+            assertEquals(8 * 8192, pool.getUsed());
+            for (Transport client : clients) {
+                client.close();
+            }
+            assertTrue(shutdown.await(1, TimeUnit.SECONDS));
+            assertEquals(0, pool.getUsed());
+            assertEquals(1, pool.getRejections());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package cfh.tcp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CallbackMonitorTest {
+
+    private Server server;
+    private CallbackMonitor monitor;
+    private TestMonitorListener monitorListener;
+    private SlowListener slowListener;
+    private FastListener fastListener;
+
+    @Before
+    public void setUp() throws Exception {
+        monitor = new CallbackMonitor(20, MILLISECONDS);
+        monitorListener = new TestMonitorListener();
+        monitor.addListener(monitorListener);
+        slowListener = new SlowListener();
+        fastListener = new FastListener();
+
+        server = new Server(0);
+        server.setCallbackMonitor(monitor);
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.addListener(slowListener);
+                connection.addListener(fastListener);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        monitor.shutdown();
+    }
+
+    @Test
+    public void testOverBudget() throws Exception {
+        TestClient client = new TestClient(server.getPort());
+        client.getConnection().sendData("test1".getBytes());
+        Thread.sleep(200);
+
+        assertEquals(1, monitorListener.slow.size());
+        assertSame(slowListener, monitorListener.slow.get(0));
+        List<CallbackMonitor.Statistics> statistics = monitor.getStatistics();
+        assertEquals(1, statistics.size());
+        assertSame(slowListener, statistics.get(0).getListener());
+        assertEquals(1, statistics.get(0).getOverruns());
+        assertTrue(statistics.get(0).getMaxTime(MILLISECONDS) >= SlowListener.DELAY);
+        assertFalse(statistics.get(0).isAsync());
+        assertTrue(monitorListener.moved.isEmpty());
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        monitor.setBudget("receivedData", 1, SECONDS);
+        assertEquals(1000, monitor.getBudget("receivedData", MILLISECONDS));
+        assertEquals(20, monitor.getBudget("sentData", MILLISECONDS));
+
+        TestClient client = new TestClient(server.getPort());
+        client.getConnection().sendData("test1".getBytes());
+        Thread.sleep(200);
+
+        assertTrue(monitorListener.slow.isEmpty());
+        assertTrue(monitor.getStatistics().isEmpty());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        monitor.setAsyncThreshold(1);
+        TestClient client = new TestClient(server.getPort());
+        client.getConnection().sendData("test1".getBytes());
+        Thread.sleep(200);
+        assertEquals(1, monitorListener.moved.size());
+        assertSame(slowListener, monitorListener.moved.get(0));
+
+        long start = System.currentTimeMillis();
+        client.getConnection().sendData("test2".getBytes());
+        Thread.sleep(20);
+        client.getConnection().sendData("test3".getBytes());
+        Thread.sleep(20);
+        assertEquals("not stalled", 3, fastListener.received.size());
+        assertTrue(System.currentTimeMillis() - start < 2 * SlowListener.DELAY);
+
+        Thread.sleep(3 * SlowListener.DELAY);
+        assertEquals(3, slowListener.received.size());
+        assertEquals("test3", slowListener.received.get(2));
+    }
+
+    @Test
+    public void testRemoveAsync() throws Exception {
+        monitor.setAsyncThreshold(1);
+        TestClient client = new TestClient(server.getPort());
+        client.getConnection().sendData("test1".getBytes());
+        Thread.sleep(200);
+        assertEquals(1, monitorListener.moved.size());
+
+        Connection connection = server.getConnections().get(0);
+        connection.removeListener(slowListener);
+        client.getConnection().sendData("test2".getBytes());
+        Thread.sleep(200);
+        assertEquals(1, slowListener.received.size());
+        assertEquals(2, fastListener.received.size());
+    }
+
+    @Test
+    public void testRemovedListener() throws Exception {
+        CallbackMonitor own = new CallbackMonitor(20, MILLISECONDS);
+        LoopbackServerTransport transport = new LoopbackServerTransport("monitor");
+        Connection client = new Connection(transport.connect());
+        Connection connection = new Connection(transport.accept());
+        connection.setCallbackMonitor(own);
+        SlowListener listener = new SlowListener();
+        connection.addListener(listener);
+        connection.start();
+        client.sendData("test1".getBytes());
+        long deadline = System.currentTimeMillis() + 1000;
+        while (own.getStatistics().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, own.getStatistics().size());
+        
+        connection.removeListener(listener);
+        WeakReference<SlowListener> removed = new WeakReference<SlowListener>(listener);
+        listener = null;
+        for (int i = 0; i < 100 && removed.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("listener collected", removed.get());
+        assertTrue(own.getStatistics().isEmpty());
+        client.close();
+        connection.close();
+        transport.close();
+    }
+
+//  ############################################################################
+
+    private static class SlowListener extends ConnectionListener.Adapter {
+        static final long DELAY = 100;
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        @Override
+        public void receivedData(Connection connection, byte[] data) {
+            try {
+                Thread.sleep(DELAY);
+            } catch (InterruptedException ignored) {
+            }
+            received.add(new String(data));
+        }
+    }
+
+//  ============================================================================
+
+    private static class FastListener extends ConnectionListener.Adapter {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        @Override
+        public void receivedData(Connection connection, byte[] data) {
+            received.add(new String(data));
+        }
+    }
+
+//  ============================================================================
+
+    private static class TestMonitorListener implements CallbackMonitorListener {
+        final List<Object> slow = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Object> moved = Collections.synchronizedList(new ArrayList<Object>());
+        @Override
+        public void overBudget(CallbackMonitor m, Object listener, String callback, long nanos) {
+            slow.add(listener);
+        }
+        @Override
+        public void movedToAsync(CallbackMonitor m, Object listener) {
+            moved.add(listener);
+        }
+    }
+}
@@ -144,6 +144,33 @@ public class ConnectionTest {
         assertArrayEquals(data, received);
     }
 
+    @Test
+    public void testFramed() throws Exception {
+        testConnection.setFramed(true);
+        testConnection.start();
+        
+        testConnection.sendData("test3".getBytes());
+        byte[] received = new byte[9];
+        int len = testServer.input.read(received);
+        assertEquals(9, len);
+        assertArrayEquals(new byte[] { 0, 0, 0, 5, 't', 'e', 's', 't', '3' }, received);
+        
+        testServer.output.write(new byte[] { 0, 0, 0, 2, 'a', 'b', 0, 0 });
+        testServer.output.flush();
+        sleep();
+        testServer.output.write(new byte[] { 0, 1, 'c', 0, 0, 0, 0 });
+        testConnListener.assertReceived(3);
+        assertArrayEquals("ab".getBytes(), testConnListener.received.get(0));
+        assertArrayEquals("c".getBytes(), testConnListener.received.get(1));
+        assertArrayEquals(new byte[0], testConnListener.received.get(2));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testFramed_Started() {
+        testConnection.start();
+        testConnection.setFramed(true);
+    }
+
     @Test
     public void testGetLocalPort() {
         testConnection.start();
@@ -0,0 +1,84 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventsTest {
+
+    private Server server;
+    private Recording recording;
+
+    @Before
+    public void setUp() throws Exception {
+        recording = new Recording();
+        recording.enable("cfh.tcp.Accept");
+        recording.enable("cfh.tcp.ConnectionStart");
+        recording.enable("cfh.tcp.ConnectionShutdown");
+        recording.enable("cfh.tcp.Read").withThreshold(null);
+        recording.enable("cfh.tcp.Write").withThreshold(null);
+        recording.enable("cfh.tcp.ListenerCallback").withThreshold(null);
+        recording.start();
+
+        server = new Server(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        recording.close();
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        final byte[] data = "test1".getBytes();
+        TestClient client = new TestClient(server.getPort());
+        client.getConnection().sendData(data);
+        Thread.sleep(50);
+        server.sendData(data);
+        client.assertReceived(1);
+        client.stop();
+        Thread.sleep(50);
+        recording.stop();
+
+        Map<String, Integer> counts = countEvents();
+        assertEquals("Accept", 1, count(counts, "cfh.tcp.Accept"));
+        assertEquals("ConnectionStart", 2, count(counts, "cfh.tcp.ConnectionStart"));
+        assertEquals("ConnectionShutdown", 2, count(counts, "cfh.tcp.ConnectionShutdown"));
+        assertEquals("Read", 2, count(counts, "cfh.tcp.Read"));
+        assertEquals("Write", 2, count(counts, "cfh.tcp.Write"));
+        assertTrue("ListenerCallback", count(counts, "cfh.tcp.ListenerCallback") > 0);
+    }
+
+    private Map<String, Integer> countEvents() throws Exception {
+        Path file = Files.createTempFile("events", ".jfr");
+        try {
+            recording.dump(file);
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                String name = event.getEventType().getName();
+                counts.put(name, count(counts, name) + 1);
+            }
+            return counts;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static int count(Map<String, Integer> counts, String name) {
+        Integer count = counts.get(name);
+        return (count != null) ? count : 0;
+    }
+}
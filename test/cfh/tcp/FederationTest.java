@@ -0,0 +1,242 @@
+package cfh.tcp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FederationTest {
+
+    private static final int NODES = 3;
+
+    private final List<Server> servers = new ArrayList<Server>();
+    private final List<Federation> nodes = new ArrayList<Federation>();
+    private final List<TestClient> clients = new ArrayList<TestClient>();
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            Server server = new Server(0);
+            server.start();
+            Federation node = new Federation(server, 0);
+            node.start();
+            servers.add(server);
+            nodes.add(node);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Federation node : nodes) {
+            node.stop();
+        }
+        for (Server server : servers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRelay() throws Exception {
+        // 0 - 1 - 2
+        link(0, 1);
+        link(1, 2);
+        connectClients(2);
+
+        final byte[] data = "test1".getBytes();
+        nodes.get(0).sendData(data);
+        Thread.sleep(100);
+        for (TestClient client : clients) {
+            client.assertReceived(1);
+            assertArrayEquals(data, client.getLastReceived());
+        }
+    }
+
+    @Test
+    public void testNoDuplicates() throws Exception {
+        // full mesh, every message arrives twice at each node
+        link(0, 1);
+        link(1, 2);
+        link(2, 0);
+        connectClients(1);
+
+        nodes.get(1).sendData("test2".getBytes());
+        Thread.sleep(100);
+        for (TestClient client : clients) {
+            client.assertReceived(1);
+        }
+    }
+
+    @Test
+    public void testBroadcastThread() throws Exception {
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        servers.get(1).addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.addListener(new ConnectionListener.Adapter() {
+                    @Override
+                    public void sentData(Connection c, byte[] data) {
+                        threads.add(Thread.currentThread().getName());
+                    }
+                });
+            }
+        });
+        link(0, 1);
+        connectClients(1);
+        
+        nodes.get(0).sendData("test3".getBytes());
+        Thread.sleep(100);
+        clients.get(1).assertReceived(1);
+        assertEquals(1, threads.size());
+        assertTrue("sent by: " + threads, threads.get(0).startsWith("Federation broadcast"));
+    }
+
+    @Test
+    public void testMalformedBatch() throws Exception {
+        Connection peer = new Connection("localhost", nodes.get(0).getPort());
+        peer.setFramed(true);
+        final CountDownLatch shutdown = new CountDownLatch(1);
+        peer.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void shutdown(Connection connection) {
+                shutdown.countDown();
+            }
+        });
+        peer.start();
+        for (int i = 0; i < 100 && nodes.get(0).getLinkCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, nodes.get(0).getLinkCount());
+        
+        ByteBuffer batch = ByteBuffer.allocate(8 + 8 + 4 + 10);
+        batch.putLong(1).putLong(1).putInt(100);  // longer than the batch
+        peer.sendData(batch.array());
+        assertTrue("link closed", shutdown.await(1, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        assertEquals(0, nodes.get(0).getLinkCount());
+        peer.close();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final int count = 1000;
+        nodes.get(0).setBatch(16 * 1024, 50, MILLISECONDS);
+        Connection peer = new Connection("localhost", nodes.get(0).getPort());
+        peer.setFramed(true);
+        final List<byte[]> batches = new ArrayList<byte[]>();
+        peer.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                synchronized (batches) {
+                    batches.add(data);
+                }
+            }
+        });
+        peer.start();
+        Thread.sleep(50);
+
+        for (int i = 0; i < count; i++) {
+            nodes.get(0).sendData(("message " + i).getBytes());
+        }
+        Thread.sleep(200);
+        int messages = 0;
+        synchronized (batches) {
+            assertTrue("batched: " + batches.size(), batches.size() < count / 10);
+            for (byte[] batch : batches) {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.remaining() > 0) {
+                    buffer.getLong();
+                    buffer.getLong();
+                    int length = buffer.getInt();
+                    buffer.position(buffer.position() + length);
+                    messages += 1;
+                }
+            }
+        }
+        assertEquals(count, messages);
+        peer.close();
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        // full mesh without batching, enough data to fill the socket buffers of the links
+        link(0, 1);
+        link(1, 2);
+        link(2, 0);
+        final int count = 1000;
+        final byte[] data = new byte[64 * 1024];
+        final AtomicLong received = new AtomicLong();
+        List<Connection> receivers = new ArrayList<Connection>();
+        for (Server server : servers) {
+            Connection connection = new Connection("localhost", server.getPort());
+            connection.addListener(new ConnectionListener.Adapter() {
+                @Override
+                public void receivedData(Connection c, byte[] bytes) {
+                    received.addAndGet(bytes.length);
+                }
+            });
+            connection.start();
+            receivers.add(connection);
+        }
+        Thread.sleep(50);
+        
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> senders = new ArrayList<Thread>();
+        for (final Federation node : nodes) {
+            node.setBatch(0, 0, MILLISECONDS);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            node.sendData(data);
+                        }
+                    } catch (Exception ex) {
+                        errors.add(ex);
+                    }
+                }
+            };
+            senders.add(thread);
+            thread.start();
+        }
+        long expected = (long) NODES * NODES * count * data.length;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (received.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, received.get());
+        for (Thread thread : senders) {
+            thread.join(1000);
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (Connection connection : receivers) {
+            connection.close();
+        }
+    }
+
+    private void link(int from, int to) throws Exception {
+        int links = nodes.get(to).getLinkCount();
+        nodes.get(from).link("localhost", nodes.get(to).getPort());
+        for (int i = 0; i < 100 && nodes.get(to).getLinkCount() == links; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void connectClients(int perNode) throws Exception {
+        for (Server server : servers) {
+            for (int i = 0; i < perNode; i++) {
+                clients.add(new TestClient(server.getPort()));
+            }
+        }
+        Thread.sleep(50);
+    }
+}
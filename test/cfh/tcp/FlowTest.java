@@ -0,0 +1,212 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlowTest {
+
+    private static final int FRAMES = 100;
+
+    private LoopbackServerTransport transport;
+    private Connection client;
+    private Connection server;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new LoopbackServerTransport("flow", 1, 1024);
+        client = new Connection(transport.connect());
+        client.setFramed(true);
+        server = new Connection(transport.accept());
+        server.setFramed(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        transport.close();
+    }
+
+    @Test
+    public void testPublisher() throws Exception {
+        FramePublisher publisher = new FramePublisher(server);
+        Recorder subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+        server.start();
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < FRAMES; i++) {
+                        byte[] frame = new byte[1000];
+                        frame[0] = (byte) i;
+                        client.sendData(frame);
+                    }
+                    client.stop();
+                } catch (Exception ex) {
+                    errors.add(ex);
+                }
+            }
+        };
+        sender.start();
+
+        subscriber.subscription.request(2);
+        subscriber.await(2);
+        Thread.sleep(20);
+        assertEquals("only the requested frames", 2, subscriber.received.size());
+        assertTrue("sender held back", sender.isAlive());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed.await(1, TimeUnit.SECONDS));
+        assertEquals(FRAMES, subscriber.received.size());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals((byte) i, subscriber.received.get(i)[0]);
+        }
+        assertNull(subscriber.error);
+        sender.join(1000);
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testPublisher_Cancel() throws Exception {
+        FramePublisher publisher = new FramePublisher(server);
+        Recorder subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+        server.start();
+        client.sendData("first".getBytes());
+        client.sendData("second".getBytes());
+        subscriber.subscription.request(1);
+        subscriber.await(1);
+        subscriber.subscription.cancel();
+        assertTrue(server.getTransport().isInputShutdown());
+        subscriber.subscription.request(1);
+        Thread.sleep(20);
+        assertEquals(1, subscriber.received.size());
+
+        Recorder second = new Recorder();
+        publisher.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testPublisher_CloseWithoutDemand() throws Exception {
+        FramePublisher publisher = new FramePublisher(server);
+        Recorder subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+        server.start();
+        client.sendData("waiting".getBytes());
+        Thread.sleep(20);  // the receiving thread waits for demand
+        
+        server.close();
+        assertTrue("completed", subscriber.completed.await(1, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        assertTrue(subscriber.received.isEmpty());
+        server.join();
+    }
+
+    @Test
+    public void testSubscriber() throws Exception {
+        Recorder receiver = new Recorder();
+        FramePublisher publisher = new FramePublisher(server);
+        publisher.subscribe(receiver);
+        receiver.subscription.request(Long.MAX_VALUE);
+        server.start();
+
+        SubmissionPublisher<byte[]> source = new SubmissionPublisher<byte[]>();
+        source.subscribe(new FrameSubscriber(client, 4));
+        for (int i = 0; i < FRAMES; i++) {
+            source.submit(("frame " + i).getBytes());
+        }
+        source.close();
+        assertTrue("output shut down", receiver.completed.await(1, TimeUnit.SECONDS));
+        assertEquals(FRAMES, receiver.received.size());
+        assertEquals("frame 99", new String(receiver.received.get(99)));
+    }
+
+    @Test
+    public void testSubscriber_Queued() throws Exception {
+        Recorder receiver = new Recorder();
+        FramePublisher publisher = new FramePublisher(server);
+        publisher.subscribe(receiver);
+        receiver.subscription.request(Long.MAX_VALUE);
+        server.start();
+        
+        client.setOutboundLimit(new RateLimit(0, 1000));  // written by the thread of the connection
+        SubmissionPublisher<byte[]> source = new SubmissionPublisher<byte[]>();
+        source.subscribe(new FrameSubscriber(client, FRAMES));
+        for (int i = 0; i < FRAMES; i++) {
+            source.submit(("frame " + i).getBytes());
+        }
+        source.close();
+        assertTrue("output shut down", receiver.completed.await(2, TimeUnit.SECONDS));
+        assertEquals("nothing truncated", FRAMES, receiver.received.size());
+    }
+
+    @Test
+    public void testSubscriber_Error() throws Exception {
+        final CountDownLatch exception = new CountDownLatch(1);
+        client.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void handleException(Connection connection, Exception ex) {
+                exception.countDown();
+            }
+        });
+        SubmissionPublisher<byte[]> source = new SubmissionPublisher<byte[]>();
+        source.subscribe(new FrameSubscriber(client));
+        source.closeExceptionally(new Exception("test"));
+        assertTrue(exception.await(1, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!client.getTransport().isOutputShutdown() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("stopped", client.getTransport().isOutputShutdown());
+    }
+
+//  ############################################################################
+
+    private static class Recorder implements Flow.Subscriber<byte[]> {
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error = null;
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (received.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(count, received.size());
+        }
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+        @Override
+        public void onNext(byte[] item) {
+            received.add(item);
+        }
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
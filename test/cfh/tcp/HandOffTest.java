@@ -0,0 +1,210 @@
+package cfh.tcp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HandOffTest {
+
+    private Server oldServer;
+    private Server newServer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (oldServer != null) {
+            oldServer.stop();
+        }
+        if (newServer != null) {
+            newServer.stop();
+        }
+    }
+
+    @Test
+    public void testHandOff() throws Exception {
+        assumeTrue(reusePortSupported());
+        oldServer = new Server(0);
+        oldServer.setReusePort(true);
+        assertTrue(oldServer.isReusePort());
+        oldServer.start();
+        final Connection client = new Connection("localhost", oldServer.getPort());
+        client.start();
+        Thread.sleep(20);
+        assertEquals(1, oldServer.getConnections().size());
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+
+        newServer = new Server(oldServer.getPort());
+        newServer.setReusePort(true);
+        newServer.start();
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    client.close();
+                } catch (Exception ex) {
+                    errors.add(ex);
+                }
+            }
+        }.start();
+        long start = System.currentTimeMillis();
+        assertTrue("drained", oldServer.drain(2, SECONDS));
+        long millis = System.currentTimeMillis() - start;
+        assertTrue("waited for client: " + millis, millis >= 80 && millis < 1000);
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        Connection next = new Connection("localhost", newServer.getPort());
+        next.start();
+        Thread.sleep(20);
+        assertEquals(1, newServer.getConnections().size());
+        next.close();
+    }
+
+    @Test
+    public void testHandOff_Backlog() throws Exception {
+        assumeTrue(reusePortSupported());
+        oldServer = new Server(0);
+        oldServer.setReusePort(true);
+        oldServer.addListener(new EchoListener());
+        final CountDownLatch accepting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        oldServer.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server server, Connection connection) {
+                accepting.countDown();
+                try {
+                    release.await();  // holds the acceptor, the clients wait in the backlog
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        oldServer.start();
+        newServer = new Server(oldServer.getPort());
+        newServer.setReusePort(true);
+        newServer.addListener(new EchoListener());
+        newServer.start();
+        
+        List<Socket> clients = new ArrayList<Socket>();
+        try {
+            while (accepting.getCount() > 0 || clients.size() < 20) {
+                Socket socket = new Socket("localhost", oldServer.getPort());
+                socket.setSoTimeout(2000);
+                socket.getOutputStream().write(42);
+                clients.add(socket);
+                assertTrue("no connection to the old server", clients.size() < 1000);
+            }
+            Thread.sleep(20);
+            final BlockingQueue<Object> drained = new LinkedBlockingQueue<Object>();
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        drained.add(oldServer.drain(2, SECONDS));
+                    } catch (Exception ex) {
+                        drained.add(ex);
+                    }
+                }
+            }.start();
+            Thread.sleep(20);
+            release.countDown();
+            for (Socket socket : clients) {
+                assertEquals("echo", 42, socket.getInputStream().read());
+                socket.close();
+            }
+            assertEquals("drained", Boolean.TRUE, drained.poll(2, SECONDS));
+        } finally {
+            release.countDown();
+            for (Socket socket : clients) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testDrain_Timeout() throws Exception {
+        oldServer = new Server(0);
+        oldServer.start();
+        Connection client = new Connection("localhost", oldServer.getPort());
+        client.start();
+        Thread.sleep(20);
+
+        assertFalse(oldServer.drain(100, MILLISECONDS));
+        Thread.sleep(20);
+        assertTrue(oldServer.getConnections().isEmpty());
+        try {
+            new Connection("localhost", oldServer.getPort()).close();
+            fail("still accepting");
+        } catch (IOException expected) {
+        }
+        client.close();
+    }
+
+    @Test
+    public void testReusePort_Started() throws Exception {
+        oldServer = new Server(0);
+        oldServer.start();
+        try {
+            oldServer.setReusePort(true);
+            fail("set after start");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testStartupTime() throws Exception {
+        oldServer = new Server(0);
+        oldServer.start();
+        assertEquals(-1, oldServer.getStartupTime(MILLISECONDS));
+        Connection client = new Connection("localhost", oldServer.getPort());
+        Thread.sleep(20);
+        assumeTrue(ProcessHandle.current().info().startInstant().isPresent());
+        assertTrue(oldServer.getStartupTime(MILLISECONDS) > 0);
+        client.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testInherited_None() throws Exception {
+        Server.inherited();
+    }
+
+    private static class EchoListener extends ServerListener.Adapter {
+
+        @Override
+        public void connected(Server server, Connection connection) {
+            connection.addListener(new ConnectionListener.Adapter() {
+                @Override
+                public void receivedData(Connection conn, byte[] data) {
+                    try {
+                        conn.sendData(data);
+                    } catch (IOException ex) {
+                        conn.fireException(ex);
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean reusePortSupported() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } finally {
+            channel.close();
+        }
+    }
+}
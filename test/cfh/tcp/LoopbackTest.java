@@ -0,0 +1,229 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoopbackTest {
+
+    private LoopbackServerTransport transport;
+    private Server server;
+    private final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new LoopbackServerTransport("test", 10, 1024);
+        server = new Server(transport);
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.setFramed(true);
+                connection.addListener(new ConnectionListener.Adapter() {
+                    @Override
+                    public void receivedData(Connection connection, byte[] data) {
+                        try {
+                            connection.sendData(data);
+                        } catch (IOException ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testEcho() throws Exception {
+        final int count = 1000;
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch done = new CountDownLatch(count);
+        Connection client = new Connection(transport.connect());
+        client.setFramed(true);
+        client.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                received.add(data);
+                done.countDown();
+            }
+        });
+        client.start();
+        for (int i = 0; i < count; i++) {
+            client.sendData(data(i % 3000, i));  // larger than the buffers too
+        }
+        assertTrue("echoed: " + received.size(), done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals("message " + i, data(i % 3000, i), received.get(i));
+        }
+        assertEquals(1, server.getConnections().size());
+        assertEquals(-1, client.getRemotePort());
+        assertEquals(transport.getLocalAddress(), client.getRemoteAddress());
+
+        final CountDownLatch shutdown = new CountDownLatch(1);
+        server.getConnections().get(0).addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void shutdown(Connection connection) {
+                shutdown.countDown();
+            }
+        });
+        client.close();
+        assertTrue(shutdown.await(1, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testStreams() throws Exception {
+        LoopbackServerTransport streams = new LoopbackServerTransport("streams", 1, 16);
+        Transport client = streams.connect();
+        Transport accepted = streams.accept();
+        OutputStream output = client.getOutputStream();
+        InputStream input = accepted.getInputStream();
+
+        output.write("0123456789".getBytes());
+        assertEquals(10, input.available());
+        byte[] buffer = new byte[100];
+        assertEquals(10, input.read(buffer));
+        assertEquals("0123456789", new String(buffer, 0, 10));
+
+        output.write(7);
+        client.shutdownOutput();
+        assertTrue(client.isOutputShutdown());
+        assertEquals(7, input.read());
+        assertEquals(-1, input.read());
+        try {
+            output.write(1);
+            fail("written after shutdown");
+        } catch (IOException expected) {
+        }
+
+        accepted.getOutputStream().write("ab".getBytes());
+        accepted.close();
+        assertTrue(accepted.isClosed());
+        assertEquals('a', client.getInputStream().read());
+        assertEquals('b', client.getInputStream().read());
+        assertEquals(-1, client.getInputStream().read());
+        streams.close();
+    }
+
+    @Test
+    public void testBlockedRead() throws Exception {
+        final Transport client = transport.connect();
+        final CountDownLatch ended = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (client.getInputStream().read() == -1) {
+                        ended.countDown();
+                    }
+                } catch (IOException ex) {
+                    errors.add(ex);
+                }
+            }
+        };
+        reader.start();
+        assertFalse(ended.await(20, TimeUnit.MILLISECONDS));
+        client.shutdownInput();
+        assertTrue(ended.await(1, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+        client.close();
+    }
+
+    @Test
+    public void testBlockedWrite() throws Exception {
+        LoopbackServerTransport streams = new LoopbackServerTransport("streams", 1, 16);
+        final Transport client = streams.connect();
+        final Transport accepted = streams.accept();
+        final CountDownLatch written = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    client.getOutputStream().write(new byte[100]);
+                    written.countDown();
+                } catch (IOException ex) {
+                    errors.add(ex);
+                }
+            }
+        }.start();
+        assertFalse("buffer full", written.await(20, TimeUnit.MILLISECONDS));
+        InputStream input = accepted.getInputStream();
+        byte[] buffer = new byte[100];
+        int total = 0;
+        while (total < 100) {
+            total += input.read(buffer, total, 100 - total);
+        }
+        assertTrue(written.await(1, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+        client.close();
+        try {
+            accepted.getOutputStream().write(1);
+            fail("written after peer closed");
+        } catch (IOException expected) {
+        }
+        streams.close();
+    }
+
+    @Test
+    public void testConnect_Refused() throws Exception {
+        LoopbackServerTransport refused = new LoopbackServerTransport("refused", 1, 16);
+        refused.connect();
+        try {
+            refused.connect();
+            fail("backlog full");
+        } catch (ConnectException expected) {
+        }
+        refused.close();
+        try {
+            refused.connect();
+            fail("connected after close");
+        } catch (ConnectException expected) {
+        }
+        try {
+            refused.accept();
+            fail("accepted after close");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        try {
+            new LoopbackServerTransport("invalid", 1, 1000);
+            fail("buffer size not a power of two");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new LoopbackServerTransport("invalid", 0, 1024);
+            fail("invalid backlog");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i + seed);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,300 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cfh.tcp.Multiplexer.Channel;
+
+public class MultiplexTest {
+
+    private static final int WINDOW = 1000;
+
+    private LoopbackServerTransport transport;
+    private Multiplexer client;
+    private Multiplexer peer;
+    private final List<Channel> opened = Collections.synchronizedList(new ArrayList<Channel>());
+    private volatile boolean pause = false;
+    private volatile int echoes = 1;
+    private final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new LoopbackServerTransport("multiplex");
+        client = new Multiplexer(new Connection(transport.connect()));
+        client.setWindow(WINDOW);
+        peer = new Multiplexer(new Connection(transport.accept()));
+        peer.setWindow(WINDOW);
+        peer.addListener(new MultiplexListener.Adapter() {
+            @Override
+            public void opened(Multiplexer multiplexer, Channel channel) {
+                opened.add(channel);
+                if (pause) {
+                    channel.pause();
+                }
+                channel.addListener(new ChannelListener.Adapter() {
+                    @Override
+                    public void receivedData(Channel channel, byte[] data) {
+                        try {
+                            for (int i = 0; i < echoes; i++) {
+                                channel.sendData(data);
+                            }
+                        } catch (IOException ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+        });
+        client.start();
+        peer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        peer.close();
+        transport.close();
+    }
+
+    @Test
+    public void testChannels() throws Exception {
+        Recorder[] recorders = new Recorder[10];
+        Channel[] channels = new Channel[recorders.length];
+        for (int i = 0; i < channels.length; i++) {
+            recorders[i] = new Recorder(3);
+            channels[i] = client.open(recorders[i]);
+            assertTrue(recorders[i].started);
+        }
+        for (int n = 0; n < 3; n++) {
+            for (int i = 0; i < channels.length; i++) {
+                channels[i].sendData(("channel " + i + " message " + n).getBytes());
+            }
+        }
+        for (int i = 0; i < channels.length; i++) {
+            assertTrue(recorders[i].done.await(1, TimeUnit.SECONDS));
+            for (int n = 0; n < 3; n++) {
+                assertEquals("channel " + i + " message " + n, new String(recorders[i].received.get(n)));
+            }
+        }
+        assertEquals(channels.length, opened.size());
+        assertEquals(channels.length, peer.getChannels().size());
+        assertFalse(opened.get(0).isLocal());
+        assertTrue(channels[0].isLocal());
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        opened.get(0).addListener(new ChannelListener.Adapter() {
+            @Override
+            public void shutdown(Channel channel) {
+                closed.countDown();
+            }
+        });
+        channels[0].close();
+        assertFalse(channels[0].isOpen());
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertEquals(channels.length - 1, client.getChannels().size());
+        try {
+            channels[0].sendData(new byte[1]);
+            fail("sent on closed channel");
+        } catch (IOException expected) {
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testOpen_Peer() throws Exception {
+        final List<Channel> clientOpened = new ArrayList<Channel>();
+        client.addListener(new MultiplexListener.Adapter() {
+            @Override
+            public void opened(Multiplexer multiplexer, Channel channel) {
+                clientOpened.add(channel);
+                channel.addListener(new ChannelListener.Adapter() {
+                    @Override
+                    public void receivedData(Channel channel, byte[] data) {
+                        try {
+                            channel.sendData(data);  // echo
+                        } catch (IOException ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+        });
+        Channel local = client.open(null);
+        Recorder recorder = new Recorder(1);
+        Channel remote = peer.open(recorder);
+        assertEquals("same id on both sides", local.getId(), remote.getId());
+        remote.sendData("from peer".getBytes());
+        assertTrue(recorder.done.await(1, TimeUnit.SECONDS));
+        assertEquals("from peer", new String(recorder.received.get(0)));
+        assertEquals(remote.getId(), clientOpened.get(0).getId());
+        assertFalse(clientOpened.get(0).isLocal());
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testFlowControl() throws Exception {
+        pause = true;
+        final Recorder slow = new Recorder(3);
+        final Channel paused = client.open(slow);
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        paused.sendData(new byte[WINDOW]);
+                    }
+                } catch (IOException ex) {
+                    errors.add(ex);
+                }
+            }
+        };
+        sender.start();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (paused.getWindow() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("window used", 0, paused.getWindow());
+
+        Recorder other = new Recorder(1);
+        Channel free = client.open(other);
+        free.sendData("other".getBytes());
+        assertTrue("other channel not blocked", other.done.await(1, TimeUnit.SECONDS));
+        assertTrue("paused sender blocked", sender.isAlive());
+
+        opened.get(0).resume();
+        sender.join(1000);
+        assertFalse(sender.isAlive());
+        assertTrue(slow.done.await(1, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testFlowControl_Echo() throws Exception {
+        Recorder echoed = new Recorder(3);
+        final Channel channel = client.open(echoed);
+        channel.pause();  // no credit for the echo
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        channel.sendData(new byte[WINDOW]);
+                    }
+                } catch (IOException ex) {
+                    errors.add(ex);
+                }
+            }
+        };
+        sender.start();
+        long deadline = System.currentTimeMillis() + 1000;
+        while ((opened.isEmpty() || opened.get(0).getPending() < 1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("echo waiting for credit", 1, opened.get(0).getPending());
+        Thread.sleep(20);
+        assertTrue("peer holds back the credit", sender.isAlive());
+        assertEquals(1, opened.get(0).getPending());
+        
+        Recorder other = new Recorder(1);
+        Channel free = client.open(other);
+        free.sendData("other".getBytes());
+        assertTrue("receiver of the peer not blocked", other.done.await(1, TimeUnit.SECONDS));
+        
+        channel.resume();
+        assertTrue(echoed.done.await(1, TimeUnit.SECONDS));
+        sender.join(1000);
+        assertFalse(sender.isAlive());
+        assertEquals(0, opened.get(0).getPending());
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testFlowControl_EchoBound() throws Exception {
+        echoes = 10;
+        Channel channel = client.open(null);
+        channel.pause();  // no credit for the echo
+        channel.sendData(new byte[WINDOW / 2]);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (errors.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, errors.size());
+        assertTrue(errors.toString(), errors.peek() instanceof IOException);
+        assertEquals("twice the window queued", 4, opened.get(0).getPending());
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        final CountDownLatch shutdown = new CountDownLatch(2);
+        Channel channel = client.open(new ChannelListener.Adapter() {
+            @Override
+            public void shutdown(Channel channel) {
+                shutdown.countDown();
+            }
+        });
+        client.addListener(new MultiplexListener.Adapter() {
+            @Override
+            public void shutdown(Multiplexer multiplexer) {
+                shutdown.countDown();
+            }
+        });
+        peer.close();
+        assertTrue(shutdown.await(1, TimeUnit.SECONDS));
+        assertFalse(channel.isOpen());
+        assertTrue(client.getChannels().isEmpty());
+        try {
+            client.open(null);
+            fail("opened after shutdown");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testMaxChannels() throws Exception {
+        peer.setMaxChannels(1);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        client.open(null);
+        client.open(new ChannelListener.Adapter() {
+            @Override
+            public void shutdown(Channel channel) {
+                rejected.countDown();
+            }
+        });
+        assertTrue(rejected.await(1, TimeUnit.SECONDS));
+        assertEquals(1, client.getChannels().size());
+        assertEquals(1, peer.getChannels().size());
+    }
+
+//  ############################################################################
+
+    private static class Recorder extends ChannelListener.Adapter {
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch done;
+        volatile boolean started = false;
+
+        Recorder(int count) {
+            done = new CountDownLatch(count);
+        }
+        @Override
+        public void started(Channel channel) {
+            started = true;
+        }
+        @Override
+        public void receivedData(Channel channel, byte[] data) {
+            received.add(data);
+            done.countDown();
+        }
+    }
+}
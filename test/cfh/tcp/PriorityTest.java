@@ -0,0 +1,284 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PriorityTest {
+
+    private final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+
+    @Test
+    public void testChunked() throws Exception {
+        SlowTransport transport = new SlowTransport(0);
+        Connection sender = new Connection(transport);
+        sender.setFramed(true);
+        sender.setChunkSize(1000);
+        byte[] large = data(200 * 1000, 1);
+        sender.sendData("test1".getBytes(), 3);
+        sender.sendData(large);
+        sender.sendData("test2".getBytes(), Connection.MAX_PRIORITY);
+
+        List<byte[]> received = receive(transport.written.toByteArray());
+        assertEquals(3, received.size());
+        assertArrayEquals("test1".getBytes(), received.get(0));
+        assertArrayEquals(large, received.get(1));
+        assertArrayEquals("test2".getBytes(), received.get(2));
+    }
+
+    @Test
+    public void testPreempt() throws Exception {
+        SlowTransport transport = new SlowTransport(1);
+        final Connection sender = new Connection(transport);
+        sender.setFramed(true);
+        sender.setChunkSize(1000);
+        final byte[] large = data(100 * 1000, 2);
+        Thread bulk = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sender.sendData(large, 0);
+                } catch (IOException ex) {
+                    errors.add(ex);
+                }
+            }
+        };
+        bulk.start();
+        Thread.sleep(20);
+        long start = System.nanoTime();
+        sender.sendData("control".getBytes(), Connection.MAX_PRIORITY);
+        assertTrue("not blocked", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(10));
+        bulk.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        List<byte[]> received = receive(transport.written.toByteArray());
+        assertEquals(2, received.size());
+        assertArrayEquals("control first", "control".getBytes(), received.get(0));
+        assertArrayEquals(large, received.get(1));
+    }
+
+    @Test
+    public void testLanes() throws Exception {
+        SlowTransport transport = new SlowTransport(20);
+        final Connection sender = new Connection(transport);
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sender.sendData("A".getBytes(), 1);
+                } catch (IOException ex) {
+                    errors.add(ex);
+                }
+            }
+        };
+        first.start();
+        Thread.sleep(5);
+        sender.sendData("B".getBytes(), 0);
+        sender.sendData("C".getBytes(), 0);
+        sender.sendData("D".getBytes(), 5);
+        sender.sendData("E".getBytes(), 1);
+        first.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        Thread.sleep(100);
+        assertEquals(0, sender.getQueued());
+        assertEquals("ADEBC", transport.written.toString());
+    }
+
+    @Test
+    public void testMaxQueued() throws Exception {
+        SlowTransport transport = new SlowTransport(50);
+        final Connection sender = new Connection(transport);
+        sender.setMaxQueued(10);
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sender.sendData("first".getBytes());
+                } catch (IOException ex) {
+                    errors.add(ex);
+                }
+            }
+        };
+        first.start();
+        Thread.sleep(10);
+        sender.sendData(new byte[10]);
+        assertEquals(10, sender.getQueued());
+        long start = System.nanoTime();
+        sender.sendData(new byte[10]);
+        assertTrue("waited for room", System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(20));
+        first.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testMaxQueued_SentData() throws Exception {
+        SlowTransport transport = new SlowTransport(50);
+        final Connection sender = new Connection(transport);
+        sender.setMaxQueued(10);
+        final byte[] first = "first".getBytes();
+        sender.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void sentData(Connection connection, byte[] data) {
+                if (data == first) {
+                    try {
+                        connection.sendData("reply".getBytes());  // queue full, sent by this writer
+                    } catch (IOException ex) {
+                        errors.add(ex);
+                    }
+                }
+            }
+        });
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sender.sendData(first);
+                } catch (IOException ex) {
+                    errors.add(ex);
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(10);
+        sender.sendData(new byte[10]);
+        writer.join(1000);
+        assertFalse("writer waited for itself", writer.isAlive());
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, sender.getQueued());
+        assertEquals(20, transport.written.size());
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        Connection sender = new Connection(new SlowTransport(0));
+        try {
+            sender.sendData(new byte[1], Connection.MAX_PRIORITY + 1);
+            fail("invalid priority");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            sender.setChunkSize(Connection.MAX_CHUNK_SIZE + 1);
+            fail("invalid chunk size");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * seed);
+        }
+        return data;
+    }
+
+    /**
+     * Decodes the frames with a receiving connection.
+     */
+    private static List<byte[]> receive(byte[] bytes) throws Exception {
+        SlowTransport transport = new SlowTransport(0);
+        transport.input = new ByteArrayInputStream(bytes);
+        Connection receiver = new Connection(transport);
+        receiver.setFramed(true);
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch shutdown = new CountDownLatch(1);
+        receiver.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                received.add(data);
+            }
+            @Override
+            public void shutdown(Connection connection) {
+                shutdown.countDown();
+            }
+        });
+        receiver.start();
+        assertTrue(shutdown.await(1, TimeUnit.SECONDS));
+        return received;
+    }
+
+//  ############################################################################
+
+    /**
+     * Transport recording the written data, each write takes some time.
+     */
+    private static class SlowTransport implements Transport {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        InputStream input = new ByteArrayInputStream(new byte[0]);
+        private final long delay;
+        private boolean closed = false;
+
+        SlowTransport(long delay) {
+            this.delay = delay;
+        }
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex);
+                        }
+                    }
+                    synchronized (written) {
+                        written.write(b, off, len);
+                    }
+                }
+            };
+        }
+        @Override
+        public void shutdownInput() {
+        }
+        @Override
+        public void shutdownOutput() {
+        }
+        @Override
+        public boolean isInputShutdown() {
+            return closed;
+        }
+        @Override
+        public boolean isOutputShutdown() {
+            return closed;
+        }
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package cfh.tcp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RateLimitTest {
+
+    private Server server;
+    private final List<AtomicLong> received = new CopyOnWriteArrayList<AtomicLong>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                final AtomicLong count = new AtomicLong();
+                received.add(count);
+                connection.addListener(new ConnectionListener.Adapter() {
+                    @Override
+                    public void receivedData(Connection connection, byte[] data) {
+                        count.addAndGet(data.length);
+                    }
+                });
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testOutboundBytes() throws Exception {
+        Connection client = new Connection("localhost", server.getPort());
+        RateLimit limit = new RateLimit(1000 * 1000, 0);
+        client.setOutboundLimit(limit);
+        client.start();
+        Thread.sleep(50);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            client.sendData(new byte[10 * 1000]);
+        }
+        long queued = MILLISECONDS.convert(System.nanoTime() - start, NANOSECONDS);
+        assertTrue("queued: " + queued, queued < 100);
+        assertTrue(client.awaitSent(System.nanoTime() + NANOSECONDS.convert(2000, MILLISECONDS)));
+        long millis = MILLISECONDS.convert(System.nanoTime() - start, NANOSECONDS);
+        assertTrue("paused: " + millis, millis >= 350);
+        assertEquals(500 * 1000, limit.getBytes());
+        assertEquals(50, limit.getMessages());
+        assertTrue(limit.getPausedTime(MILLISECONDS) >= 350);
+
+        Thread.sleep(50);
+        assertEquals("nothing dropped", 500 * 1000, received.get(0).get());
+        client.close();
+    }
+
+    @Test
+    public void testOutboundBroadcast() throws Exception {
+        Connection slow = new Connection("localhost", server.getPort());
+        slow.start();
+        Connection fast = new Connection("localhost", server.getPort());
+        fast.start();
+        final AtomicLong slowCount = new AtomicLong();
+        final AtomicLong fastCount = new AtomicLong();
+        slow.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                slowCount.addAndGet(data.length);
+            }
+        });
+        fast.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                fastCount.addAndGet(data.length);
+            }
+        });
+        Thread.sleep(50);
+        server.getConnections().get(0).setOutboundLimit(new RateLimit(100 * 1000, 0));
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            server.sendData(new byte[1000]);
+        }
+        long millis = MILLISECONDS.convert(System.nanoTime() - start, NANOSECONDS);
+        assertTrue("broadcast held up: " + millis, millis < 100);
+        Thread.sleep(100);
+        assertEquals(50 * 1000, fastCount.get());
+        assertTrue("limited: " + slowCount.get(), slowCount.get() < 50 * 1000);
+        Thread.sleep(500);
+        assertEquals("nothing dropped", 50 * 1000, slowCount.get());
+        slow.close();
+        fast.close();
+    }
+
+    @Test
+    public void testOutboundMessages() throws Exception {
+        Connection client = new Connection("localhost", server.getPort());
+        client.setOutboundLimit(new RateLimit(0, 50));
+        client.start();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            client.sendData("test".getBytes());
+        }
+        assertTrue(client.awaitSent(System.nanoTime() + NANOSECONDS.convert(2000, MILLISECONDS)));
+        long millis = System.currentTimeMillis() - start;
+        assertTrue("paused: " + millis, millis >= 250);
+        client.close();
+    }
+
+    @Test
+    public void testInbound() throws Exception {
+        server.setInboundRate(500 * 1000, 0);
+        Connection client = new Connection("localhost", server.getPort());
+        client.start();
+        client.sendData(new byte[500 * 1000]);
+
+        Thread.sleep(400);
+        long count = received.get(0).get();
+        assertTrue("paused: " + count, count < 400 * 1000);
+        Thread.sleep(800);
+        assertEquals("nothing dropped", 500 * 1000, received.get(0).get());
+        client.close();
+    }
+
+    @Test
+    public void testGlobalFair() throws Exception {
+        RateLimit global = new RateLimit(1000 * 1000, 0);
+        server.setGlobalLimits(global, null);
+        assertSame(global, server.getGlobalInboundLimit());
+        Connection client1 = new Connection("localhost", server.getPort());
+        client1.start();
+        Connection client2 = new Connection("localhost", server.getPort());
+        client2.start();
+        Thread.sleep(50);
+
+        client1.sendData(new byte[600 * 1000]);
+        client2.sendData(new byte[600 * 1000]);
+        Thread.sleep(500);
+        long count1 = received.get(0).get();
+        long count2 = received.get(1).get();
+        assertTrue("limited: " + (count1 + count2), count1 + count2 < 900 * 1000);
+        assertTrue("fair: " + count1 + "/" + count2, count1 > 100 * 1000 && count2 > 100 * 1000);
+        assertTrue("fair: " + count1 + "/" + count2, Math.abs(count1 - count2) < (count1 + count2) / 3);
+
+        Thread.sleep(1000);
+        assertEquals(600 * 1000, received.get(0).get());
+        assertEquals(600 * 1000, received.get(1).get());
+        client1.close();
+        client2.close();
+    }
+}
@@ -0,0 +1,144 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RelayTest {
+
+    private Server backend;
+    private Server proxy;
+    private volatile Relay relay;
+    private final AtomicInteger shutdowns = new AtomicInteger();
+    /** Exceptions of the echo and the relay set up, on the server threads. */
+    private final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new Server(0);
+        backend.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.addListener(new ConnectionListener.Adapter() {
+                    @Override
+                    public void receivedData(Connection connection, byte[] data) {
+                        try {
+                            connection.sendData(data);
+                        } catch (Exception ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+        });
+        backend.start();
+
+        proxy = new Server(0);
+        proxy.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection inbound) {
+                try {
+                    Connection outbound = new Connection("localhost", backend.getPort());
+                    ConnectionListener counter = new ConnectionListener.Adapter() {
+                        @Override
+                        public void shutdown(Connection connection) {
+                            shutdowns.incrementAndGet();
+                        }
+                    };
+                    inbound.addListener(counter);
+                    outbound.addListener(counter);
+                    relay = new Relay(inbound, outbound);
+                    relay.start();
+                } catch (Exception ex) {
+                    errors.add(ex);
+                }
+            }
+        });
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        proxy.stop();
+        backend.stop();
+    }
+
+    @Test
+    public void testEcho() throws Exception {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Connection client = new Connection("localhost", proxy.getPort());
+        client.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                synchronized (received) {
+                    received.write(data, 0, data.length);
+                }
+            }
+        });
+        client.start();
+
+        byte[] large = new byte[1024 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        client.sendData("test1".getBytes());
+        client.sendData(large);
+        Thread.sleep(500);
+
+        synchronized (received) {
+            assertEquals(5 + large.length, received.size());
+            byte[] data = received.toByteArray();
+            assertEquals("test1", new String(data, 0, 5));
+        }
+        assertEquals(5 + large.length, relay.getUpstreamBytes());
+        assertEquals(5 + large.length, relay.getDownstreamBytes());
+        assertTrue(relay.getUpstreamThroughput() > 0);
+        assertTrue(relay.getDownstreamThroughput() > 0);
+        assertTrue(relay.isRunning());
+        assertTrue(errors.toString(), errors.isEmpty());
+        client.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        Connection client = new Connection("localhost", proxy.getPort());
+        client.start();
+        Thread.sleep(50);
+        assertEquals(1, proxy.getConnections().size());
+        assertTrue(relay.isRunning());
+
+        client.close();
+        Thread.sleep(100);
+        assertFalse(relay.isRunning());
+        assertEquals(2, shutdowns.get());
+        assertTrue("removed from server", proxy.getConnections().isEmpty());
+        assertTrue(backend.getConnections().isEmpty());
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testNotStarted() throws Exception {
+        Connection client = new Connection("localhost", proxy.getPort());
+        client.start();
+        Thread.sleep(50);
+        try {
+            relay.getInbound().start();
+            fail("relayed connection started");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            new Relay(client, relay.getOutbound()).start();
+            fail("started connection relayed");
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        client.close();
+    }
+}
@@ -0,0 +1,305 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Scale and soak test: many concurrent connections with sustained echo
+ * traffic against one server.
+ *
+ * <P>The clients connect one after the other, with at most {@value #PENDING}
+ * connections waiting to be accepted.
+ *
+ * <P>Runs with 200 connections for 2 seconds, sending 10000 messages per
+ * second in total, by default, as part of the unit tests. The target
+ * scale runs as a soak with <code>-Dcfh.tcp.scale=soak</code>: 20000
+ * connections held for 10 minutes, sending 100000 messages per second.
+ * The system properties <code>cfh.tcp.scale.connections</code>,
+ * <code>cfh.tcp.scale.seconds</code> and <code>cfh.tcp.scale.rate</code>
+ * override either profile, for example up to 50000 connections. A soak
+ * needs a file descriptor limit above twice the connections, like
+ * <code>ulimit -n 110000</code>, else it fails instead of being skipped,
+ * and a small thread stack, like <code>-Xss256k</code>, for one receiving
+ * thread per connection:
+ * <PRE>
+ * java -Dcfh.tcp.scale=soak -Xss256k -Xmx4g -cp ... org.junit.runner.JUnitCore cfh.tcp.ScaleTest
+ * </PRE>
+ *
+ * <P>The clients are non-blocking channels served by the test thread, so
+ * the thread count only measures the server: one receiving thread per
+ * connection and no sending threads.
+ */
+public class ScaleTest {
+
+    private static final boolean SOAK = "soak".equals(System.getProperty("cfh.tcp.scale"));
+    private static final int CONNECTIONS = Integer.getInteger("cfh.tcp.scale.connections", SOAK ? 20000 : 200);
+    private static final int SECONDS = Integer.getInteger("cfh.tcp.scale.seconds", SOAK ? 600 : 2);
+    private static final int RATE = Integer.getInteger("cfh.tcp.scale.rate", SOAK ? 100000 : 10000);
+
+    /** Maximum number of connections waiting to be accepted while connecting. */
+    private static final int PENDING = 100;
+
+    private static final long MAX_ACCEPT_MILLIS = 250;
+    private static final long MAX_MESSAGE_MILLIS = 250;
+    private static final int EXTRA_THREADS = 16;
+    private static final int EXTRA_FDS = 64;
+    private static final long HEAP_PER_CONNECTION = 32 * 1024;
+
+    /** Message: send time and client index. */
+    private static final int MESSAGE_SIZE = 16;
+    private static final int SAMPLES = 1 << 20;
+
+    private Server server;
+    private SocketChannel[] clients;
+    private Selector selector;
+
+    private long[] acceptTimes;
+    private long[] latencies;
+    private final AtomicInteger accepted = new AtomicInteger();
+    /** Exceptions of the echo, on the receiving threads of the server. */
+    private final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+
+    private int baseThreads;
+    private int[] baseServerThreads;
+    private long baseFds;
+    private long baseHeap;
+
+    @Before
+    public void setUp() throws Exception {
+        long maxFds = maxFileDescriptors();
+        String limit = "file descriptor limit too low for " + CONNECTIONS + " connections: " + maxFds;
+        boolean enough = maxFds == -1 || maxFds > 2L * CONNECTIONS + 2 * EXTRA_FDS;
+        if (SOAK) {
+            assertTrue(limit, enough);
+        } else {
+            assumeTrue(limit, enough);
+        }
+
+        latencies = new long[SAMPLES];
+        baseThreads = Thread.activeCount();
+        baseServerThreads = serverThreads();
+        baseFds = openFileDescriptors();
+        baseHeap = usedHeap();
+
+        acceptTimes = new long[CONNECTIONS];
+        server = new Server(0, CONNECTIONS, null);
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                int index = accepted.getAndIncrement();
+                if (index < acceptTimes.length) {
+                    acceptTimes[index] = System.nanoTime();
+                }
+                connection.addListener(new ConnectionListener.Adapter() {
+                    @Override
+                    public void receivedData(Connection connection, byte[] data) {
+                        try {
+                            connection.sendData(data);
+                        } catch (Exception ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+        });
+        server.start();
+        selector = Selector.open();
+        clients = new SocketChannel[CONNECTIONS];
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SocketChannel client : clients) {
+            if (client != null) {
+                client.close();
+            }
+        }
+        selector.close();
+        server.stop();
+    }
+
+    @Test
+    public void testScale() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+        long[] connectTimes = new long[CONNECTIONS];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            connectTimes[i] = System.nanoTime();
+            clients[i] = SocketChannel.open(address);
+            clients[i].configureBlocking(false);
+            clients[i].register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(4 * MESSAGE_SIZE));
+            if (i >= PENDING) {
+                waitFor(i - PENDING);
+            }
+        }
+        waitFor(CONNECTIONS);
+        long[] acceptMillis = new long[CONNECTIONS];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            acceptMillis[i] = TimeUnit.NANOSECONDS.toMillis(acceptTimes[i] - connectTimes[i]);
+        }
+        assertTrue("accept latency p99: " + percentile(acceptMillis, CONNECTIONS, 99),
+                percentile(acceptMillis, CONNECTIONS, 99) <= MAX_ACCEPT_MILLIS);
+
+        long count = traffic();
+        int samples = (int) Math.min(count, SAMPLES);
+        assertTrue("messages: " + count, count >= Math.min(CONNECTIONS, RATE));
+        long p99 = percentile(latencies, samples, 99);
+        assertTrue("message latency p99: " + p99 + " ms", p99 <= MAX_MESSAGE_MILLIS);
+        assertTrue("echo failed: " + errors, errors.isEmpty());
+
+        int[] threads = serverThreads();
+        assertTrue("receiving threads: " + threads[0], threads[0] <= baseServerThreads[0] + CONNECTIONS);
+        assertTrue("sending threads: " + threads[1], threads[1] <= baseServerThreads[1]);
+        assertTrue("other threads: " + threads[2], threads[2] <= baseServerThreads[2] + EXTRA_THREADS);
+        long fds = openFileDescriptors();
+        assertTrue("file descriptors: " + fds, fds <= baseFds + 2L * CONNECTIONS + EXTRA_FDS);
+        long heap = usedHeap() - baseHeap;
+        assertTrue("heap per connection: " + heap / CONNECTIONS, heap <= HEAP_PER_CONNECTION * CONNECTIONS);
+
+        // mass disconnect
+        for (int i = 0; i < CONNECTIONS; i++) {
+            clients[i].close();
+            clients[i] = null;
+        }
+        selector.selectNow();  // closes the cancelled channels
+        long deadline = System.currentTimeMillis() + 10000 + CONNECTIONS;
+        while (System.currentTimeMillis() < deadline
+                && (!server.getConnections().isEmpty() || Thread.activeCount() > baseThreads + EXTRA_THREADS)) {
+            Thread.sleep(10);
+        }
+        assertEquals("leaked connections", 0, server.getConnections().size());
+        threads = serverThreads();
+        assertTrue("receiving threads after disconnect: " + threads[0], threads[0] <= baseServerThreads[0]);
+        assertTrue("threads after disconnect: " + Thread.activeCount(), Thread.activeCount() <= baseThreads + EXTRA_THREADS);
+        fds = openFileDescriptors();
+        assertTrue("file descriptors after disconnect: " + fds, fds <= baseFds + EXTRA_FDS);
+    }
+
+    /**
+     * Sends messages at the configured rate over the connections in turn,
+     * skipping connections still waiting for their echo.
+     *
+     * @return the number of messages echoed
+     */
+    private long traffic() throws Exception {
+        Random random = new Random(0);
+        ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+        boolean[] waiting = new boolean[CONNECTIONS];
+        int next = 0;
+        long sent = 0;
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long due = (now - start) * RATE / TimeUnit.SECONDS.toNanos(1);
+            for (int i = 0; sent < due && i < CONNECTIONS; i++) {
+                if (!waiting[next]) {
+                    waiting[next] = true;
+                    send(next, message);
+                    sent += 1;
+                }
+                next = (next + 1) % CONNECTIONS;
+            }
+            selector.select(1);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ByteBuffer buffer = (ByteBuffer) key.attachment();
+                int n = ((SocketChannel) key.channel()).read(buffer);
+                assertTrue("closed by server", n != -1);
+                buffer.flip();
+                while (buffer.remaining() >= MESSAGE_SIZE) {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - buffer.getLong());
+                    int index = (int) buffer.getLong();
+                    int sample = (count < SAMPLES) ? (int) count : random.nextInt(SAMPLES);
+                    latencies[sample] = millis;
+                    count += 1;
+                    waiting[index] = false;
+                }
+                buffer.compact();
+            }
+        }
+        return count;
+    }
+
+    private void send(int index, ByteBuffer message) throws Exception {
+        message.clear();
+        message.putLong(System.nanoTime()).putLong(index).flip();
+        clients[index].write(message);
+        assertFalse("message written at once", message.hasRemaining());
+    }
+
+    private void waitFor(int connections) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000 + connections;
+        while (accepted.get() < connections && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("accepted: " + accepted.get(), accepted.get() >= connections);
+    }
+
+    /**
+     * Counts the live threads: receiving and sending threads of connections,
+     * and the others.
+     */
+    private static int[] serverThreads() {
+        int[] counts = new int[3];
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.startsWith("Receiver: ")) {
+                counts[0] += 1;
+            } else if (name.startsWith("Sender: ")) {
+                counts[1] += 1;
+            } else {
+                counts[2] += 1;
+            }
+        }
+        return counts;
+    }
+
+    private static long percentile(long[] values, int count, int percent) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, count * percent / 100)];
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /** Returns the number of open file descriptors, 0 if not known. */
+    private static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        return 0;
+    }
+
+    /** Returns the maximum number of file descriptors, -1 if not known. */
+    private static long maxFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+        return -1;
+    }
+}
@@ -1,10 +1,20 @@
 package cfh.tcp;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -13,14 +23,17 @@ import org.junit.Test;
 
 public class ServerTest {
 
-    private static final int PORT = 1234;
+    private int port;
     
     private Server server;
     private TestServListener testListener;
+    private Server loopback;
+    private Path spill;
     
     @Before
-    public void setUp() {
-        server = new Server(PORT);
+    public void setUp() throws IOException {
+        port = freePort();
+        server = new Server(port);
         testListener = new TestServListener();
         server.addListener(testListener);
     }
@@ -28,6 +41,33 @@ public class ServerTest {
     @After
     public void tearDown() throws Exception {
         server.stop();
+        if (loopback != null) {
+            loopback.stop();
+        }
+        if (spill != null) {
+            DirectoryStream<Path> files = Files.newDirectoryStream(spill);
+            try {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            } finally {
+                files.close();
+            }
+            Files.delete(spill);
+        }
+    }
+
+    /**
+     * Returns a port not in use, a fixed one may still be bound by another
+     * test or process.
+     */
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
     }
 
 
@@ -35,14 +75,14 @@ public class ServerTest {
     public void testStart() throws Exception {
         testListener.assertStatus(false, false);
         try {
-            new Socket("localhost", PORT);
+            new Socket("localhost", port);
             fail("not started but connected");
         } catch (IOException expected) { 
         }
         
         server.start();
         testListener.assertWasStarted(true);
-        Socket socket = new Socket("localhost", PORT);
+        Socket socket = new Socket("localhost", port);
         assertEquals(true, socket.isConnected());
         socket.shutdownOutput();
     }
@@ -51,13 +91,13 @@ public class ServerTest {
     public void testStop() throws IOException, InterruptedException {
         server.start();
         testListener.assertStatus(true, false);
-        Socket socket = new Socket("localhost", PORT);
+        Socket socket = new Socket("localhost", port);
         assertEquals(true, socket.isConnected());
         
         server.stop();
         testListener.assertWasShutdown(true);
         try {
-            new Socket("localhost", PORT);
+            new Socket("localhost", port);
             fail("not stopped");
         } catch (IOException expected) {
         }
@@ -70,7 +110,7 @@ public class ServerTest {
         final byte[] data = "test1".getBytes();
         
         server.start();
-        TestClient client = new TestClient(PORT);
+        TestClient client = new TestClient(port);
         testListener.assertConnections(1);
         
         server.sendData(data);
@@ -80,7 +120,7 @@ public class ServerTest {
 
     @Test
     public void testGetPort() {
-        assertEquals(PORT, server.getPort());
+        assertEquals(port, server.getPort());
     }
     
     @Test
@@ -103,12 +143,12 @@ public class ServerTest {
         connections = server.getConnections();
         assertEquals(true, connections.isEmpty());
         
-        TestClient client1 = new TestClient(PORT);
+        TestClient client1 = new TestClient(port);
         Thread.sleep(10);
         connections = server.getConnections();
         assertEquals(1, connections.size());
         
-        new TestClient(PORT);
+        new TestClient(port);
         connections = server.getConnections();
         Thread.sleep(10);
         assertEquals(2, connections.size());
@@ -125,12 +165,12 @@ public class ServerTest {
         TestServListener listener = new TestServListener();
         
         listener.assertConnections(0);
-        new TestClient(PORT);
+        new TestClient(port);
         listener.assertConnections(0);
         
         server.addListener(listener);
         listener.assertConnections(0);
-        new TestClient(PORT);
+        new TestClient(port);
         listener.assertConnections(1);
     }
 
@@ -141,12 +181,173 @@ public class ServerTest {
         server.addListener(listener);
         
         listener.assertConnections(0);
-        new TestClient(PORT);
+        new TestClient(port);
         listener.assertConnections(1);
         
         server.removeListener(listener);
         listener.assertConnections(1);
-        new TestClient(PORT);
+        new TestClient(port);
         listener.assertConnections(1);
     }
+
+    @Test
+    public void testShutdown() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("shutdown");
+        loopback = new Server(transport);
+        loopback.start();
+        final CountDownLatch closed = new CountDownLatch(50);
+        List<Connection> clients = new ArrayList<Connection>();
+        for (int i = 0; i < 50; i++) {
+            Connection client = new Connection(transport.connect());
+            client.addListener(new ConnectionListener.Adapter() {
+                @Override
+                public void shutdown(Connection connection) {
+                    closed.countDown();
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        long deadline = System.currentTimeMillis() + 1000;
+        while (loopback.getConnections().size() < 50 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        loopback.sendData(new byte[1000]);
+        
+        CompletableFuture<Boolean> future = loopback.shutdown(1, SECONDS);
+        assertTrue("all sent", future.get(1, SECONDS));
+        assertTrue(loopback.getConnections().isEmpty());
+        assertTrue("clients got end of stream", closed.await(1, SECONDS));
+        try {
+            transport.connect();
+            fail("still accepting");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testShutdown_Deadline() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("deadline", 1, 1024);
+        loopback = new Server(transport);
+        spill = Files.createTempDirectory("spill");
+        loopback.setSpill(spill, 1024 * 1024);
+        loopback.start();
+        Transport client = transport.connect();  // never reads
+        long deadline = System.currentTimeMillis() + 1000;
+        while (loopback.getConnections().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Connection connection = loopback.getConnections().get(0);
+        for (int i = 0; i < 100; i++) {
+            connection.sendData(new byte[1000]);
+        }
+        
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> future = loopback.shutdown(100, MILLISECONDS);
+        assertFalse("not all sent", future.get(1, SECONDS));
+        long millis = MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        assertTrue("waited for the deadline: " + millis, millis >= 90 && millis < 1000);
+        assertTrue(connection.getTransport().isClosed());
+        client.close();
+    }
+
+    @Test
+    public void testShutdown_Parallel() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("parallel", 2, 1024);
+        loopback = new Server(transport);
+        loopback.start();
+        Transport slow = transport.connect();  // never reads
+        long deadline = System.currentTimeMillis() + 1000;
+        while (loopback.getConnections().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        final Connection blocked = loopback.getConnections().get(0);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    blocked.sendData(new byte[100000]);
+                } catch (IOException expected) {
+                    // closed by the shutdown
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        final CountDownLatch closed = new CountDownLatch(1);
+        Connection fast = new Connection(transport.connect());
+        fast.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void shutdown(Connection connection) {
+                closed.countDown();
+            }
+        });
+        fast.start();
+        while (loopback.getConnections().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> future = loopback.shutdown(1, SECONDS);
+        assertTrue("fast client closed", closed.await(500, MILLISECONDS));
+        long millis = MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        assertTrue("not held up by the slow client: " + millis, millis < 500);
+        assertFalse("not all sent", future.get(2, SECONDS));
+        slow.close();
+    }
+
+    @Test
+    public void testShutdown_Backlog() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("backlog");
+        loopback = new Server(transport);
+        final CountDownLatch accepting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        loopback.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                accepting.countDown();
+                try {
+                    release.await();  // holds the acceptor, the second client waits in the backlog
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        loopback.start();
+        final CountDownLatch closed = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            Connection client = new Connection(transport.connect());
+            client.addListener(new ConnectionListener.Adapter() {
+                @Override
+                public void shutdown(Connection connection) {
+                    closed.countDown();
+                }
+            });
+            client.start();
+        }
+        assertTrue(accepting.await(1, SECONDS));
+        
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ignored) {
+                }
+                release.countDown();
+            }
+        };
+        releaser.setDaemon(true);
+        releaser.start();
+        
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> future = loopback.shutdown(1, SECONDS);
+        long millis = MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        assertTrue("did not wait for the acceptor: " + millis, millis < 250);
+        assertFalse(future.isDone());
+        assertTrue("all sent", future.get(2, SECONDS));
+        assertTrue("backlog accepted and closed", closed.await(1, SECONDS));
+        assertTrue(loopback.getConnections().isEmpty());
+    }
 }
@@ -0,0 +1,321 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionTest {
+
+    private LoopbackServerTransport transport;
+    private Server server;
+    private SessionManager manager;
+    private TestListener serverEvents;
+    private final BlockingQueue<Session> opened = new LinkedBlockingQueue<Session>();
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new LoopbackServerTransport("session");
+        server = new Server(transport);
+        manager = new SessionManager(server);
+        serverEvents = new TestListener();
+        manager.addListener(new SessionManagerListener.Adapter() {
+            @Override
+            public void opened(SessionManager m, Session session) {
+                session.addListener(serverEvents);
+                opened.add(session);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        transport.close();
+    }
+
+    private Connection connection() throws Exception {
+        return new Connection(transport.connect());
+    }
+
+    @Test
+    public void testNew() throws Exception {
+        Session client = new Session();
+        TestListener events = new TestListener();
+        client.addListener(events);
+        client.connect(connection());
+        assertEquals("connected false", events.next());
+        Session session = opened.poll(1, TimeUnit.SECONDS);
+        assertNotNull(session);
+        assertEquals("connected false", serverEvents.next());
+        assertEquals(session.getId(), client.getId());
+        assertTrue(client.getId() != 0);
+        assertSame(session, manager.getSession(client.getId()));
+
+        client.sendData("ping".getBytes());
+        assertEquals("ping", serverEvents.next());
+        session.sendData("pong".getBytes());
+        assertEquals("pong", events.next());
+        assertEquals(1, client.getLastSent());
+        assertEquals(1, client.getLastReceived());
+        client.close();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        Session client = new Session();
+        TestListener events = new TestListener();
+        client.addListener(events);
+        client.connect(connection());
+        assertEquals("connected false", events.next());
+        Session session = opened.poll(1, TimeUnit.SECONDS);
+        assertEquals("connected false", serverEvents.next());
+        for (int i = 1; i <= 3; i++) {
+            session.sendData(("m" + i).getBytes());
+            assertEquals("m" + i, events.next());
+        }
+
+        client.getConnection().close();
+        assertEquals("disconnected", events.next());
+        assertEquals("disconnected", serverEvents.next());
+        assertFalse(session.isConnected());
+        for (int i = 4; i <= 6; i++) {
+            session.sendData(("m" + i).getBytes());
+        }
+        client.sendData("c1".getBytes());
+        client.sendData("c2".getBytes());
+
+        client.connect(connection());
+        assertEquals("connected true", events.next());
+        assertEquals("connected true", serverEvents.next());
+        for (int i = 4; i <= 6; i++) {
+            assertEquals("m" + i, events.next());
+        }
+        assertEquals("c1", serverEvents.next());
+        assertEquals("c2", serverEvents.next());
+        assertTrue(opened.isEmpty());  // no new session
+        assertEquals(3, session.getReplayed());
+        assertEquals(2, client.getReplayed());
+
+        session.sendData("m7".getBytes());
+        assertEquals("m7", events.next());
+        assertNull(events.poll());  // nothing sent twice
+        assertNull(serverEvents.poll());
+        assertEquals(7, client.getLastReceived());
+        client.close();
+    }
+
+    @Test
+    public void testAcknowledged() throws Exception {
+        Session client = new Session();
+        TestListener events = new TestListener();
+        client.addListener(events);
+        client.connect(connection());
+        assertEquals("connected false", events.next());
+        Session session = opened.poll(1, TimeUnit.SECONDS);
+        for (int i = 0; i < Session.ACK_INTERVAL; i++) {
+            session.sendData(new byte[10]);
+            assertEquals(10, events.next().length());
+        }
+        long end = System.currentTimeMillis() + 1000;
+        while (!session.toString().contains("kept=0") && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(session.toString(), session.toString().contains("kept=0"));
+        client.close();
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        manager.setExpiry(0, TimeUnit.SECONDS);
+        Session client = new Session();
+        TestListener events = new TestListener();
+        client.addListener(events);
+        client.connect(connection());
+        assertEquals("connected false", events.next());
+        Session session = opened.poll(1, TimeUnit.SECONDS);
+        long id = client.getId();
+        client.sendData("lost".getBytes());
+        assertEquals("connected false", serverEvents.next());
+        assertEquals("lost", serverEvents.next());
+
+        client.getConnection().close();
+        assertEquals("disconnected", events.next());
+        assertEquals("disconnected", serverEvents.next());
+        client.sendData("new".getBytes());
+
+        client.connect(connection());
+        assertEquals("closed", serverEvents.next());
+        assertEquals("connected false", events.next());
+        assertTrue(session.isClosed());
+        assertNull(manager.getSession(id));
+        Session renewed = opened.poll(1, TimeUnit.SECONDS);
+        assertNotNull(renewed);
+        assertEquals(renewed.getId(), client.getId());
+        assertEquals("connected false", serverEvents.next());
+        assertNull(serverEvents.poll());  // dropped with the old session
+        assertEquals(0, client.getLastSent());
+        assertEquals(0, client.getLastReceived());
+        client.close();
+    }
+
+    @Test
+    public void testWindowExceeded() throws Exception {
+        manager.setReplayWindow(50);
+        Session client = new Session();
+        TestListener events = new TestListener();
+        client.addListener(events);
+        client.connect(connection());
+        assertEquals("connected false", events.next());
+        Session session = opened.poll(1, TimeUnit.SECONDS);
+        assertEquals("connected false", serverEvents.next());
+
+        client.getConnection().close();
+        assertEquals("disconnected", events.next());
+        assertEquals("disconnected", serverEvents.next());
+        for (int i = 0; i < 10; i++) {
+            session.sendData(new byte[20]);
+        }
+        client.connect(connection());
+        assertEquals("closed", serverEvents.next());
+        assertEquals("connected false", events.next());
+        assertTrue(session.isClosed());
+        assertNotNull(opened.poll(1, TimeUnit.SECONDS));
+        client.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        Session client = new Session();
+        TestListener events = new TestListener();
+        client.addListener(events);
+        client.connect(connection());
+        assertEquals("connected false", events.next());
+        Session session = opened.poll(1, TimeUnit.SECONDS);
+        assertEquals("connected false", serverEvents.next());
+
+        client.close();
+        assertEquals("closed", events.next());
+        assertEquals("closed", serverEvents.next());
+        assertTrue(session.isClosed());
+        assertTrue(manager.getSessions().isEmpty());
+        try {
+            client.sendData("late".getBytes());
+            fail("sent on closed session");
+        } catch (java.io.IOException expected) {
+        }
+    }
+
+    @Test
+    public void testBothSending() throws Exception {
+        final int count = 2000;
+        final Session client = new Session();
+        final CountDownLatch clientReceived = new CountDownLatch(count);
+        final CountDownLatch serverReceived = new CountDownLatch(count);
+        client.addListener(new SessionListener.Adapter() {
+            @Override
+            public void receivedData(Session s, byte[] data) {
+                clientReceived.countDown();
+            }
+        });
+        client.connect(connection());
+        final Session session = opened.poll(1, TimeUnit.SECONDS);
+        assertEquals("connected false", serverEvents.next());
+        session.addListener(new SessionListener.Adapter() {
+            @Override
+            public void receivedData(Session s, byte[] data) {
+                serverReceived.countDown();
+            }
+        });
+        final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+        for (final Session from : new Session[] { client, session }) {
+            Thread sender = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            from.sendData(new byte[10000]);
+                        }
+                    } catch (IOException ex) {
+                        errors.add(ex);
+                    }
+                }
+            };
+            sender.setDaemon(true);
+            sender.start();
+        }
+        assertTrue("server received all", serverReceived.await(5, TimeUnit.SECONDS));
+        assertTrue("client received all", clientReceived.await(5, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+        client.close();
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        try {
+            new Session(0);
+            fail("no replay window");
+        } catch (IllegalArgumentException expected) {
+        }
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        manager.addListener(new SessionManagerListener.Adapter() {
+            @Override
+            public void handleException(SessionManager m, Exception ex) {
+                errors.add(ex);
+            }
+        });
+        Connection raw = connection();
+        raw.setFramed(true);
+        raw.start();
+        raw.sendData("hello".getBytes());
+        assertNotNull(errors.poll(1, TimeUnit.SECONDS));
+        raw.close();
+    }
+
+//  ############################################################################
+
+    private static class TestListener extends SessionListener.Adapter {
+
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        String next() throws InterruptedException {
+            String event = events.poll(1, TimeUnit.SECONDS);
+            assertNotNull("timeout", event);
+            return event;
+        }
+
+        String poll() throws InterruptedException {
+            return events.poll(100, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void connected(Session session, boolean resumed) {
+            events.add("connected " + resumed);
+        }
+
+        @Override
+        public void receivedData(Session session, byte[] data) {
+            events.add(new String(data));
+        }
+
+        @Override
+        public void disconnected(Session session) {
+            events.add("disconnected");
+        }
+
+        @Override
+        public void closed(Session session) {
+            events.add("closed");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package cfh.tcp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+import java.net.StandardSocketOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SocketPolicyTest {
+
+    private Server server;
+    private volatile Connection accepted;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                accepted = connection;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testDefaults() throws Exception {
+        SocketPolicy policy = new SocketPolicy();
+        policy.setAdaptive(false);
+        policy.setBufferSizes(128 * 1024, 96 * 1024);
+        server.setSocketPolicy(policy);
+        server.start();
+        Connection client = new Connection("localhost", server.getPort());
+        client.setSocketPolicy(policy);
+        try {
+            Transport transport = client.getTransport();
+            assertTrue(transport.getOption(StandardSocketOptions.TCP_NODELAY));
+            assertTrue(transport.getOption(StandardSocketOptions.SO_KEEPALIVE));
+            SocketPolicy.Tuning tuning = client.getSocketTuning();
+            assertTrue(tuning.isNoDelay());
+            assertSame(policy, tuning.getPolicy());
+            assertEquals(transport.getOption(StandardSocketOptions.SO_SNDBUF).intValue(), tuning.getSendBufferSize());
+            assertTrue(tuning.getReceiveBufferSize() > 0);
+
+            Thread.sleep(20);
+            assertTrue(accepted.getSocketTuning().isNoDelay());
+            assertTrue(accepted.getTransport().getOption(StandardSocketOptions.SO_KEEPALIVE));
+
+            client.setSocketPolicy(null);
+            assertNull(client.getSocketTuning());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testAdaptive() throws Exception {
+        server.start();
+        SocketPolicy policy = new SocketPolicy();
+        policy.setInterval(50, MILLISECONDS);
+        policy.setBulkRate(200);
+        policy.setRoundTripTime(100, MILLISECONDS);
+        policy.setBufferRange(16 * 1024, 1024 * 1024);
+        Connection client = new Connection("localhost", server.getPort());
+        client.setSocketPolicy(policy);
+        try {
+            SocketPolicy.Tuning tuning = client.getSocketTuning();
+            assertTrue(tuning.isNoDelay());
+            long end = System.currentTimeMillis() + 200;
+            while (System.currentTimeMillis() < end) {
+                client.sendData(new byte[100]);
+            }
+            assertFalse("bulk: " + tuning, tuning.isNoDelay());
+            assertFalse(client.getTransport().getOption(StandardSocketOptions.TCP_NODELAY));
+            assertTrue(tuning.getWriteRate() > 1000);
+            assertTrue(tuning.getSendRate() > 100 * 1000);
+            assertTrue(tuning.getChanges() >= 1);
+
+            Thread.sleep(30);
+            client.sendData(new byte[100]);
+            assertTrue("request/response, at once: " + tuning, tuning.isNoDelay());
+            assertTrue(client.getTransport().getOption(StandardSocketOptions.TCP_NODELAY));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testAdaptive_SystemBuffers() throws Exception {
+        server.start();
+        SocketPolicy policy = new SocketPolicy();
+        policy.setInterval(50, MILLISECONDS);
+        assertEquals("no range", 0, policy.getMaxBufferSize());
+        Connection client = new Connection("localhost", server.getPort());
+        client.setSocketPolicy(policy);
+        try {
+            SocketPolicy.Tuning tuning = client.getSocketTuning();
+            int sendBuffer = tuning.getSendBufferSize();
+            int receiveBuffer = tuning.getReceiveBufferSize();
+            long end = System.currentTimeMillis() + 200;
+            while (System.currentTimeMillis() < end) {
+                client.sendData(new byte[10000]);
+            }
+            assertTrue(tuning.getSendRate() > 0);
+            assertEquals("left to the system", sendBuffer, tuning.getSendBufferSize());
+            assertEquals("left to the system", receiveBuffer, tuning.getReceiveBufferSize());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testUnsupported() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("options");
+        Connection client = new Connection(transport.connect());
+        client.setSocketPolicy(new SocketPolicy());
+        SocketPolicy.Tuning tuning = client.getSocketTuning();
+        assertFalse(tuning.isNoDelay());
+        assertEquals(0, tuning.getSendBufferSize());
+        assertEquals(0, tuning.getChanges());
+        try {
+            client.getTransport().setOption(StandardSocketOptions.TCP_NODELAY, true);
+            fail("option on loopback");
+        } catch (UnsupportedOperationException expected) {
+        }
+        client.close();
+        transport.close();
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        SocketPolicy policy = new SocketPolicy();
+        try {
+            policy.setBufferRange(1024, 512);
+            fail("max below min");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            policy.setInterval(0, MILLISECONDS);
+            fail("no interval");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
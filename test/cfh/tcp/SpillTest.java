@@ -0,0 +1,243 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("spilltest");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+        try {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        } finally {
+            files.close();
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        GateTransport transport = new GateTransport();
+        Connection sender = new Connection(transport);
+        sender.setMaxQueued(100);
+        sender.setSpill(directory, 100 * 1000);
+        StringBuilder expected = new StringBuilder();
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            String message = String.format("%05d;", i);
+            expected.append(message);
+            sender.sendData(message.getBytes());
+        }
+        assertTrue("not blocked", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertTrue("queued: " + sender.getQueued(), sender.getQueued() < 100 + 6);
+        assertTrue("spilled: " + sender.getSpilled(), sender.getSpilled() > 0);
+        assertEquals(1, files());
+
+        transport.open();
+        waitFor(sender);
+        assertEquals(expected.toString(), transport.written());
+
+        sender.close();
+        assertEquals("file deleted", 0, files());
+    }
+
+    @Test
+    public void testSpill_Priority() throws Exception {
+        GateTransport transport = new GateTransport();
+        Connection sender = new Connection(transport);
+        sender.setMaxQueued(10);
+        sender.setSpill(directory, 100 * 1000);
+        for (int i = 0; i < 10; i++) {
+            sender.sendData(("a" + i + ";").getBytes());
+        }
+        sender.sendData("H;".getBytes(), Connection.MAX_PRIORITY);
+        assertTrue(sender.getSpilled() > 0);
+
+        transport.open();
+        waitFor(sender);
+        String written = transport.written();
+        assertTrue(written, written.indexOf("H;") < written.indexOf("a9;"));
+        assertEquals(written, "a0;a1;a2;a3;a4;a5;a6;a7;a8;a9;", written.replace("H;", ""));
+        sender.close();
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        GateTransport transport = new GateTransport();
+        Connection sender = new Connection(transport);
+        sender.setMaxQueued(100);
+        sender.setSpill(directory, 1000);
+        final CountDownLatch exception = new CountDownLatch(1);
+        sender.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void handleException(Connection connection, Exception ex) {
+                if (ex.getMessage().startsWith("spill quota exceeded")) {
+                    exception.countDown();
+                }
+            }
+        });
+        for (int i = 0; i < 20 && exception.getCount() > 0; i++) {
+            sender.sendData(new byte[100]);
+        }
+        assertTrue(exception.await(1, TimeUnit.SECONDS));
+        assertTrue("stopped", transport.isOutputShutdown());
+        assertEquals(0, sender.getQueued());
+        assertEquals(0, sender.getSpilled());
+        assertEquals("file deleted", 0, files());
+        try {
+            sender.sendData(new byte[10]);
+            fail("sent after disconnect");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        Connection sender = new Connection(new GateTransport());
+        try {
+            sender.setSpill(directory, 0);
+            fail("invalid quota");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            sender.setSpill(null, 1000);
+            fail("null directory");
+        } catch (IllegalArgumentException expected) {
+        }
+        sender.start();
+        try {
+            sender.setSpill(directory, 1000);
+            fail("set after start");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private void waitFor(Connection sender) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((sender.getQueued() > 0 || sender.getSpilled() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, sender.getSpilled());
+        assertEquals(0, sender.getQueued());
+    }
+
+    private int files() throws IOException {
+        int count = 0;
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+        try {
+            for (@SuppressWarnings("unused") Path file : files) {
+                count += 1;
+            }
+        } finally {
+            files.close();
+        }
+        return count;
+    }
+
+//  ############################################################################
+
+    /**
+     * Transport recording the written data, the writes are blocked until
+     * opened, like a peer not reading.
+     */
+    private static class GateTransport implements Transport {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final InputStream input = new ByteArrayInputStream(new byte[0]);
+        private boolean open = false;
+        private boolean closed = false;
+
+        synchronized void open() {
+            open = true;
+            notifyAll();
+        }
+        synchronized String written() {
+            return written.toString();
+        }
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    synchronized (GateTransport.this) {
+                        try {
+                            while (!open && !closed) {
+                                GateTransport.this.wait();
+                            }
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex);
+                        }
+                        if (closed)
+                            throw new IOException("closed");
+                        written.write(b, off, len);
+                    }
+                }
+            };
+        }
+        @Override
+        public void shutdownInput() {
+        }
+        @Override
+        public synchronized void shutdownOutput() {
+            closed = true;
+            notifyAll();
+        }
+        @Override
+        public synchronized boolean isInputShutdown() {
+            return closed;
+        }
+        @Override
+        public synchronized boolean isOutputShutdown() {
+            return closed;
+        }
+        @Override
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
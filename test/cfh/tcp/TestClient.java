@@ -60,7 +60,7 @@ public class TestClient {
 //  ----------------------------------------------------------------------------        
         private class ConnListener extends ConnectionListener.Adapter {
             @Override
-            public void receivedData(Connection _, byte[] data) {
+            public void receivedData(Connection connection, byte[] data) {
                 received.add(data);
             }
         }
@@ -0,0 +1,137 @@
+package cfh.tcp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import cfh.tcp.Tracer.Histogram;
+import cfh.tcp.Tracer.Stage;
+
+public class TracerTest {
+
+    @Test
+    public void testReceive() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("trace");
+        Tracer tracer = new Tracer(1);
+        Connection client = new Connection(transport.connect());
+        client.setFramed(true);
+        client.setTracer(tracer);
+        Connection server = new Connection(transport.accept());
+        server.setFramed(true);
+        server.setTracer(tracer);
+        final CountDownLatch received = new CountDownLatch(20);
+        server.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException ignored) {
+                }
+                received.countDown();
+            }
+        });
+        server.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                client.sendData(new byte[100]);
+            }
+            assertTrue(received.await(1, TimeUnit.SECONDS));
+            Thread.sleep(10);  // the last trace is recorded after the listener
+
+            Histogram listeners = tracer.getHistogram(Stage.LISTENERS);
+            assertEquals(20, listeners.getCount());
+            assertTrue(listeners.toString(), listeners.getMeanTime(MILLISECONDS) >= 2);
+            assertTrue(listeners.getPercentile(50, MILLISECONDS) >= 1);
+            assertEquals(20, tracer.getHistogram(Stage.DECODE).getCount());
+            assertEquals(20, tracer.getHistogram(Stage.DISPATCH).getCount());
+            Histogram receive = tracer.getHistogram(Stage.RECEIVE);
+            assertEquals(20, receive.getCount());
+            assertTrue(receive.getMaxTime(NANOSECONDS) >= listeners.getMaxTime(NANOSECONDS));
+
+            assertEquals(20, tracer.getHistogram(Stage.SEND).getCount());
+            assertEquals(20, tracer.getHistogram(Stage.WRITE).getCount());
+
+            tracer.reset();
+            assertEquals(0, tracer.getHistogram(Stage.RECEIVE).getCount());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testQueued() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("queued");
+        Tracer tracer = new Tracer(1);
+        Connection client = new Connection(transport.connect());
+        client.setFramed(true);
+        client.setChunkSize(100);  // chunked frames are always queued
+        client.setTracer(tracer);
+        Connection server = new Connection(transport.accept());
+        server.setFramed(true);
+        server.start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                client.sendData(new byte[1000]);
+            }
+            assertEquals(10, tracer.getHistogram(Stage.QUEUED).getCount());
+            assertEquals(10, tracer.getHistogram(Stage.SEND).getCount());
+            assertEquals(0, tracer.getHistogram(Stage.RECEIVE).getCount());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        LoopbackServerTransport transport = new LoopbackServerTransport("sampled");
+        Tracer tracer = new Tracer(10);
+        Connection client = new Connection(transport.connect());
+        client.setFramed(true);
+        client.setTracer(tracer);
+        Connection server = new Connection(transport.accept());
+        server.setFramed(true);
+        server.start();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                client.sendData(new byte[10]);
+            }
+            long count = tracer.getHistogram(Stage.SEND).getCount();
+            assertTrue("sampled: " + count, count > 30 && count < 300);
+            client.setTracer(null);
+            client.sendData(new byte[10]);
+            assertEquals(count, tracer.getHistogram(Stage.SEND).getCount());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testPercentile() throws Exception {
+        Tracer tracer = new Tracer(1);
+        for (int i = 0; i < 99; i++) {
+            tracer.sent(0, 0, 0, 1000);
+        }
+        tracer.sent(0, 0, 0, 1000000);
+        Histogram write = tracer.getHistogram(Stage.WRITE);
+        assertEquals(100, write.getCount());
+        assertEquals(1023, write.getPercentile(50, NANOSECONDS));
+        assertEquals(1023, write.getPercentile(99, NANOSECONDS));
+        assertEquals(1000000, write.getPercentile(100, NANOSECONDS));
+        assertEquals(1000000, write.getMaxTime(NANOSECONDS));
+        assertEquals(1, write.getBucket(20));
+        assertEquals(100, tracer.getHistogram(Stage.QUEUED).getBucket(0));
+        try {
+            write.getPercentile(101, NANOSECONDS);
+            fail("percentile over 100");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package cfh.tcp;
+
+import static org.junit.Assert.*;
+
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UnixDomainTest {
+
+    private Path directory;
+    private UnixDomainSocketAddress address;
+    private Server server;
+    private TestServListener testListener;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("tcpserver");
+        address = UnixDomainSocketAddress.of(directory.resolve("server.sock"));
+        server = new Server(address, 0);
+        testListener = new TestServListener();
+        server.addListener(testListener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        Files.deleteIfExists(address.getPath());
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testStart() throws Exception {
+        assertFalse(Files.exists(address.getPath()));
+        server.start();
+        testListener.assertWasStarted(true);
+        assertTrue(Files.exists(address.getPath()));
+        assertEquals(address, server.getAddress());
+        assertEquals(-1, server.getPort());
+
+        server.stop();
+        testListener.assertWasShutdown(true);
+        assertFalse("socket file deleted", Files.exists(address.getPath()));
+    }
+
+    @Test
+    public void testSendData() throws Exception {
+        server.start();
+        Connection client = new Connection(address);
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        client.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                received.add(data);
+            }
+        });
+        client.start();
+        testListener.assertConnections(1);
+        assertEquals(1, server.getConnections().size());
+        assertEquals(-1, client.getRemotePort());
+
+        server.sendData("test1".getBytes());
+        Thread.sleep(10);
+        assertEquals(1, received.size());
+        assertArrayEquals("test1".getBytes(), received.get(0));
+        client.close();
+    }
+
+    @Test
+    public void testEcho() throws Exception {
+        final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+        server.addListener(new ServerListener.Adapter() {
+            @Override
+            public void connected(Server s, Connection connection) {
+                connection.setFramed(true);
+                connection.addListener(new ConnectionListener.Adapter() {
+                    @Override
+                    public void receivedData(Connection connection, byte[] data) {
+                        try {
+                            connection.sendData(data);
+                        } catch (Exception ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+        });
+        server.start();
+        Connection client = new Connection(address);
+        client.setFramed(true);
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        client.addListener(new ConnectionListener.Adapter() {
+            @Override
+            public void receivedData(Connection connection, byte[] data) {
+                received.add(data);
+            }
+        });
+        client.start();
+
+        byte[] large = new byte[200 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        client.sendData("test2".getBytes());
+        client.sendData(large);
+        Thread.sleep(200);
+        assertEquals(2, received.size());
+        assertArrayEquals("test2".getBytes(), received.get(0));
+        assertArrayEquals(large, received.get(1));
+        assertTrue(errors.toString(), errors.isEmpty());
+        client.close();
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        server.start();
+        Connection client = new Connection(address);
+        client.start();
+        testListener.assertConnections(1);
+
+        server.stop();
+        Thread.sleep(10);
+        assertTrue(server.getConnections().isEmpty());
+        client.close();
+    }
+}